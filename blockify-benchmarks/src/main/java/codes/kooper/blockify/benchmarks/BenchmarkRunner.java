@@ -0,0 +1,22 @@
+package codes.kooper.blockify.benchmarks;
+
+import org.openjdk.jmh.Main;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the benchmarks through the regular JMH main, but with the allocation profiler enabled unless other profilers
+ * are requested with -prof.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        List<String> arguments = new ArrayList<>(List.of(args));
+        if (!arguments.contains("-prof")) {
+            arguments.add("-prof");
+            arguments.add("gc");
+        }
+        Main.main(arguments.toArray(String[]::new));
+    }
+}
@@ -0,0 +1,36 @@
+package codes.kooper.blockify.benchmarks;
+
+import codes.kooper.blockify.types.BlockifyPosition;
+import codes.kooper.blockify.utils.BlockUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collecting the positions of a cuboid.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlockUtilsBenchmark {
+
+    @Param({"16", "64"})
+    private int size;
+
+    private BlockifyPosition from, to;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        from = new BlockifyPosition(0, 0, 0);
+        to = new BlockifyPosition(size - 1, size - 1, size - 1);
+    }
+
+    @Benchmark
+    public Set<BlockifyPosition> getBlocksBetween() {
+        return BlockUtils.getBlocksBetween(from, to);
+    }
+}
@@ -0,0 +1,93 @@
+package codes.kooper.blockify.benchmarks;
+
+import codes.kooper.blockify.Blockify;
+import codes.kooper.blockify.models.Audience;
+import codes.kooper.blockify.models.Pattern;
+import codes.kooper.blockify.models.Stage;
+import codes.kooper.blockify.types.BlockifyPosition;
+import com.github.retrooper.packetevents.PacketEvents;
+import com.github.retrooper.packetevents.PacketEventsAPI;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.mockbukkit.mockbukkit.MockBukkit;
+import org.mockbukkit.mockbukkit.ServerMock;
+import org.mockito.Mockito;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Headless server for the benchmarks: MockBukkit for Bukkit, a deep-stubbed PacketEvents API, and mocked block data.
+ */
+public final class BlockifyHarness {
+    private static ServerMock server;
+    private static Blockify plugin;
+
+    private BlockifyHarness() {
+    }
+
+    /**
+     * Start the mocked server and enable Blockify, if that did not happen yet.
+     *
+     * @return The enabled plugin.
+     */
+    public static synchronized Blockify start() {
+        if (plugin != null) return plugin;
+        PacketEvents.setAPI(Mockito.mock(PacketEventsAPI.class, Mockito.RETURNS_DEEP_STUBS));
+        server = MockBukkit.mock();
+        plugin = MockBukkit.loadWith(Blockify.class, new PluginDescriptionFile("Blockify", "benchmark", Blockify.class.getName()));
+        return plugin;
+    }
+
+    /**
+     * Disable Blockify and stop the mocked server.
+     */
+    public static synchronized void stop() {
+        if (plugin == null) return;
+        MockBukkit.unmock();
+        server = null;
+        plugin = null;
+    }
+
+    public static ServerMock getServer() {
+        return server;
+    }
+
+    /**
+     * @param count The amount of distinct block data.
+     * @return Mocked block data, all of them solid.
+     */
+    public static BlockData[] blockData(int count) {
+        BlockData[] blockData = new BlockData[count];
+        for (int i = 0; i < count; i++) {
+            blockData[i] = Mockito.mock(BlockData.class);
+            Mockito.when(blockData[i].getMaterial()).thenReturn(Material.STONE);
+        }
+        return blockData;
+    }
+
+    /**
+     * @param blockData The block data of the pattern, all weighted equally.
+     * @return The pattern.
+     */
+    public static Pattern pattern(BlockData... blockData) {
+        Map<BlockData, Double> weights = new HashMap<>();
+        for (BlockData data : blockData) {
+            weights.put(data, 1.0);
+        }
+        return new Pattern(weights);
+    }
+
+    /**
+     * @param size The size of the stage on every axis.
+     * @return A stage with an empty audience in a new world, starting at 0, 0, 0.
+     */
+    public static Stage stage(int size) {
+        World world = server.addSimpleWorld("world-" + server.getWorlds().size());
+        return new Stage("benchmark", world, new BlockifyPosition(0, 0, 0), new BlockifyPosition(size - 1, size - 1, size - 1),
+                Audience.fromUUIDs(new HashSet<>()));
+    }
+}
@@ -0,0 +1,88 @@
+package codes.kooper.blockify.benchmarks;
+
+import codes.kooper.blockify.models.Pattern;
+import codes.kooper.blockify.models.PatternFill;
+import codes.kooper.blockify.storage.ChunkBlocks;
+import codes.kooper.blockify.storage.LongObjectMap;
+import codes.kooper.blockify.types.BlockifyChunk;
+import org.bukkit.block.data.BlockData;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drawing random block data from weighted patterns, and resetting a mine of a million blocks with them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PatternBenchmark {
+
+    @Param({"1", "8", "64"})
+    private int blockTypes;
+
+    private Pattern pattern;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BlockData[] blockData = BlockifyHarness.blockData(blockTypes);
+        Map<BlockData, Double> weights = new HashMap<>();
+        for (int i = 0; i < blockData.length; i++) {
+            weights.put(blockData[i], (double) (i + 1));
+        }
+        pattern = new Pattern(weights);
+    }
+
+    /**
+     * A 100x100x100 mine stored the way a view stores it, filled with a single block type before every trial.
+     */
+    @State(Scope.Benchmark)
+    public static class Mine {
+        private static final int SIZE = 100;
+
+        @Param({"true", "false"})
+        private boolean parallel;
+
+        private List<ChunkBlocks> chunks;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            BlockData stone = BlockifyHarness.blockData(1)[0];
+            LongObjectMap<ChunkBlocks> blocks = new LongObjectMap<>();
+            for (int x = 0; x < SIZE; x++) {
+                for (int z = 0; z < SIZE; z++) {
+                    int chunkX = x >> 4, chunkZ = z >> 4;
+                    ChunkBlocks chunk = blocks.computeIfAbsent(BlockifyChunk.key(chunkX, chunkZ), key -> new ChunkBlocks(chunkX, chunkZ));
+                    for (int y = 0; y < SIZE; y++) {
+                        chunk.set(x, y, z, stone);
+                    }
+                }
+            }
+            chunks = new ArrayList<>(blocks.values());
+        }
+    }
+
+    @Benchmark
+    public BlockData getRandomBlockData() {
+        return pattern.getRandomBlockData();
+    }
+
+    /**
+     * Refill every block of the mine, the work {@link codes.kooper.blockify.models.View#resetViewBlocks()} does
+     * before it invalidates chunks and notifies viewers.
+     */
+    @Benchmark
+    @Warmup(iterations = 5, time = 1)
+    @Measurement(iterations = 10, time = 1)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int resetMine(Mine mine) {
+        return PatternFill.of(pattern).parallel(mine.parallel).refill(mine.chunks);
+    }
+}
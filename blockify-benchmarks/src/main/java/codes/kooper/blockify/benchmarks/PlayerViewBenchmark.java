@@ -0,0 +1,73 @@
+package codes.kooper.blockify.benchmarks;
+
+import codes.kooper.blockify.Blockify;
+import codes.kooper.blockify.managers.BlockChangeManager;
+import codes.kooper.blockify.models.Pattern;
+import codes.kooper.blockify.models.Stage;
+import codes.kooper.blockify.models.View;
+import codes.kooper.blockify.types.BlockDelta;
+import org.bukkit.entity.Player;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adding a view to a player and removing it again, with and without a second view below it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlayerViewBenchmark {
+
+    @Param({"32", "64"})
+    private int size;
+
+    @Param({"false", "true"})
+    private boolean layered;
+
+    private BlockChangeManager blockChangeManager;
+    private Player player;
+    private View view;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Blockify plugin = BlockifyHarness.start();
+        blockChangeManager = plugin.getBlockChangeManager();
+        player = BlockifyHarness.getServer().addPlayer();
+        blockChangeManager.initializePlayer(player);
+
+        Stage stage = BlockifyHarness.stage(size);
+        Pattern pattern = BlockifyHarness.pattern(BlockifyHarness.blockData(4));
+        view = fill(new View("top", stage, pattern, true));
+        if (layered) {
+            View below = fill(new View("below", stage, pattern, true));
+            below.setZIndex(-1);
+            blockChangeManager.addViewToPlayer(player, below);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BlockifyHarness.stop();
+    }
+
+    @Benchmark
+    public BlockDelta addAndRemoveView() {
+        blockChangeManager.addViewToPlayer(player, view);
+        return blockChangeManager.removeViewFromPlayer(player, view);
+    }
+
+    private View fill(View view) {
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                for (int z = 0; z < size; z++) {
+                    view.addBlock(x, y, z);
+                }
+            }
+        }
+        return view;
+    }
+}
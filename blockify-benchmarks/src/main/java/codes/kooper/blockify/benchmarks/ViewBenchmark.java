@@ -0,0 +1,86 @@
+package codes.kooper.blockify.benchmarks;
+
+import codes.kooper.blockify.models.Pattern;
+import codes.kooper.blockify.models.Stage;
+import codes.kooper.blockify.models.View;
+import codes.kooper.blockify.types.BlockifyPosition;
+import codes.kooper.blockify.utils.BlockUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filling a view and looking up blocks in it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ViewBenchmark {
+    private static final int PROBES = 4096;
+
+    @Param({"32", "128"})
+    private int size;
+
+    private Stage stage;
+    private Pattern pattern;
+    private Set<BlockifyPosition> positions;
+    private View view;
+    private int[] probes;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BlockifyHarness.start();
+        stage = BlockifyHarness.stage(size);
+        pattern = BlockifyHarness.pattern(BlockifyHarness.blockData(4));
+        positions = BlockUtils.getBlocksBetween(new BlockifyPosition(0, 0, 0), new BlockifyPosition(size - 1, size - 1, size - 1));
+        view = new View("filled", stage, pattern, true);
+        view.addBlocks(positions);
+
+        // Half of the probes hit the view, the other half miss it
+        SplittableRandom random = new SplittableRandom(42);
+        probes = new int[PROBES * 3];
+        for (int i = 0; i < probes.length; i++) {
+            probes[i] = random.nextInt(size * 2);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BlockifyHarness.stop();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public View addBlocks() {
+        View added = new View("added", stage, pattern, true);
+        added.addBlocks(positions);
+        return added;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public View resetViewBlocks() {
+        view.resetViewBlocks();
+        return view;
+    }
+
+    @Benchmark
+    public void getBlock(Blackhole blackhole) {
+        for (int i = 0; i < probes.length; i += 3) {
+            blackhole.consume(view.getBlock(probes[i], probes[i + 1], probes[i + 2]));
+        }
+    }
+
+    @Benchmark
+    public void hasBlock(Blackhole blackhole) {
+        for (int i = 0; i < probes.length; i += 3) {
+            blackhole.consume(view.hasBlock(probes[i], probes[i + 1], probes[i + 2]));
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package codes.kooper.blockify.benchmarks;
+
+import codes.kooper.blockify.models.Pattern;
+import codes.kooper.blockify.shapes.PositionConsumer;
+import codes.kooper.blockify.storage.ChunkBlocks;
+import codes.kooper.blockify.storage.LongObjectMap;
+import codes.kooper.blockify.types.BlockifyChunk;
+import codes.kooper.blockify.types.BlockifyPosition;
+import org.bukkit.block.data.BlockData;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retained heap of the blocks of a filled view, reported as the bytesPerBlock counter next to the fill time.
+ * Compares the palette sections views store their blocks in against the nested maps they used before.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+public class ViewMemoryBenchmark {
+
+    @Param({"1000000"})
+    private int blocks;
+
+    @Param({"1", "16"})
+    private int blockTypes;
+
+    @Param({"sections", "maps"})
+    private String storage;
+
+    private Pattern pattern;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+        public long retainedBytes;
+        public double bytesPerBlock;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        pattern = BlockifyHarness.pattern(BlockifyHarness.blockData(blockTypes));
+    }
+
+    @Benchmark
+    public Object fill(Footprint footprint) {
+        long before = usedHeap();
+        Object filled = storage.equals("sections") ? fillSections() : fillMaps();
+        footprint.retainedBytes = usedHeap() - before;
+        footprint.bytesPerBlock = (double) footprint.retainedBytes / blocks;
+        return filled;
+    }
+
+    /**
+     * Store the blocks the way {@link codes.kooper.blockify.models.View} does.
+     */
+    private LongObjectMap<ChunkBlocks> fillSections() {
+        LongObjectMap<ChunkBlocks> chunks = new LongObjectMap<>();
+        forEachPosition((x, y, z) -> chunks.computeIfAbsent(BlockifyChunk.keyOfBlock(x, z), key -> new ChunkBlocks(x >> 4, z >> 4))
+                .set(x, y, z, pattern.getRandomBlockData()));
+        return chunks;
+    }
+
+    /**
+     * Store the blocks the way views did before they used palette sections.
+     */
+    private Map<BlockifyChunk, Map<BlockifyPosition, BlockData>> fillMaps() {
+        Map<BlockifyChunk, Map<BlockifyPosition, BlockData>> chunks = new ConcurrentHashMap<>();
+        forEachPosition((x, y, z) -> chunks.computeIfAbsent(new BlockifyChunk(x >> 4, z >> 4), chunk -> new ConcurrentHashMap<>())
+                .put(new BlockifyPosition(x, y, z), pattern.getRandomBlockData()));
+        return chunks;
+    }
+
+    private void forEachPosition(PositionConsumer consumer) {
+        int side = (int) Math.ceil(Math.cbrt(blocks));
+        int added = 0;
+        for (int x = 0; x < side && added < blocks; x++) {
+            for (int y = 0; y < side && added < blocks; y++) {
+                for (int z = 0; z < side && added < blocks; z++, added++) {
+                    consumer.accept(x, y, z);
+                }
+            }
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
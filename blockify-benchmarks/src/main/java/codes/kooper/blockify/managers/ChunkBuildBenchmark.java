@@ -0,0 +1,102 @@
+package codes.kooper.blockify.managers;
+
+import codes.kooper.blockify.Blockify;
+import codes.kooper.blockify.benchmarks.BlockifyHarness;
+import codes.kooper.blockify.cache.CachedChunkPacket;
+import codes.kooper.blockify.cache.ChunkSnapshotData;
+import codes.kooper.blockify.cache.SectionSnapshot;
+import codes.kooper.blockify.models.Stage;
+import codes.kooper.blockify.models.View;
+import codes.kooper.blockify.storage.BlockStateRegistry;
+import codes.kooper.blockify.types.BlockifyChunk;
+import com.github.retrooper.packetevents.protocol.world.states.WrappedBlockState;
+import org.bukkit.block.data.BlockData;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building a chunk column the way processAndSendChunk does on a cache miss, from a synthetic world snapshot.
+ * Lives in the managers package to reach the package-private builder.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkBuildBenchmark {
+    private static final int MIN_SECTION = -4;
+    private static final int SECTIONS = 24;
+
+    // Amount of view layers over the chunk
+    @Param({"0", "1", "4"})
+    private int layers;
+
+    private BlockChangeManager blockChangeManager;
+    private BlockifyChunk chunk;
+    private ChunkSnapshotData snapshot;
+    private View[] views;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Blockify plugin = BlockifyHarness.start();
+        blockChangeManager = plugin.getBlockChangeManager();
+        chunk = new BlockifyChunk(0, 0);
+
+        // Fake block data is not known to PacketEvents, so register state ids for it up front
+        BlockData[] blockData = BlockifyHarness.blockData(8);
+        for (int i = 0; i < blockData.length; i++) {
+            WrappedBlockState state = Mockito.mock(WrappedBlockState.class);
+            Mockito.when(state.getGlobalId()).thenReturn(100 + i);
+            BlockStateRegistry.register(blockData[i], state);
+        }
+
+        // Solid stone below y 0, mixed terrain up to y 64 and air above
+        SplittableRandom random = new SplittableRandom(42);
+        SectionSnapshot[] sections = new SectionSnapshot[SECTIONS];
+        int[] palette = {1, 2, 3, 9, 10, 0};
+        for (int section = 0; section < SECTIONS; section++) {
+            int sectionY = section + MIN_SECTION;
+            if (sectionY < 0) {
+                sections[section] = SectionSnapshot.uniform(1);
+            } else if (sectionY < 4) {
+                char[] indices = new char[4096];
+                for (int i = 0; i < indices.length; i++) {
+                    indices[i] = (char) random.nextInt(palette.length);
+                }
+                sections[section] = SectionSnapshot.of(palette, palette.length, indices);
+            } else {
+                sections[section] = SectionSnapshot.uniform(0);
+            }
+        }
+        snapshot = new ChunkSnapshotData(MIN_SECTION, sections, 0, 0);
+
+        Stage stage = BlockifyHarness.stage(16);
+        views = new View[layers];
+        for (int layer = 0; layer < layers; layer++) {
+            View view = new View("layer-" + layer, stage, BlockifyHarness.pattern(blockData), true);
+            view.setZIndex(layer);
+            for (int x = 0; x < 16; x++) {
+                for (int y = layer * 8; y < 48 + layer * 8; y++) {
+                    for (int z = 0; z < 16; z++) {
+                        view.addBlock(x, y, z);
+                    }
+                }
+            }
+            views[layers - 1 - layer] = view;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BlockifyHarness.stop();
+    }
+
+    @Benchmark
+    public CachedChunkPacket buildChunkPacket() {
+        return blockChangeManager.buildChunkPacket(chunk, SECTIONS, MIN_SECTION, snapshot, views, null);
+    }
+}
@@ -1,38 +1,95 @@
 package codes.kooper.blockify;
 
+import codes.kooper.blockify.cache.ChunkVersionTracker;
+import codes.kooper.blockify.commands.BlockifyCommand;
+import codes.kooper.blockify.listeners.AudienceListener;
+import codes.kooper.blockify.listeners.PlayerQuitListener;
 import codes.kooper.blockify.listeners.StageBoundListener;
+import codes.kooper.blockify.listeners.WorldChangeListener;
 import codes.kooper.blockify.managers.BlockChangeManager;
 import codes.kooper.blockify.managers.StageManager;
+import codes.kooper.blockify.metrics.BlockifyMetrics;
+import codes.kooper.blockify.metrics.PrometheusEndpoint;
+import codes.kooper.blockify.persistence.StageStore;
+import codes.kooper.blockify.protocol.BlockChangeGuardAdapter;
 import codes.kooper.blockify.protocol.BlockDigAdapter;
 import codes.kooper.blockify.protocol.BlockPlaceAdapter;
 import codes.kooper.blockify.protocol.ChunkLoadAdapter;
 import com.github.retrooper.packetevents.PacketEvents;
 import com.github.retrooper.packetevents.manager.server.ServerVersion;
 import lombok.Getter;
+import org.bukkit.command.PluginCommand;
 import org.bukkit.plugin.java.JavaPlugin;
 
+import java.io.IOException;
+
 @Getter
 public final class Blockify extends JavaPlugin {
+    private BlockifyMetrics metrics;
+    private PrometheusEndpoint prometheusEndpoint;
     private StageManager stageManager;
     private BlockChangeManager blockChangeManager;
+    private ChunkVersionTracker chunkVersionTracker;
+    private StageStore stageStore;
     private ServerVersion serverVersion;
 
     @Override
     public void onEnable() {
         serverVersion = PacketEvents.getAPI().getServerManager().getVersion();
         getLogger().info("Blockify has been enabled!");
+        saveDefaultConfig();
 
+        // Before the managers, their threads record into it as soon as they start
+        metrics = new BlockifyMetrics();
         stageManager = new StageManager();
         blockChangeManager = new BlockChangeManager();
+        chunkVersionTracker = new ChunkVersionTracker();
+        stageStore = new StageStore(getDataFolder().toPath().resolve("stages"));
+        blockChangeManager.getChunkSendPacer().start(this);
+        startCacheExpiry();
+        metrics.registerGauges(blockChangeManager);
+        startPrometheusEndpoint();
 
         getServer().getPluginManager().registerEvents(new StageBoundListener(), this);
+        getServer().getPluginManager().registerEvents(new WorldChangeListener(), this);
+        getServer().getPluginManager().registerEvents(new PlayerQuitListener(), this);
+        getServer().getPluginManager().registerEvents(new AudienceListener(), this);
+
+        PacketEvents.getAPI().getEventManager().registerListeners(new BlockDigAdapter(), new BlockPlaceAdapter(), new BlockChangeGuardAdapter(), new ChunkLoadAdapter(getConfig().getBoolean("chunks.patch-in-place", true)));
+
+        PluginCommand command = getCommand("blockify");
+        if (command != null) {
+            BlockifyCommand executor = new BlockifyCommand();
+            command.setExecutor(executor);
+            command.setTabCompleter(executor);
+        }
+    }
+
+    private void startCacheExpiry() {
+        long ttlTicks = getConfig().getLong("chunks.cache-ttl-seconds", 30) * 20;
+        if (ttlTicks <= 0) return;
+        getServer().getScheduler().runTaskTimer(this, chunkVersionTracker::expireAll, ttlTicks, ttlTicks);
+    }
 
-        PacketEvents.getAPI().getEventManager().registerListeners(new BlockDigAdapter(), new BlockPlaceAdapter(), new ChunkLoadAdapter());
+    private void startPrometheusEndpoint() {
+        if (!getConfig().getBoolean("metrics.prometheus.enabled")) return;
+        String host = getConfig().getString("metrics.prometheus.host", "127.0.0.1");
+        int port = getConfig().getInt("metrics.prometheus.port", 9940);
+        try {
+            prometheusEndpoint = new PrometheusEndpoint(metrics, host, port);
+            getLogger().info("Serving metrics on http://" + host + ":" + port + "/metrics");
+        } catch (IOException e) {
+            getLogger().warning("Failed to start the metrics endpoint on " + host + ":" + port + ": " + e.getMessage());
+        }
     }
 
     @Override
     public void onDisable() {
+        if (prometheusEndpoint != null) {
+            prometheusEndpoint.stop();
+        }
         blockChangeManager.shutdown();
+        stageStore.shutdown();
         getLogger().info("Blockify has been disabled!");
     }
 
@@ -0,0 +1,15 @@
+package codes.kooper.blockify.cache;
+
+import com.github.retrooper.packetevents.protocol.world.chunk.Column;
+import com.github.retrooper.packetevents.protocol.world.chunk.LightData;
+
+/**
+ * A fully built chunk column, shared by every player that sees the same content.
+ * The column and light data must be treated as read-only once cached.
+ *
+ * @param column The built column.
+ * @param lightData The light data sent with the column.
+ * @param bytes The estimated size of the entry in bytes.
+ */
+public record CachedChunkPacket(Column column, LightData lightData, long bytes) {
+}
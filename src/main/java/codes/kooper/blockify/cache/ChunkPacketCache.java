@@ -0,0 +1,148 @@
+package codes.kooper.blockify.cache;
+
+import lombok.Getter;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte-bounded LRU cache of built chunk packets, keyed by {@link ChunkPacketKey}.
+ * Players that see the same fake blocks over the same world state share a single entry.
+ */
+public class ChunkPacketCache {
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private final LinkedHashMap<ChunkPacketKey, CachedChunkPacket> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final Map<UUID, Map<Long, Set<ChunkPacketKey>>> keysByChunk = new HashMap<>();
+    @Getter
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+    @Getter
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    @Getter
+    private long currentBytes;
+
+    /**
+     * Get a cached chunk packet.
+     *
+     * @param key The content address of the chunk.
+     * @return The cached packet, or null if it is not cached.
+     */
+    public synchronized CachedChunkPacket get(ChunkPacketKey key) {
+        CachedChunkPacket packet = entries.get(key);
+        (packet == null ? misses : hits).incrementAndGet();
+        return packet;
+    }
+
+    /**
+     * Cache a chunk packet, evicting the least recently used entries if the cache grows past its byte budget.
+     *
+     * @param key The content address of the chunk.
+     * @param packet The built packet.
+     */
+    public synchronized void put(ChunkPacketKey key, CachedChunkPacket packet) {
+        if (packet.bytes() > maxBytes) return;
+        CachedChunkPacket previous = entries.put(key, packet);
+        if (previous != null) {
+            currentBytes -= previous.bytes();
+        }
+        currentBytes += packet.bytes();
+        keysByChunk.computeIfAbsent(key.world(), k -> new HashMap<>()).computeIfAbsent(key.chunkKey(), k -> new HashSet<>()).add(key);
+        evict();
+    }
+
+    /**
+     * Drop every cached packet of a chunk.
+     *
+     * @param world The uuid of the world the chunk is in.
+     * @param chunkKey The chunk key.
+     */
+    public synchronized void invalidate(UUID world, long chunkKey) {
+        Map<Long, Set<ChunkPacketKey>> worldKeys = keysByChunk.get(world);
+        if (worldKeys == null) return;
+        Set<ChunkPacketKey> keys = worldKeys.remove(chunkKey);
+        if (keys == null) return;
+        for (ChunkPacketKey key : keys) {
+            CachedChunkPacket packet = entries.remove(key);
+            if (packet != null) {
+                currentBytes -= packet.bytes();
+            }
+        }
+        if (worldKeys.isEmpty()) {
+            keysByChunk.remove(world);
+        }
+    }
+
+    /**
+     * Drop every cached packet of a world.
+     *
+     * @param world The uuid of the world.
+     */
+    public synchronized void invalidateWorld(UUID world) {
+        Map<Long, Set<ChunkPacketKey>> worldKeys = keysByChunk.remove(world);
+        if (worldKeys == null) return;
+        for (Set<ChunkPacketKey> keys : worldKeys.values()) {
+            for (ChunkPacketKey key : keys) {
+                CachedChunkPacket packet = entries.remove(key);
+                if (packet != null) {
+                    currentBytes -= packet.bytes();
+                }
+            }
+        }
+    }
+
+    /**
+     * Set the byte budget of the cache, evicting entries if needed.
+     *
+     * @param maxBytes The maximum amount of bytes to keep cached, 0 disables the cache.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    /**
+     * @return The amount of cached packets.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Drop every cached packet.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        keysByChunk.clear();
+        currentBytes = 0;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<ChunkPacketKey, CachedChunkPacket>> iterator = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<ChunkPacketKey, CachedChunkPacket> eldest = iterator.next();
+            iterator.remove();
+            currentBytes -= eldest.getValue().bytes();
+            unindex(eldest.getKey());
+        }
+    }
+
+    private void unindex(ChunkPacketKey key) {
+        Map<Long, Set<ChunkPacketKey>> worldKeys = keysByChunk.get(key.world());
+        if (worldKeys == null) return;
+        Set<ChunkPacketKey> keys = worldKeys.get(key.chunkKey());
+        if (keys == null) return;
+        keys.remove(key);
+        if (keys.isEmpty()) {
+            worldKeys.remove(key.chunkKey());
+            if (worldKeys.isEmpty()) {
+                keysByChunk.remove(key.world());
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package codes.kooper.blockify.cache;
+
+import java.util.UUID;
+
+/**
+ * Content address of a built chunk packet.
+ *
+ * @param world The uuid of the world the chunk is in.
+ * @param chunkKey The chunk key, see {@link codes.kooper.blockify.types.BlockifyChunk#getChunkKey()}.
+ * @param fingerprint The fingerprint of the fake blocks applied on top of the world, 0 for none.
+ * @param worldVersion The version of the real chunk contents, see {@link ChunkVersionTracker}.
+ */
+public record ChunkPacketKey(UUID world, long chunkKey, long fingerprint, long worldVersion) {
+}
@@ -0,0 +1,21 @@
+package codes.kooper.blockify.cache;
+
+/**
+ * The real blocks of a chunk, as palette-indexed sections.
+ *
+ * @param minSection The section y coordinate of the first section.
+ * @param sections The sections from bottom to top.
+ * @param worldVersion The version of the chunk when the snapshot was taken, see {@link ChunkVersionTracker}.
+ * @param bytes The estimated size of the snapshot in bytes.
+ */
+public record ChunkSnapshotData(int minSection, SectionSnapshot[] sections, long worldVersion, long bytes) {
+
+    /**
+     * @param sectionY The section y coordinate.
+     * @return The section, or null if it is outside the world.
+     */
+    public SectionSnapshot getSection(int sectionY) {
+        int index = sectionY - minSection;
+        return index < 0 || index >= sections.length ? null : sections[index];
+    }
+}
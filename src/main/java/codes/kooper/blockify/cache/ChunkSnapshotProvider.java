@@ -0,0 +1,188 @@
+package codes.kooper.blockify.cache;
+
+import codes.kooper.blockify.Blockify;
+import lombok.Getter;
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+/**
+ * Provides the real blocks of chunks for chunk rebuilds off the main thread.
+ * Chunks are fetched with Paper's async chunk API, converted once into palette-indexed sections of global block state
+ * ids and cached until a real block in the chunk changes, see {@link ChunkVersionTracker}.
+ */
+public class ChunkSnapshotProvider {
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    private static final long LOAD_TIMEOUT_SECONDS = 30;
+
+    private final ToIntFunction<BlockData> stateIds;
+    private final LinkedHashMap<Key, ChunkSnapshotData> entries = new LinkedHashMap<>(256, 0.75f, true);
+    @Getter
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    @Getter
+    private long currentBytes;
+
+    /**
+     * @param stateIds The function converting block data into global block state ids.
+     */
+    public ChunkSnapshotProvider(ToIntFunction<BlockData> stateIds) {
+        this.stateIds = stateIds;
+    }
+
+    /**
+     * Get the real blocks of a chunk. Must not be called on the main thread, since it waits for the chunk.
+     *
+     * @param world The world.
+     * @param chunkX The x coordinate of the chunk.
+     * @param chunkZ The z coordinate of the chunk.
+     * @return The snapshot.
+     * @throws Exception If the chunk could not be loaded in time.
+     */
+    public ChunkSnapshotData get(World world, int chunkX, int chunkZ) throws Exception {
+        // The version is read before the snapshot, so a concurrent block change can never be cached under the new version
+        long version = Blockify.getInstance().getChunkVersionTracker().getVersion(world, chunkX, chunkZ);
+        Key key = new Key(world.getUID(), Chunk.getChunkKey(chunkX, chunkZ));
+        synchronized (this) {
+            ChunkSnapshotData cached = entries.get(key);
+            if (cached != null && cached.worldVersion() == version) return cached;
+        }
+
+        ChunkSnapshot snapshot = world.getChunkAtAsync(chunkX, chunkZ)
+                .thenApplyAsync(Chunk::getChunkSnapshot, Bukkit.getScheduler().getMainThreadExecutor(Blockify.getInstance()))
+                .get(LOAD_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        ChunkSnapshotData data = convert(world, snapshot, version);
+        put(key, data);
+        return data;
+    }
+
+    /**
+     * Drop the snapshot of a chunk.
+     *
+     * @param world The uuid of the world the chunk is in.
+     * @param chunkKey The chunk key.
+     */
+    public synchronized void invalidate(UUID world, long chunkKey) {
+        ChunkSnapshotData data = entries.remove(new Key(world, chunkKey));
+        if (data != null) {
+            currentBytes -= data.bytes();
+        }
+    }
+
+    /**
+     * Drop every snapshot of a world.
+     *
+     * @param world The uuid of the world.
+     */
+    public synchronized void invalidateWorld(UUID world) {
+        Iterator<Map.Entry<Key, ChunkSnapshotData>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, ChunkSnapshotData> entry = iterator.next();
+            if (entry.getKey().world().equals(world)) {
+                iterator.remove();
+                currentBytes -= entry.getValue().bytes();
+            }
+        }
+    }
+
+    /**
+     * Set the byte budget of the cache, evicting entries if needed.
+     *
+     * @param maxBytes The maximum amount of bytes to keep cached, 0 disables the cache.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    /**
+     * @return The amount of cached chunks.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Drop every snapshot.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        currentBytes = 0;
+    }
+
+    private synchronized void put(Key key, ChunkSnapshotData data) {
+        if (data.bytes() > maxBytes) return;
+        ChunkSnapshotData previous = entries.get(key);
+        // Never replace a newer snapshot that another thread stored in the meantime
+        if (previous != null && previous.worldVersion() > data.worldVersion()) return;
+        entries.put(key, data);
+        if (previous != null) {
+            currentBytes -= previous.bytes();
+        }
+        currentBytes += data.bytes();
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Key, ChunkSnapshotData>> iterator = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<Key, ChunkSnapshotData> eldest = iterator.next();
+            iterator.remove();
+            currentBytes -= eldest.getValue().bytes();
+        }
+    }
+
+    private ChunkSnapshotData convert(World world, ChunkSnapshot snapshot, long version) {
+        int minSection = world.getMinHeight() >> 4;
+        int maxSection = (world.getMaxHeight() - 1) >> 4;
+        SectionSnapshot[] sections = new SectionSnapshot[maxSection - minSection + 1];
+        SectionSnapshot air = SectionSnapshot.uniform(0);
+        long bytes = 64;
+
+        int[] palette = new int[16];
+        char[] indices = new char[4096];
+        Map<BlockData, Integer> paletteIndices = new HashMap<>();
+        for (int sectionY = minSection; sectionY <= maxSection; sectionY++) {
+            if (snapshot.isSectionEmpty(sectionY - minSection)) {
+                sections[sectionY - minSection] = air;
+                continue;
+            }
+
+            paletteIndices.clear();
+            int paletteSize = 0;
+            BlockData last = null;
+            int lastIndex = 0;
+            int baseY = sectionY << 4;
+            for (int index = 0; index < 4096; index++) {
+                BlockData blockData = snapshot.getBlockData(index & 15, baseY + (index >> 8), (index >> 4) & 15);
+                if (blockData != last) {
+                    Integer paletteIndex = paletteIndices.get(blockData);
+                    if (paletteIndex == null) {
+                        if (paletteSize == palette.length) {
+                            palette = Arrays.copyOf(palette, paletteSize * 2);
+                        }
+                        palette[paletteSize] = stateIds.applyAsInt(blockData);
+                        paletteIndex = paletteSize++;
+                        paletteIndices.put(blockData, paletteIndex);
+                    }
+                    last = blockData;
+                    lastIndex = paletteIndex;
+                }
+                indices[index] = (char) lastIndex;
+            }
+
+            SectionSnapshot section = SectionSnapshot.of(palette, paletteSize, indices);
+            sections[sectionY - minSection] = section;
+            bytes += section.bytes();
+        }
+        return new ChunkSnapshotData(minSection, sections, version, bytes);
+    }
+
+    private record Key(UUID world, long chunkKey) {
+    }
+}
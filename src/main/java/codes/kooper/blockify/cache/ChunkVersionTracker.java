@@ -0,0 +1,70 @@
+package codes.kooper.blockify.cache;
+
+import org.bukkit.Chunk;
+import org.bukkit.World;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks a version per chunk that changes whenever a real block in that chunk changes.
+ * Chunks that never changed have the version of the current epoch, which starts at 0. Versions come from a single
+ * clock, so they are never reused.
+ * <p>
+ * Block changes that fire no event, such as {@code Block#setType} from other plugins, are only seen when the server
+ * sends them to a player. {@link #expireAll()} starts a new epoch, which changes the version of every chunk, so data
+ * cached for chunks nobody watched is trusted for a bounded time only.
+ */
+public class ChunkVersionTracker {
+    private final Map<UUID, Map<Long, Long>> versions = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    // Every chunk has at least this version
+    private volatile long epoch;
+
+    /**
+     * Get the current version of a chunk.
+     *
+     * @param world The world the chunk is in.
+     * @param chunkX The x coordinate of the chunk.
+     * @param chunkZ The z coordinate of the chunk.
+     * @return The version of the chunk.
+     */
+    public long getVersion(World world, int chunkX, int chunkZ) {
+        long epoch = this.epoch;
+        Map<Long, Long> worldVersions = versions.get(world.getUID());
+        if (worldVersions == null) return epoch;
+        return Math.max(epoch, worldVersions.getOrDefault(Chunk.getChunkKey(chunkX, chunkZ), 0L));
+    }
+
+    /**
+     * Mark a chunk as changed.
+     *
+     * @param world The world the chunk is in.
+     * @param chunkX The x coordinate of the chunk.
+     * @param chunkZ The z coordinate of the chunk.
+     * @return The new version of the chunk.
+     */
+    public long bump(World world, int chunkX, int chunkZ) {
+        long version = clock.incrementAndGet();
+        versions.computeIfAbsent(world.getUID(), k -> new ConcurrentHashMap<>()).put(Chunk.getChunkKey(chunkX, chunkZ), version);
+        return version;
+    }
+
+    /**
+     * Change the version of every chunk, so everything cached from the current world state is rebuilt on next use.
+     */
+    public void expireAll() {
+        epoch = clock.incrementAndGet();
+    }
+
+    /**
+     * Forget every version of a world, used when the world unloads.
+     *
+     * @param world The world.
+     */
+    public void clearWorld(World world) {
+        versions.remove(world.getUID());
+    }
+}
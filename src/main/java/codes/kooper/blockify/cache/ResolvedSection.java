@@ -0,0 +1,157 @@
+package codes.kooper.blockify.cache;
+
+import codes.kooper.blockify.models.View;
+import codes.kooper.blockify.storage.BlockSection;
+import codes.kooper.blockify.storage.BlockStateRegistry;
+import codes.kooper.blockify.types.BlockifyChunk;
+import org.bukkit.block.data.BlockData;
+
+import java.util.Arrays;
+
+/**
+ * The visible block of every position of a section across the views of a stage, resolved by zIndex once.
+ * Looking up the top view or state id of a position is then a single array read instead of a scan over all views.
+ * A resolved section is immutable and stays valid while the views of the stage and their section versions are unchanged.
+ * After single-position changes, {@link #refresh(View[], long, int)} copies it with only the changed positions resolved again.
+ */
+public final class ResolvedSection {
+    // Views can be referenced by a byte index, stages with more views are not resolved
+    static final int MAX_VIEWS = Byte.MAX_VALUE;
+    private static final char NONE = Character.MAX_VALUE;
+
+    private final View[] views;
+    private final long[] versions;
+    // Per index, the position in views of the top view holding a block, or -1
+    private final byte[] layers;
+    // Per index, the global block state id of the visible block, or NONE
+    private final char[] stateIds;
+
+    private ResolvedSection(View[] views, long[] versions, byte[] layers, char[] stateIds) {
+        this.views = views;
+        this.versions = versions;
+        this.layers = layers;
+        this.stateIds = stateIds;
+    }
+
+    /**
+     * Resolve a section.
+     *
+     * @param views The views of the stage ordered from top to bottom, see {@link codes.kooper.blockify.models.Stage#getOrderedViews()}.
+     * @param versions The section versions of the views, read before their sections.
+     * @param chunkKey The chunk key.
+     * @param sectionY The section y coordinate.
+     * @return The resolved section, or null if no view holds a block in the section.
+     */
+    static ResolvedSection resolve(View[] views, long[] versions, long chunkKey, int sectionY) {
+        BlockSection[] sections = new BlockSection[views.length];
+        long[] occupancy = new long[BlockSection.SIZE >> 6];
+        boolean any = false;
+        for (int layer = 0; layer < views.length; layer++) {
+            if (versions[layer] == 0) continue;
+            sections[layer] = views[layer].getSection(chunkKey, sectionY);
+            if (sections[layer] == null) continue;
+            long[] layerOccupancy = sections[layer].getOccupancy();
+            for (int word = 0; word < occupancy.length; word++) {
+                occupancy[word] |= layerOccupancy[word];
+            }
+            any = true;
+        }
+        if (!any) return null;
+
+        byte[] layers = new byte[BlockSection.SIZE];
+        char[] stateIds = new char[BlockSection.SIZE];
+        Arrays.fill(layers, (byte) -1);
+        Arrays.fill(stateIds, NONE);
+        // Top to bottom, every layer takes the positions still unresolved under one lock of its section
+        long[] unresolved = occupancy.clone();
+        for (int layer = 0; layer < sections.length; layer++) {
+            if (sections[layer] == null) continue;
+            sections[layer].copyGlobalIds(unresolved, stateIds);
+            for (int word = 0; word < occupancy.length; word++) {
+                long taken = occupancy[word] & ~unresolved[word];
+                occupancy[word] = unresolved[word];
+                while (taken != 0) {
+                    layers[(word << 6) | Long.numberOfTrailingZeros(taken)] = (byte) layer;
+                    taken &= taken - 1;
+                }
+            }
+        }
+        return new ResolvedSection(views, versions, layers, stateIds);
+    }
+
+    /**
+     * Bring the section up to date with the views of the stage.
+     *
+     * @param views The current views of the stage ordered from top to bottom.
+     * @param chunkKey The chunk key of the section.
+     * @param sectionY The section y coordinate.
+     * @return This section if no view changed it since it was resolved, a copy with the changed positions resolved again
+     * if every view that changed it did so with a single-position change, or null if it has to be resolved from scratch.
+     */
+    ResolvedSection refresh(View[] views, long chunkKey, int sectionY) {
+        if (views != this.views) return null;
+        long[] current = null;
+        int[] changed = null;
+        for (int layer = 0; layer < views.length; layer++) {
+            long version = views[layer].getSectionVersion(chunkKey, sectionY);
+            if (version == versions[layer]) continue;
+            int index = views[layer].getChangedIndex(chunkKey, sectionY, versions[layer], version);
+            if (index < 0) return null;
+            if (current == null) {
+                current = versions.clone();
+                changed = new int[views.length];
+                Arrays.fill(changed, -1);
+            }
+            current[layer] = version;
+            changed[layer] = index;
+        }
+        if (current == null) return this;
+
+        // Versions were read before the blocks below, so a concurrent change can never be cached under the new version
+        byte[] layers = this.layers.clone();
+        char[] stateIds = this.stateIds.clone();
+        BlockifyChunk chunk = BlockifyChunk.fromKey(chunkKey);
+        for (int index : changed) {
+            if (index < 0) continue;
+            layers[index] = -1;
+            stateIds[index] = NONE;
+            int x = (chunk.x() << 4) | (index & 15);
+            int y = (sectionY << 4) | (index >> 8);
+            int z = (chunk.z() << 4) | ((index >> 4) & 15);
+            for (int layer = 0; layer < views.length; layer++) {
+                if (current[layer] == 0) continue;
+                BlockData blockData = views[layer].getBlock(x, y, z);
+                if (blockData == null) continue;
+                layers[index] = (byte) layer;
+                stateIds[index] = (char) BlockStateRegistry.getGlobalId(blockData);
+                break;
+            }
+        }
+        return new ResolvedSection(views, current, layers, stateIds);
+    }
+
+    /**
+     * @param index The index within the section, see {@link BlockSection#index(int, int, int)}.
+     * @return The top view holding a block at the index, or null if none does.
+     */
+    public View getView(int index) {
+        byte layer = layers[index];
+        return layer < 0 ? null : views[layer];
+    }
+
+    /**
+     * @param index The index within the section, see {@link BlockSection#index(int, int, int)}.
+     * @return The global block state id of the visible block at the index, or -1 if no view holds a block there.
+     */
+    public int getStateId(int index) {
+        char stateId = stateIds[index];
+        return stateId == NONE ? -1 : stateId;
+    }
+
+    /**
+     * @return The estimated size of the section in bytes.
+     */
+    long bytes() {
+        return 64 + layers.length + 2L * stateIds.length + 8L * versions.length;
+    }
+}
@@ -0,0 +1,168 @@
+package codes.kooper.blockify.cache;
+
+import codes.kooper.blockify.models.Stage;
+import codes.kooper.blockify.models.View;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte-bounded cache of {@link ResolvedSection}s, the visible block of every position across the views of a stage.
+ * Sections are resolved on first use and again after a view of the stage changed them, or a view was added, removed
+ * or reordered, so only sections that are actually read are ever resolved. Single-position changes, such as a player
+ * breaking a block, only resolve the changed position again.
+ * <p>
+ * Reads never lock: entries live in a concurrent map and remember when they were last used, and the least recently
+ * used entries are evicted in a batch once the cache outgrows its budget.
+ */
+public class ResolvedSurfaceCache {
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicLong currentBytes = new AtomicLong();
+    @Getter
+    private volatile long maxBytes = DEFAULT_MAX_BYTES;
+
+    /**
+     * Get the resolved section of a stage, resolving it if it is missing or outdated.
+     *
+     * @param stage The stage.
+     * @param chunkKey The chunk key.
+     * @param sectionY The section y coordinate.
+     * @return The resolved section, or null if no view of the stage holds a block in the section.
+     */
+    public ResolvedSection get(Stage stage, long chunkKey, int sectionY) {
+        View[] views = stage.getOrderedViews();
+        if (views.length == 0 || views.length > ResolvedSection.MAX_VIEWS) return null;
+        Key key = new Key(stage, chunkKey, sectionY);
+        Entry cached = entries.get(key);
+        if (cached != null) {
+            ResolvedSection refreshed = cached.section.refresh(views, chunkKey, sectionY);
+            if (refreshed == cached.section) {
+                cached.lastUsed = clock.incrementAndGet();
+                return refreshed;
+            }
+            if (refreshed != null) {
+                put(key, refreshed);
+                return refreshed;
+            }
+        }
+
+        // Versions are read before the sections, so a concurrent change can never be cached under the new version
+        long[] versions = new long[views.length];
+        for (int layer = 0; layer < views.length; layer++) {
+            versions[layer] = views[layer].getSectionVersion(chunkKey, sectionY);
+        }
+        ResolvedSection resolved = ResolvedSection.resolve(views, versions, chunkKey, sectionY);
+        if (resolved == null) {
+            remove(key);
+        } else {
+            put(key, resolved);
+        }
+        return resolved;
+    }
+
+    /**
+     * Drop every resolved section of a stage, used when the stage is deleted.
+     *
+     * @param stage The stage.
+     */
+    public void invalidateStage(Stage stage) {
+        for (Key key : new ArrayList<>(entries.keySet())) {
+            if (key.stage() == stage) {
+                remove(key);
+            }
+        }
+    }
+
+    /**
+     * Set the byte budget of the cache, evicting entries if needed.
+     *
+     * @param maxBytes The maximum amount of bytes to keep cached, 0 disables the cache.
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    /**
+     * @return The estimated size of the resolved sections in bytes.
+     */
+    public long getCurrentBytes() {
+        return currentBytes.get();
+    }
+
+    /**
+     * @return The amount of resolved sections.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Drop every resolved section.
+     */
+    public void clear() {
+        for (Key key : new ArrayList<>(entries.keySet())) {
+            remove(key);
+        }
+    }
+
+    private void put(Key key, ResolvedSection section) {
+        if (section.bytes() > maxBytes) {
+            remove(key);
+            return;
+        }
+        Entry entry = new Entry(section, clock.incrementAndGet());
+        Entry previous = entries.put(key, entry);
+        currentBytes.addAndGet(section.bytes() - (previous == null ? 0 : previous.section.bytes()));
+        if (currentBytes.get() > maxBytes) {
+            evict();
+        }
+    }
+
+    private void remove(Key key) {
+        Entry previous = entries.remove(key);
+        if (previous != null) {
+            currentBytes.addAndGet(-previous.section.bytes());
+        }
+    }
+
+    /**
+     * Evict the least recently used entries until the cache is an eighth below its budget, so eviction runs in batches
+     * instead of on every resolved section. Only writers evict, and only one at a time.
+     */
+    private synchronized void evict() {
+        long max = maxBytes;
+        if (currentBytes.get() <= max) return;
+        List<Map.Entry<Key, Entry>> byAge = new ArrayList<>(entries.entrySet());
+        byAge.sort(Comparator.comparingLong(entry -> entry.getValue().lastUsed));
+        long target = max - (max >> 3);
+        for (Map.Entry<Key, Entry> eldest : byAge) {
+            if (currentBytes.get() <= target) break;
+            if (entries.remove(eldest.getKey(), eldest.getValue())) {
+                currentBytes.addAndGet(-eldest.getValue().section.bytes());
+            }
+        }
+    }
+
+    private record Key(Stage stage, long chunkKey, int sectionY) {
+    }
+
+    private static final class Entry {
+        private final ResolvedSection section;
+        // Clock value of the last read, only used to pick entries to evict
+        private volatile long lastUsed;
+
+        private Entry(ResolvedSection section, long lastUsed) {
+            this.section = section;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
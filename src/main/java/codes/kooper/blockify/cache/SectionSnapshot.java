@@ -0,0 +1,80 @@
+package codes.kooper.blockify.cache;
+
+import java.util.Arrays;
+
+/**
+ * Immutable copy of the real blocks of a 16x16x16 section, stored as a palette of global block state ids and one palette
+ * index per block. Blocks are indexed like {@link codes.kooper.blockify.storage.BlockSection#index(int, int, int)}.
+ */
+public final class SectionSnapshot {
+    private static final int SIZE = 4096;
+
+    private final int[] palette;
+    // Only one of these is set, depending on the palette size. Both are null for uniform sections.
+    private final byte[] byteIndices;
+    private final char[] charIndices;
+
+    private SectionSnapshot(int[] palette, byte[] byteIndices, char[] charIndices) {
+        this.palette = palette;
+        this.byteIndices = byteIndices;
+        this.charIndices = charIndices;
+    }
+
+    /**
+     * @param stateId The global block state id of every block in the section.
+     * @return A section where every block has the same state.
+     */
+    public static SectionSnapshot uniform(int stateId) {
+        return new SectionSnapshot(new int[]{stateId}, null, null);
+    }
+
+    /**
+     * Create a section from palette indices.
+     *
+     * @param palette The global block state ids, only the first paletteSize entries are used.
+     * @param paletteSize The amount of entries in the palette.
+     * @param indices The palette index of every block in the section.
+     * @return The section.
+     */
+    public static SectionSnapshot of(int[] palette, int paletteSize, char[] indices) {
+        int[] trimmed = Arrays.copyOf(palette, paletteSize);
+        if (paletteSize == 1) {
+            return new SectionSnapshot(trimmed, null, null);
+        }
+        if (paletteSize <= 256) {
+            byte[] bytes = new byte[SIZE];
+            for (int i = 0; i < SIZE; i++) {
+                bytes[i] = (byte) indices[i];
+            }
+            return new SectionSnapshot(trimmed, bytes, null);
+        }
+        return new SectionSnapshot(trimmed, null, indices.clone());
+    }
+
+    /**
+     * @param index The index of the block, see {@link codes.kooper.blockify.storage.BlockSection#index(int, int, int)}.
+     * @return The global block state id of the block.
+     */
+    public int get(int index) {
+        if (byteIndices != null) return palette[byteIndices[index] & 0xFF];
+        if (charIndices != null) return palette[charIndices[index]];
+        return palette[0];
+    }
+
+    /**
+     * @return True if every block in the section has the same state.
+     */
+    public boolean isUniform() {
+        return palette.length == 1;
+    }
+
+    /**
+     * @return The estimated size of the section in bytes.
+     */
+    public long bytes() {
+        long bytes = 32 + 4L * palette.length;
+        if (byteIndices != null) bytes += byteIndices.length;
+        if (charIndices != null) bytes += 2L * charIndices.length;
+        return bytes;
+    }
+}
@@ -0,0 +1,134 @@
+package codes.kooper.blockify.cache;
+
+import lombok.Getter;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte-bounded LRU cache of the last chunk packet the server sent for each chunk inside a stage, before any fake
+ * blocks were applied. Restoring the real view of a chunk resends the captured packet instead of rebuilding it from a
+ * snapshot, so biomes, heightmaps and light stay exactly as the server sent them.
+ * <p>
+ * Entries are stored with the version of the chunk at capture time, see {@link ChunkVersionTracker}, and are only
+ * served while that version is current.
+ */
+public class VanillaChunkCache {
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    @Getter
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+    @Getter
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    @Getter
+    private long currentBytes;
+
+    /**
+     * Get the captured packet of a chunk.
+     *
+     * @param world The uuid of the world the chunk is in.
+     * @param chunkKey The chunk key.
+     * @param worldVersion The current version of the chunk.
+     * @return The captured packet, or null if none was captured at this version.
+     */
+    public synchronized CachedChunkPacket get(UUID world, long chunkKey, long worldVersion) {
+        Entry entry = entries.get(new Key(world, chunkKey));
+        if (entry == null || entry.worldVersion() != worldVersion) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.packet();
+    }
+
+    /**
+     * Capture the packet of a chunk, replacing the previous capture.
+     *
+     * @param world The uuid of the world the chunk is in.
+     * @param chunkKey The chunk key.
+     * @param worldVersion The version of the chunk when the packet was sent.
+     * @param packet The packet, its column and light data must not be modified afterwards.
+     */
+    public synchronized void put(UUID world, long chunkKey, long worldVersion, CachedChunkPacket packet) {
+        if (packet.bytes() > maxBytes) return;
+        Entry previous = entries.put(new Key(world, chunkKey), new Entry(worldVersion, packet));
+        if (previous != null) {
+            currentBytes -= previous.packet().bytes();
+        }
+        currentBytes += packet.bytes();
+        evict();
+    }
+
+    /**
+     * Drop the captured packet of a chunk.
+     *
+     * @param world The uuid of the world the chunk is in.
+     * @param chunkKey The chunk key.
+     */
+    public synchronized void invalidate(UUID world, long chunkKey) {
+        Entry entry = entries.remove(new Key(world, chunkKey));
+        if (entry != null) {
+            currentBytes -= entry.packet().bytes();
+        }
+    }
+
+    /**
+     * Drop every captured packet of a world.
+     *
+     * @param world The uuid of the world.
+     */
+    public synchronized void invalidateWorld(UUID world) {
+        Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, Entry> entry = iterator.next();
+            if (entry.getKey().world().equals(world)) {
+                iterator.remove();
+                currentBytes -= entry.getValue().packet().bytes();
+            }
+        }
+    }
+
+    /**
+     * Set the byte budget of the cache, evicting entries if needed.
+     *
+     * @param maxBytes The maximum amount of bytes to keep cached, 0 disables the cache.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    /**
+     * @return The amount of captured packets.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Drop every captured packet.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        currentBytes = 0;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<Key, Entry> eldest = iterator.next();
+            iterator.remove();
+            currentBytes -= eldest.getValue().packet().bytes();
+        }
+    }
+
+    private record Key(UUID world, long chunkKey) {
+    }
+
+    private record Entry(long worldVersion, CachedChunkPacket packet) {
+    }
+}
@@ -0,0 +1,121 @@
+package codes.kooper.blockify.commands;
+
+import codes.kooper.blockify.Blockify;
+import codes.kooper.blockify.managers.BlockChangeManager;
+import codes.kooper.blockify.metrics.BlockifyMetrics;
+import codes.kooper.blockify.metrics.Counter;
+import codes.kooper.blockify.metrics.Histogram;
+import codes.kooper.blockify.metrics.PrometheusEndpoint;
+import codes.kooper.blockify.models.PlayerLayers;
+import org.bukkit.Bukkit;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
+import org.bukkit.command.TabExecutor;
+import org.bukkit.entity.Player;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * {@code /blockify metrics [player]}: a summary of {@link BlockifyMetrics}, or the layers and pending chunks of a player.
+ */
+public class BlockifyCommand implements TabExecutor {
+
+    @Override
+    public boolean onCommand(@NotNull CommandSender sender, @NotNull Command command, @NotNull String label, @NotNull String[] args) {
+        if (args.length == 0 || !args[0].equalsIgnoreCase("metrics")) {
+            sender.sendMessage("Usage: /" + label + " metrics [player]");
+            return true;
+        }
+        if (args.length > 1) {
+            Player player = Bukkit.getPlayerExact(args[1]);
+            if (player == null) {
+                sender.sendMessage("Player not found: " + args[1]);
+                return true;
+            }
+            sendPlayer(sender, player);
+            return true;
+        }
+        sendSummary(sender);
+        return true;
+    }
+
+    private void sendSummary(CommandSender sender) {
+        BlockifyMetrics metrics = Blockify.getInstance().getMetrics();
+        BlockChangeManager manager = Blockify.getInstance().getBlockChangeManager();
+        long hits = manager.getChunkPacketCache().getHits().get(), misses = manager.getChunkPacketCache().getMisses().get();
+
+        sender.sendMessage("Blockify metrics");
+        sender.sendMessage("Chunks sent: " + metrics.getChunksSent().get() + ", failed: " + metrics.getChunkSendErrors().get()
+                + ", cache hit rate: " + percent(hits, hits + misses));
+        sender.sendMessage("Chunk build: " + millis(metrics.getChunkBuildTime()));
+        sender.sendMessage("Chunk send: " + millis(metrics.getChunkSendTime()));
+        sender.sendMessage("Chunk size: avg " + kib(average(metrics.getChunkBytes())) + ", p99 " + kib(metrics.getChunkBytes().getPercentile(0.99)));
+        sender.sendMessage("Chunk cache: " + manager.getChunkPacketCache().size() + " chunks, " + kib(manager.getChunkPacketCache().getCurrentBytes()));
+        sender.sendMessage("Chunk queue: " + manager.getChunkSendScheduler().getPending() + " pending for " + manager.getChunkSendScheduler().getQueuedPlayers()
+                + " players, " + manager.getChunkSendPacer().getPlayerCount() + " refreshes running, " + metrics.getChunksCulled().get() + " chunks culled");
+        sender.sendMessage("Chunks per tick: p50 " + metrics.getChunksPerTick().getPercentile(0.5) + ", p99 " + metrics.getChunksPerTick().getPercentile(0.99)
+                + ", per player p99 " + metrics.getPlayerChunksPerTick().getPercentile(0.99));
+        sender.sendMessage("Packet guard: " + metrics.getGuardCorrections().get() + " blocks corrected, " + metrics.getChunksPatched().get() + " chunks patched");
+
+        List<String> mutations = new ArrayList<>();
+        for (Counter counter : List.of(metrics.getViewAdds(), metrics.getViewSets(), metrics.getViewRemoves(), metrics.getViewResets(), metrics.getViewFills(), metrics.getViewClears())) {
+            mutations.add(BlockifyMetrics.labelValue(counter.getLabels()) + " " + counter.get());
+        }
+        sender.sendMessage("View mutations: " + String.join(", ", mutations));
+        for (Histogram handler : List.of(metrics.getChunkDataHandler(), metrics.getBlockChangeHandler(), metrics.getMultiBlockChangeHandler(), metrics.getBlockPlacementHandler(), metrics.getDiggingHandler())) {
+            sender.sendMessage("Handler " + BlockifyMetrics.labelValue(handler.getLabels()) + ": " + millis(handler));
+        }
+
+        PrometheusEndpoint endpoint = Blockify.getInstance().getPrometheusEndpoint();
+        sender.sendMessage("Prometheus endpoint: " + (endpoint == null ? "disabled" : "http://" + endpoint.getAddress().getHostString() + ":" + endpoint.getAddress().getPort() + "/metrics"));
+    }
+
+    private void sendPlayer(CommandSender sender, Player player) {
+        BlockChangeManager manager = Blockify.getInstance().getBlockChangeManager();
+        PlayerLayers layers = manager.getLayers(player);
+        sender.sendMessage("Blockify metrics of " + player.getName());
+        sender.sendMessage("Views: " + (layers == null ? 0 : layers.getViews().length) + ", personal blocks: " + (layers == null ? 0 : layers.getOverrideCount()));
+        sender.sendMessage("Pending chunks: " + manager.getChunkSendScheduler().getPending(player.getUniqueId())
+                + ", rate: " + String.format(Locale.ROOT, "%.2f", manager.getChunkSendPacer().getRate(player.getUniqueId())) + " chunks per tick");
+    }
+
+    @Override
+    public List<String> onTabComplete(@NotNull CommandSender sender, @NotNull Command command, @NotNull String label, @NotNull String[] args) {
+        if (args.length == 1) return "metrics".startsWith(args[0].toLowerCase(Locale.ROOT)) ? List.of("metrics") : List.of();
+        if (args.length == 2 && args[0].equalsIgnoreCase("metrics")) {
+            List<String> names = new ArrayList<>();
+            for (Player player : Bukkit.getOnlinePlayers()) {
+                if (player.getName().toLowerCase(Locale.ROOT).startsWith(args[1].toLowerCase(Locale.ROOT))) {
+                    names.add(player.getName());
+                }
+            }
+            return names;
+        }
+        return List.of();
+    }
+
+    private static String millis(Histogram histogram) {
+        return "avg " + ms(average(histogram)) + ", p50 " + ms(histogram.getPercentile(0.5)) + ", p99 " + ms(histogram.getPercentile(0.99))
+                + " (" + histogram.getCount() + ")";
+    }
+
+    private static long average(Histogram histogram) {
+        long count = histogram.getCount();
+        return count == 0 ? 0 : histogram.getSum() / count;
+    }
+
+    private static String ms(long nanos) {
+        return String.format(Locale.ROOT, "%.2fms", nanos / 1e6);
+    }
+
+    private static String kib(long bytes) {
+        return String.format(Locale.ROOT, "%.1fKiB", bytes / 1024.0);
+    }
+
+    private static String percent(long part, long total) {
+        return total == 0 ? "-" : String.format(Locale.ROOT, "%.1f%%", 100.0 * part / total);
+    }
+}
@@ -0,0 +1,31 @@
+package codes.kooper.blockify.listeners;
+
+import codes.kooper.blockify.Blockify;
+import codes.kooper.blockify.models.Stage;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+/**
+ * Keeps the online members of audiences up to date as their players join and quit.
+ */
+public class AudienceListener implements Listener {
+
+    // Lowest, so other join handlers already see the player as an online member
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        for (Stage stage : Blockify.getInstance().getStageManager().getStages(event.getPlayer())) {
+            stage.getAudience().onPlayerJoin(event.getPlayer());
+        }
+    }
+
+    // Monitor, so other quit handlers still see the player as an online member
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        for (Stage stage : Blockify.getInstance().getStageManager().getStages(event.getPlayer())) {
+            stage.getAudience().onPlayerQuit(event.getPlayer());
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package codes.kooper.blockify.listeners;
+
+import codes.kooper.blockify.Blockify;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+/**
+ * Drops chunk sends that are still pending for players that log off.
+ */
+public class PlayerQuitListener implements Listener {
+
+    @EventHandler
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        Blockify.getInstance().getBlockChangeManager().cancelChunkSends(event.getPlayer().getUniqueId());
+    }
+}
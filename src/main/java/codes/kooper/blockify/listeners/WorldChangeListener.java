@@ -0,0 +1,148 @@
+package codes.kooper.blockify.listeners;
+
+import codes.kooper.blockify.Blockify;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.*;
+import org.bukkit.event.entity.EntityChangeBlockEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.world.StructureGrowEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Watches real block changes inside stages so cached chunk data built from the old world state is never reused.
+ * Events fire before the block changes, so every chunk is invalidated right away and again on the next tick: a snapshot
+ * or chunk packet taken in between would otherwise be cached under the new version with the old block.
+ */
+public class WorldChangeListener implements Listener {
+    // Chunks to invalidate again on the next tick, only touched on the main thread
+    private final Set<ChangedChunk> changed = new LinkedHashSet<>();
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBreak(BlockBreakEvent event) {
+        markChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPlace(BlockPlaceEvent event) {
+        markChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBurn(BlockBurnEvent event) {
+        markChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFade(BlockFadeEvent event) {
+        markChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockForm(BlockFormEvent event) {
+        markChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockGrow(BlockGrowEvent event) {
+        markChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockSpread(BlockSpreadEvent event) {
+        markChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFromTo(BlockFromToEvent event) {
+        markChanged(event.getToBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onLeavesDecay(LeavesDecayEvent event) {
+        markChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockExplode(BlockExplodeEvent event) {
+        markChanged(event.getBlock());
+        event.blockList().forEach(this::markChanged);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityExplode(EntityExplodeEvent event) {
+        event.blockList().forEach(this::markChanged);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityChangeBlock(EntityChangeBlockEvent event) {
+        markChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonExtend(BlockPistonExtendEvent event) {
+        markChanged(event.getBlock());
+        for (Block block : event.getBlocks()) {
+            markChanged(block);
+            markChanged(block.getRelative(event.getDirection()));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonRetract(BlockPistonRetractEvent event) {
+        markChanged(event.getBlock());
+        for (Block block : event.getBlocks()) {
+            markChanged(block);
+            markChanged(block.getRelative(event.getDirection()));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onStructureGrow(StructureGrowEvent event) {
+        for (BlockState state : event.getBlocks()) {
+            markChanged(state.getWorld(), state.getX() >> 4, state.getZ() >> 4);
+        }
+    }
+
+    @EventHandler
+    public void onWorldUnload(WorldUnloadEvent event) {
+        Blockify.getInstance().getChunkVersionTracker().clearWorld(event.getWorld());
+        Blockify.getInstance().getBlockChangeManager().getChunkPacketCache().invalidateWorld(event.getWorld().getUID());
+        Blockify.getInstance().getBlockChangeManager().getChunkSnapshotProvider().invalidateWorld(event.getWorld().getUID());
+        Blockify.getInstance().getBlockChangeManager().getVanillaChunkCache().invalidateWorld(event.getWorld().getUID());
+    }
+
+    private void markChanged(Block block) {
+        markChanged(block.getWorld(), block.getX() >> 4, block.getZ() >> 4);
+    }
+
+    private void markChanged(World world, int chunkX, int chunkZ) {
+        if (!Blockify.getInstance().getStageManager().isStageChunk(world, chunkX, chunkZ)) return;
+        Blockify.getInstance().getBlockChangeManager().invalidate(world, chunkX, chunkZ);
+        if (changed.isEmpty()) {
+            Bukkit.getScheduler().runTask(Blockify.getInstance(), this::invalidateChanged);
+        }
+        changed.add(new ChangedChunk(world, chunkX, chunkZ));
+    }
+
+    private void invalidateChanged() {
+        List<ChangedChunk> chunks = new ArrayList<>(changed);
+        changed.clear();
+        for (ChangedChunk chunk : chunks) {
+            Blockify.getInstance().getBlockChangeManager().invalidate(chunk.world(), chunk.chunkX(), chunk.chunkZ());
+        }
+    }
+
+    private record ChangedChunk(World world, int chunkX, int chunkZ) {
+    }
+}
@@ -1,10 +1,29 @@
 package codes.kooper.blockify.managers;
 
 import codes.kooper.blockify.Blockify;
+import codes.kooper.blockify.cache.CachedChunkPacket;
+import codes.kooper.blockify.cache.ChunkPacketCache;
+import codes.kooper.blockify.cache.ChunkPacketKey;
+import codes.kooper.blockify.cache.ChunkSnapshotData;
+import codes.kooper.blockify.cache.ChunkSnapshotProvider;
+import codes.kooper.blockify.cache.ResolvedSection;
+import codes.kooper.blockify.cache.ResolvedSurfaceCache;
+import codes.kooper.blockify.cache.SectionSnapshot;
+import codes.kooper.blockify.cache.VanillaChunkCache;
 import codes.kooper.blockify.events.OnBlockChangeSendEvent;
+import codes.kooper.blockify.metrics.BlockifyMetrics;
+import codes.kooper.blockify.metrics.ChunkBuildEvent;
 import codes.kooper.blockify.models.Audience;
+import codes.kooper.blockify.models.PlayerLayers;
 import codes.kooper.blockify.models.Stage;
 import codes.kooper.blockify.models.View;
+import codes.kooper.blockify.scheduler.ChunkSendPacer;
+import codes.kooper.blockify.scheduler.ChunkSendScheduler;
+import codes.kooper.blockify.shapes.Shape;
+import codes.kooper.blockify.storage.BlockSection;
+import codes.kooper.blockify.storage.BlockStateRegistry;
+import codes.kooper.blockify.storage.ChunkBlocks;
+import codes.kooper.blockify.types.BlockDelta;
 import codes.kooper.blockify.types.BlockifyChunk;
 import codes.kooper.blockify.types.BlockifyPosition;
 import com.github.retrooper.packetevents.PacketEvents;
@@ -12,105 +31,126 @@ import com.github.retrooper.packetevents.protocol.player.User;
 import com.github.retrooper.packetevents.protocol.world.chunk.BaseChunk;
 import com.github.retrooper.packetevents.protocol.world.chunk.Column;
 import com.github.retrooper.packetevents.protocol.world.chunk.LightData;
+import com.github.retrooper.packetevents.protocol.world.chunk.palette.DataPalette;
 import com.github.retrooper.packetevents.protocol.world.chunk.impl.v_1_18.Chunk_v1_18;
-import com.github.retrooper.packetevents.protocol.world.states.WrappedBlockState;
+import com.github.retrooper.packetevents.util.Vector3i;
+import com.github.retrooper.packetevents.wrapper.play.server.WrapperPlayServerBlockChange;
 import com.github.retrooper.packetevents.wrapper.play.server.WrapperPlayServerChunkData;
+import com.github.retrooper.packetevents.wrapper.play.server.WrapperPlayServerMultiBlockChange;
 import com.github.retrooper.packetevents.wrapper.play.server.WrapperPlayServerUnloadChunk;
-import io.github.retrooper.packetevents.util.SpigotConversionUtil;
-import io.papermc.paper.math.Position;
 import lombok.Getter;
 import org.bukkit.Bukkit;
-import org.bukkit.Chunk;
-import org.bukkit.ChunkSnapshot;
+import org.bukkit.World;
 import org.bukkit.block.data.BlockData;
 import org.bukkit.entity.Player;
-import org.bukkit.scheduler.BukkitTask;
 
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 
 @Getter
 public class BlockChangeManager {
-    private final ConcurrentHashMap<UUID, BukkitTask> blockChangeTasks = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<BlockData, Integer> blockDataToId = new ConcurrentHashMap<>();
-    private final ExecutorService executorService = Executors.newCachedThreadPool();
-
-    // Per-player block changes: PlayerUUID -> (BlockifyChunk -> (BlockifyPosition -> BlockData))
-    // This is updated incrementally as views are added/removed or blocks change.
-    private final Map<UUID, Map<BlockifyChunk, Map<BlockifyPosition, BlockData>>> playerBlockChanges = new ConcurrentHashMap<>();
-
-    // Track which blocks came from which view for each player:
-    // PlayerUUID -> (ViewName -> (Chunk -> Positions))
-    private final Map<UUID, Map<String, Map<BlockifyChunk, Set<BlockifyPosition>>>> playerViewBlocks = new ConcurrentHashMap<>();
+    private static final View[] NO_VIEWS = new View[0];
+
+    // Bounded, per-player prioritized chunk building
+    private final ChunkSendScheduler chunkSendScheduler = new ChunkSendScheduler(this::processAndSendChunk, ChunkSendScheduler.defaultThreads());
+    // Paces stage refreshes per player, started by the plugin on enable
+    private final ChunkSendPacer chunkSendPacer = new ChunkSendPacer(chunkSendScheduler);
+
+    // Built chunk columns shared between players that see the same content
+    private final ChunkPacketCache chunkPacketCache = new ChunkPacketCache();
+    // Real chunk contents as palette-indexed sections, reused between rebuilds until the chunk changes
+    private final ChunkSnapshotProvider chunkSnapshotProvider = new ChunkSnapshotProvider(this::getStateId);
+    // Chunk packets of the server, resent as they were when a chunk has no fake blocks left
+    private final VanillaChunkCache vanillaChunkCache = new VanillaChunkCache();
+    // Visible block of every position across the views of a stage, shared by every player that sees all of them
+    private final ResolvedSurfaceCache resolvedSurfaceCache = new ResolvedSurfaceCache();
+
+    // Per-player visible state: PlayerUUID -> references to shared view layers + personal overrides
+    // Memory grows with the amount of views and overrides, never with players times blocks.
+    private final Map<UUID, PlayerLayers> playerLayers = new ConcurrentHashMap<>();
 
     public void initializePlayer(Player player) {
-        playerBlockChanges.computeIfAbsent(player.getUniqueId(), k -> new ConcurrentHashMap<>());
-        playerViewBlocks.computeIfAbsent(player.getUniqueId(), k -> new ConcurrentHashMap<>());
+        playerLayers.computeIfAbsent(player.getUniqueId(), k -> new PlayerLayers());
     }
 
     public void removePlayer(Player player) {
-        playerBlockChanges.remove(player.getUniqueId());
-        playerViewBlocks.remove(player.getUniqueId());
+        playerLayers.remove(player.getUniqueId());
+    }
+
+    /**
+     * Get the layers a player sees.
+     *
+     * @return The layers, or null if the player was never initialized.
+     */
+    public PlayerLayers getLayers(Player player) {
+        return playerLayers.get(player.getUniqueId());
     }
 
     /**
      * Hide a view from a player.
-     * This removes the view's blocks from the player's cache and then sends updated blocks so the player no longer sees them.
+     * This removes the view layer from the player and then sends only the positions that changed so the player no longer sees them.
      */
     public void hideView(Player player, View view) {
-        removeViewFromPlayer(player, view);
-        view.getStage().sendBlocksToAudience();
+        sendBlockDelta(player, view.getStage(), removeViewFromPlayer(player, view));
     }
 
     /**
-     * Add a view's blocks to a player's cache in place.
+     * Add a view layer to a player.
+     *
+     * @return The positions whose visible block changed for the player.
      */
-    public void addViewToPlayer(Player player, View view) {
-        Map<BlockifyChunk, Map<BlockifyPosition, BlockData>> playerCache = playerBlockChanges.get(player.getUniqueId());
-        Map<String, Map<BlockifyChunk, Set<BlockifyPosition>>> viewMap = playerViewBlocks.get(player.getUniqueId());
-
-        if (playerCache == null || viewMap == null) return;
-
-        Map<BlockifyChunk, Set<BlockifyPosition>> viewBlockPositions = new HashMap<>();
-
-        // Merge view blocks into player cache
-        for (Map.Entry<BlockifyChunk, ConcurrentHashMap<BlockifyPosition, BlockData>> chunkEntry : view.getBlocks().entrySet()) {
-            BlockifyChunk chunk = chunkEntry.getKey();
-            Map<BlockifyPosition, BlockData> chunkMap = playerCache.computeIfAbsent(chunk, c -> new ConcurrentHashMap<>());
-
-            for (Map.Entry<BlockifyPosition, BlockData> posEntry : chunkEntry.getValue().entrySet()) {
-                chunkMap.put(posEntry.getKey(), posEntry.getValue());
-                viewBlockPositions.computeIfAbsent(chunk, c -> new HashSet<>()).add(posEntry.getKey());
+    public BlockDelta addViewToPlayer(Player player, View view) {
+        BlockDelta delta = new BlockDelta();
+        PlayerLayers layers = playerLayers.get(player.getUniqueId());
+
+        if (layers == null || !layers.addView(view)) return delta;
+
+        // Only positions where the new layer ends up on top change for the player
+        World world = view.getStage().getWorld();
+        view.forEachBlock((x, y, z, data) -> {
+            BlockData visible = layers.getBlock(world, x, y, z);
+            if (!Objects.equals(visible, layers.getBlock(world, x, y, z, view))) {
+                delta.set(new BlockifyPosition(x, y, z), visible);
             }
-        }
-
-        viewMap.put(view.getName(), viewBlockPositions);
+        });
+        return delta;
     }
 
     /**
-     * Remove a view's blocks from a player's cache in place.
+     * Remove a view layer from a player.
+     *
+     * @return The positions whose visible block changed for the player.
      */
-    public void removeViewFromPlayer(Player player, View view) {
-        Map<BlockifyChunk, Map<BlockifyPosition, BlockData>> playerCache = playerBlockChanges.get(player.getUniqueId());
-        Map<String, Map<BlockifyChunk, Set<BlockifyPosition>>> viewMap = playerViewBlocks.get(player.getUniqueId());
-
-        if (playerCache == null || viewMap == null) return;
-
-        Map<BlockifyChunk, Set<BlockifyPosition>> viewBlocks = viewMap.remove(view.getName());
-        if (viewBlocks == null) return;
+    public BlockDelta removeViewFromPlayer(Player player, View view) {
+        BlockDelta delta = new BlockDelta();
+        PlayerLayers layers = playerLayers.get(player.getUniqueId());
+
+        if (layers == null) return delta;
+        if (!layers.hasView(view)) {
+            layers.removeView(view);
+            return delta;
+        }
 
-        // Remove only the blocks associated with this view
-        for (Map.Entry<BlockifyChunk, Set<BlockifyPosition>> chunkEntry : viewBlocks.entrySet()) {
-            Map<BlockifyPosition, BlockData> chunkMap = playerCache.get(chunkEntry.getKey());
-            if (chunkMap != null) {
-                for (BlockifyPosition pos : chunkEntry.getValue()) {
-                    chunkMap.remove(pos);
-                }
-                if (chunkMap.isEmpty()) {
-                    playerCache.remove(chunkEntry.getKey());
-                }
+        // Positions fall through to the next layer below, or to the real world block
+        World world = view.getStage().getWorld();
+        view.forEachBlock((x, y, z, data) -> {
+            BlockData below = layers.getBlock(world, x, y, z, view);
+            if (!Objects.equals(layers.getBlock(world, x, y, z), below)) {
+                delta.set(new BlockifyPosition(x, y, z), below);
             }
+        });
+        layers.removeView(view);
+        return delta;
+    }
+
+    /**
+     * Attach a view layer to every member of its stage audience that does not have it yet.
+     * Players that explicitly removed the view are left alone.
+     */
+    public void attachView(View view) {
+        for (UUID player : view.getStage().getAudience().getPlayers()) {
+            playerLayers.computeIfAbsent(player, k -> new PlayerLayers()).attachView(view);
         }
     }
 
@@ -118,61 +158,42 @@ public class BlockChangeManager {
      * Apply a single block change for a player. If data is null, remove block.
      */
     public void applyBlockChange(Player player, BlockifyChunk chunk, BlockifyPosition pos, BlockData data, String viewName) {
-        Map<BlockifyChunk, Map<BlockifyPosition, BlockData>> playerCache = playerBlockChanges.computeIfAbsent(player.getUniqueId(), k -> new ConcurrentHashMap<>());
-        Map<BlockifyPosition, BlockData> chunkMap = playerCache.computeIfAbsent(chunk, c -> new ConcurrentHashMap<>());
-        Map<String, Map<BlockifyChunk, Set<BlockifyPosition>>> viewMap = playerViewBlocks.computeIfAbsent(player.getUniqueId(), k -> new HashMap<>());
-
-        if (data == null) {
-            // Remove block
-            chunkMap.remove(pos);
-            if (chunkMap.isEmpty()) {
-                playerCache.remove(chunk);
-            }
+        applyBlockChange(player, pos.getX(), pos.getY(), pos.getZ(), data, viewName);
+    }
 
-            // Also remove from the associated view if known
-            if (viewName != null) {
-                Map<BlockifyChunk, Set<BlockifyPosition>> viewChunks = viewMap.get(viewName);
-                if (viewChunks != null) {
-                    Set<BlockifyPosition> positions = viewChunks.get(chunk);
-                    if (positions != null) {
-                        positions.remove(pos);
-                        if (positions.isEmpty()) {
-                            viewChunks.remove(chunk);
-                            if (viewChunks.isEmpty()) {
-                                viewMap.remove(viewName);
-                            }
-                        }
-                    }
-                }
-            }
-        } else {
-            // Add or update block
-            chunkMap.put(pos, data);
-
-            if (viewName != null) {
-                viewMap.computeIfAbsent(viewName, k -> new HashMap<>())
-                        .computeIfAbsent(chunk, c -> new HashSet<>())
-                        .add(pos);
-            }
-        }
+    /**
+     * Apply a single block change for a player. If data is null, remove block.
+     * Views are shared layers, so a change made through a view (viewName set) is already visible to everyone who has it
+     * and needs no per-player update. Changes without a view name are stored as personal overrides of the player.
+     */
+    public void applyBlockChange(Player player, int x, int y, int z, BlockData data, String viewName) {
+        if (viewName != null) return;
+        playerLayers.computeIfAbsent(player.getUniqueId(), k -> new PlayerLayers()).setOverride(player.getWorld(), x, y, z, data);
     }
 
     /**
-     * Retrieve block changes for a player filtered by requested chunks.
+     * Retrieve the resolved block changes for a player filtered by requested chunks, copied into plain maps.
      */
     private Map<BlockifyChunk, Map<BlockifyPosition, BlockData>> getBlockChangesForPlayer(Player player, Collection<BlockifyChunk> chunks) {
-        Map<BlockifyChunk, Map<BlockifyPosition, BlockData>> changes = playerBlockChanges.get(player.getUniqueId());
-        if (changes == null || changes.isEmpty()) {
+        PlayerLayers layers = playerLayers.get(player.getUniqueId());
+        if (layers == null || chunks.isEmpty()) {
             return Collections.emptyMap();
         }
 
-        if (chunks.isEmpty()) return Collections.emptyMap();
-
+        // Write layers from the bottom up, so the block that ends up in the map is the one on top
+        View[] ordered = layers.getOrderedViews(player.getWorld());
         Map<BlockifyChunk, Map<BlockifyPosition, BlockData>> result = new HashMap<>();
         for (BlockifyChunk chunk : chunks) {
-            Map<BlockifyPosition, BlockData> data = changes.get(chunk);
-            if (data != null && !data.isEmpty()) {
-                result.put(chunk, data);
+            Map<BlockifyPosition, BlockData> chunkMap = new HashMap<>();
+            for (int i = ordered.length - 1; i >= 0; i--) {
+                ordered[i].forEachBlock(chunk.getChunkKey(), (x, y, z, blockData) -> chunkMap.put(new BlockifyPosition(x, y, z), blockData));
+            }
+            ChunkBlocks overrides = layers.getOverrides(player.getWorld(), chunk.getChunkKey());
+            if (overrides != null) {
+                overrides.forEach((x, y, z, blockData) -> chunkMap.put(new BlockifyPosition(x, y, z), blockData));
+            }
+            if (!chunkMap.isEmpty()) {
+                result.put(chunk, chunkMap);
             }
         }
         return result;
@@ -183,158 +204,537 @@ public class BlockChangeManager {
     }
 
     public void sendBlockChanges(Stage stage, Audience audience, Collection<BlockifyChunk> chunks, boolean unload) {
-        for (Player player : audience.getOnlinePlayers()) {
+        for (Player player : audience.getOnlineMembers()) {
             if (!player.isOnline() || player.getWorld() != stage.getWorld()) continue;
 
-            Map<BlockifyChunk, Map<BlockifyPosition, BlockData>> blockChanges = getBlockChangesForPlayer(player, chunks);
-            Bukkit.getScheduler().runTask(Blockify.getInstance(), () -> new OnBlockChangeSendEvent(stage, blockChanges).callEvent());
-
-            AtomicInteger chunkIndex = new AtomicInteger(0);
-            List<BlockifyChunk> chunkList = new ArrayList<>(chunks);
-
-            BukkitTask task = Bukkit.getScheduler().runTaskTimer(Blockify.getInstance(), () -> {
-                if (chunkIndex.get() >= chunkList.size()) {
-                    cancelTask(player.getUniqueId());
-                    return;
-                }
-                for (int i = 0; i < stage.getChunksPerTick() && chunkIndex.get() < chunkList.size(); i++) {
-                    sendChunkPacket(player, chunkList.get(chunkIndex.getAndIncrement()), unload);
-                }
-            }, 0L, 1L);
+            // Only copy the player's blocks into maps when someone listens for them
+            if (OnBlockChangeSendEvent.getHandlerList().getRegisteredListeners().length > 0) {
+                Map<BlockifyChunk, Map<BlockifyPosition, BlockData>> blockChanges = getBlockChangesForPlayer(player, chunks);
+                Bukkit.getScheduler().runTask(Blockify.getInstance(), () -> new OnBlockChangeSendEvent(stage, blockChanges).callEvent());
+            }
 
-            blockChangeTasks.put(player.getUniqueId(), task);
+            chunkSendPacer.refresh(player, stage, chunks, unload);
         }
     }
 
     public void sendMultiBlockChange(Player player, Set<BlockifyPosition> blocks) {
-        final Map<Position, BlockData> blocksToSend = new HashMap<>();
+        final Map<BlockifyPosition, BlockData> blocksToSend = new HashMap<>();
+        PlayerLayers layers = playerLayers.get(player.getUniqueId());
+        if (layers == null) return;
+        World world = player.getWorld();
         for (BlockifyPosition position : blocks) {
-            BlockData blockData = playerBlockChanges.get(player.getUniqueId()).get(position.toBlockifyChunk()).get(position);
+            BlockData blockData = layers.getBlock(world, position.getX(), position.getY(), position.getZ());
             if (blockData == null) continue;
-            blocksToSend.put(position.toPosition(), blockData);
+            blocksToSend.put(position, blockData);
         }
-        player.sendMultiBlockChange(blocksToSend);
+        sendBlocks(player, blocksToSend);
     }
 
-    private void cancelTask(UUID playerId) {
-        Optional.ofNullable(blockChangeTasks.remove(playerId)).ifPresent(BukkitTask::cancel);
+    public void sendMultiBlockChange(Player player, Shape shape) {
+        final Map<BlockifyPosition, BlockData> blocksToSend = new HashMap<>();
+        PlayerLayers layers = playerLayers.get(player.getUniqueId());
+        if (layers == null) return;
+        World world = player.getWorld();
+        shape.forEach((x, y, z) -> {
+            BlockData blockData = layers.getBlock(world, x, y, z);
+            if (blockData != null) {
+                blocksToSend.put(new BlockifyPosition(x, y, z), blockData);
+            }
+        });
+        sendBlocks(player, blocksToSend);
+    }
+
+    /**
+     * Send blocks to a player as they are, one block change packet for a single block and one multi block change
+     * packet per section otherwise. The packets are sent silently, so {@link codes.kooper.blockify.protocol.BlockChangeGuardAdapter}
+     * never rewrites blocks Blockify sends on purpose, such as a fake block put back after a cancelled break.
+     *
+     * @param player The player to send the blocks to.
+     * @param blocks The blocks to send.
+     */
+    public void sendBlocks(Player player, Map<BlockifyPosition, BlockData> blocks) {
+        if (blocks.isEmpty() || !player.isOnline()) return;
+        User packetUser = PacketEvents.getAPI().getPlayerManager().getUser(player);
+        if (blocks.size() == 1) {
+            Map.Entry<BlockifyPosition, BlockData> entry = blocks.entrySet().iterator().next();
+            BlockifyPosition position = entry.getKey();
+            Vector3i blockPosition = new Vector3i(position.getX(), position.getY(), position.getZ());
+            packetUser.sendPacketSilently(new WrapperPlayServerBlockChange(blockPosition, getStateId(entry.getValue())));
+            return;
+        }
+
+        Map<Vector3i, List<WrapperPlayServerMultiBlockChange.EncodedBlock>> sections = new HashMap<>();
+        for (Map.Entry<BlockifyPosition, BlockData> entry : blocks.entrySet()) {
+            BlockifyPosition position = entry.getKey();
+            Vector3i sectionPosition = new Vector3i(position.getX() >> 4, position.getY() >> 4, position.getZ() >> 4);
+            sections.computeIfAbsent(sectionPosition, k -> new ArrayList<>())
+                    .add(new WrapperPlayServerMultiBlockChange.EncodedBlock(getStateId(entry.getValue()), position.getX(), position.getY(), position.getZ()));
+        }
+        for (Map.Entry<Vector3i, List<WrapperPlayServerMultiBlockChange.EncodedBlock>> section : sections.entrySet()) {
+            WrapperPlayServerMultiBlockChange.EncodedBlock[] encodedBlocks = section.getValue().toArray(new WrapperPlayServerMultiBlockChange.EncodedBlock[0]);
+            packetUser.sendPacketSilently(new WrapperPlayServerMultiBlockChange(section.getKey(), true, encodedBlocks));
+        }
+    }
+
+    /**
+     * Send the exact positions that changed for a player.
+     * Changes are grouped per 16x16x16 section into multi block change packets. When a section has more changes than
+     * the stage's multi block change threshold, the whole chunk is resent instead, since that is cheaper for the client.
+     * Chunks the player has not been sent yet are skipped, they are built with the new state once they are sent.
+     *
+     * @param player The player to send the changes to.
+     * @param stage The stage the changes belong to.
+     * @param delta The changes.
+     */
+    public void sendBlockDelta(Player player, Stage stage, BlockDelta delta) {
+        if (delta.isEmpty() || !player.isOnline() || player.getWorld() != stage.getWorld()) return;
+        if (!Bukkit.isPrimaryThread()) {
+            Bukkit.getScheduler().runTask(Blockify.getInstance(), () -> sendBlockDelta(player, stage, delta));
+            return;
+        }
+
+        World world = stage.getWorld();
+        User packetUser = PacketEvents.getAPI().getPlayerManager().getUser(player);
+        if (OnBlockChangeSendEvent.getHandlerList().getRegisteredListeners().length > 0) {
+            new OnBlockChangeSendEvent(stage, delta.getChanges()).callEvent();
+        }
+
+        for (Map.Entry<BlockifyChunk, Map<BlockifyPosition, BlockData>> chunkEntry : delta.getChanges().entrySet()) {
+            BlockifyChunk chunk = chunkEntry.getKey();
+            if (!player.isChunkSent(chunk.getChunkKey())) continue;
+
+            // Group the changes of this chunk by section
+            Map<Integer, List<Map.Entry<BlockifyPosition, BlockData>>> sections = new HashMap<>();
+            boolean fullChunk = false;
+            for (Map.Entry<BlockifyPosition, BlockData> entry : chunkEntry.getValue().entrySet()) {
+                List<Map.Entry<BlockifyPosition, BlockData>> sectionChanges = sections.computeIfAbsent(entry.getKey().getY() >> 4, k -> new ArrayList<>());
+                sectionChanges.add(entry);
+                if (sectionChanges.size() > stage.getMultiBlockChangeThreshold()) {
+                    fullChunk = true;
+                    break;
+                }
+            }
+
+            if (fullChunk) {
+                sendChunkPacket(player, chunk, false);
+                continue;
+            }
+
+            for (Map.Entry<Integer, List<Map.Entry<BlockifyPosition, BlockData>>> sectionEntry : sections.entrySet()) {
+                List<Map.Entry<BlockifyPosition, BlockData>> sectionChanges = sectionEntry.getValue();
+                WrapperPlayServerMultiBlockChange.EncodedBlock[] encodedBlocks = new WrapperPlayServerMultiBlockChange.EncodedBlock[sectionChanges.size()];
+                for (int i = 0; i < encodedBlocks.length; i++) {
+                    BlockifyPosition position = sectionChanges.get(i).getKey();
+                    BlockData data = sectionChanges.get(i).getValue();
+                    if (data == null) {
+                        data = world.getBlockData(position.getX(), position.getY(), position.getZ());
+                    }
+                    int stateId = getStateId(data);
+                    encodedBlocks[i] = new WrapperPlayServerMultiBlockChange.EncodedBlock(stateId, position.getX(), position.getY(), position.getZ());
+                }
+                Vector3i sectionPosition = new Vector3i(chunk.x(), sectionEntry.getKey(), chunk.z());
+                packetUser.sendPacketSilently(new WrapperPlayServerMultiBlockChange(sectionPosition, true, encodedBlocks));
+            }
+        }
+    }
+
+    /**
+     * Cancel every pending chunk send of a player, for example when they log off.
+     */
+    public void cancelChunkSends(UUID player) {
+        chunkSendPacer.cancel(player);
+        chunkSendScheduler.cancel(player);
+    }
+
+    /**
+     * Cancel the pending chunk sends of a player within a stage, for example when they leave the stage.
+     */
+    public void cancelChunkSends(UUID player, Stage stage) {
+        chunkSendPacer.cancel(player, stage);
+        chunkSendScheduler.cancel(player, stage.getChunkKeys());
+    }
+
+    /**
+     * Drop every snapshot and chunk packet cached for a chunk after its real blocks changed.
+     * Changes that fire a Bukkit event and changes the server sends to players are picked up on their own. Call this
+     * after changing blocks in a stage without either, for example with {@code Block#setType} in a chunk no player
+     * watches, or the old blocks may be resent until the cache expires, see {@code chunks.cache-ttl-seconds}.
+     *
+     * @param world The world the chunk is in.
+     * @param chunkX The x coordinate of the chunk.
+     * @param chunkZ The z coordinate of the chunk.
+     */
+    public void invalidate(World world, int chunkX, int chunkZ) {
+        if (!Blockify.getInstance().getStageManager().isStageChunk(world, chunkX, chunkZ)) return;
+        // Moving the version is enough to stop the entries from being used, dropping them frees their memory
+        Blockify.getInstance().getChunkVersionTracker().bump(world, chunkX, chunkZ);
+        long chunkKey = BlockifyChunk.key(chunkX, chunkZ);
+        chunkPacketCache.invalidate(world.getUID(), chunkKey);
+        chunkSnapshotProvider.invalidate(world.getUID(), chunkKey);
+        vanillaChunkCache.invalidate(world.getUID(), chunkKey);
     }
 
     public void sendChunkPacket(Player player, BlockifyChunk chunk, boolean unload) {
-        executorService.submit(() -> processAndSendChunk(player, chunk, unload));
+        chunkSendScheduler.submit(player, chunk, unload);
     }
 
     private void processAndSendChunk(Player player, BlockifyChunk chunk, boolean unload) {
+        ChunkBuildEvent event = new ChunkBuildEvent();
+        event.begin();
+        long start = System.nanoTime();
+        BlockifyMetrics metrics = Blockify.getInstance().getMetrics();
+
         try {
             User packetUser = PacketEvents.getAPI().getPlayerManager().getUser(player);
+            World world = player.getWorld();
             int ySections = packetUser.getTotalWorldHeight() >> 4;
-            Map<BlockifyPosition, BlockData> blockData = null;
+            PlayerLayers layers = unload ? null : playerLayers.get(player.getUniqueId());
+            View[] views = layers == null ? NO_VIEWS : layers.getOrderedViews(world);
+            ChunkBlocks overrides = layers == null ? null : layers.getOverrides(world, chunk.getChunkKey());
+
+            // The world version is read before the snapshot, so a concurrent block change can never be cached under the new version
+            long worldVersion = Blockify.getInstance().getChunkVersionTracker().getVersion(world, chunk.x(), chunk.z());
+            ChunkPacketKey key = new ChunkPacketKey(world.getUID(), chunk.getChunkKey(), fingerprint(chunk.getChunkKey(), views, overrides), worldVersion);
+            // Without fake blocks the chunk is exactly what the server sent, if that packet was captured
+            CachedChunkPacket packet = key.fingerprint() == 0 ? vanillaChunkCache.get(world.getUID(), chunk.getChunkKey(), worldVersion) : null;
+            if (packet == null) {
+                packet = chunkPacketCache.get(key);
+            }
+            boolean cached = packet != null;
+            if (packet == null) {
+                long buildStart = System.nanoTime();
+                ChunkSnapshotData snapshot = chunkSnapshotProvider.get(world, chunk.x(), chunk.z());
+                packet = buildChunkPacket(chunk, ySections, world.getMinHeight() >> 4, snapshot, views, overrides);
+                chunkPacketCache.put(key, packet);
+                metrics.getChunkBuildTime().record(System.nanoTime() - buildStart);
+            }
 
-            if (!unload) {
-                blockData = getBlockChangesForPlayer(player, Collections.singleton(chunk)).get(chunk);
+            WrapperPlayServerUnloadChunk wrapperPlayServerUnloadChunk = new WrapperPlayServerUnloadChunk(chunk.x(), chunk.z());
+            packetUser.sendPacketSilently(wrapperPlayServerUnloadChunk);
+            WrapperPlayServerChunkData chunkData = new WrapperPlayServerChunkData(packet.column(), packet.lightData());
+            packetUser.sendPacketSilently(chunkData);
+            chunkSendPacer.recordSent(packet.bytes());
+
+            metrics.getChunksSent().increment();
+            metrics.getChunkBytes().record(packet.bytes());
+            metrics.getChunkSendTime().record(System.nanoTime() - start);
+            if (event.shouldCommit()) {
+                event.setPlayer(player.getName());
+                event.setChunkX(chunk.x());
+                event.setChunkZ(chunk.z());
+                event.setCached(cached);
+                event.setLayers(views.length);
+                event.setBytes(packet.bytes());
+                event.commit();
             }
+        } catch (Exception e) {
+            metrics.getChunkSendErrors().increment();
+            Blockify.getInstance().getLogger().log(Level.WARNING, "Failed to send chunk " + chunk + " to " + player.getName(), e);
+        }
+    }
 
-            Map<BlockData, WrappedBlockState> blockDataToState = new HashMap<>();
-            List<BaseChunk> chunks = new ArrayList<>(ySections);
-            Chunk bukkitChunk = player.getWorld().getChunkAt(chunk.x(), chunk.z());
-            ChunkSnapshot chunkSnapshot = bukkitChunk.getChunkSnapshot();
-            int maxHeight = player.getWorld().getMaxHeight();
-            int minHeight = player.getWorld().getMinHeight();
-
-            BlockData[][][][] defaultBlockData = new BlockData[ySections][16][16][16];
-            for (int section = 0; section < ySections; section++) {
-                int baseY = (section << 4) + minHeight;
-                for (int x = 0; x < 16; x++) {
-                    for (int y = 0; y < 16; y++) {
-                        int worldY = baseY + y;
-                        if (worldY >= minHeight && worldY < maxHeight) {
-                            for (int z = 0; z < 16; z++) {
-                                defaultBlockData[section][x][y][z] = chunkSnapshot.getBlockData(x, worldY, z);
-                            }
-                        }
+    /**
+     * Apply the fake blocks of a player to a chunk column sent by the server.
+     * Sections without fake blocks, biomes, heightmaps and light are left as the server sent them.
+     * The column itself is never written to, since it may be captured in the {@link VanillaChunkCache}:
+     * sections holding fake blocks are copied into a new column. Sections of another format than {@link Chunk_v1_18}
+     * cannot be copied and are left unpatched.
+     *
+     * @param player The player the column is sent to.
+     * @param column The decoded column.
+     * @return The patched column, or null if the player sees no fake blocks in the chunk.
+     */
+    public Column patchChunkPacket(Player player, Column column) {
+        PlayerLayers layers = playerLayers.get(player.getUniqueId());
+        if (layers == null) return null;
+        long chunkKey = BlockifyChunk.key(column.getX(), column.getZ());
+        View[] views = layers.getOrderedViews(player.getWorld());
+        ChunkBlocks overrides = layers.getOverrides(player.getWorld(), chunkKey);
+        int minSection = player.getWorld().getMinHeight() >> 4;
+
+        BaseChunk[] sections = column.getChunks().clone();
+        boolean patched = false;
+        for (int section = 0; section < sections.length; section++) {
+            BlockSection[] fakeSections = layerSections(chunkKey, section + minSection, views, overrides);
+            if (fakeSections.length == 0) continue;
+            // Only sections that can be copied are patched, any other section is sent as the server built it
+            if (!(sections[section] instanceof Chunk_v1_18 original)) continue;
+
+            // Only positions holding a block in some layer are visited, the union of the occupancy bitmaps
+            long[] occupancy = fakeSections[0].getOccupancy();
+            for (int layer = 1; layer < fakeSections.length; layer++) {
+                long[] layerOccupancy = fakeSections[layer].getOccupancy();
+                for (int word = 0; word < occupancy.length; word++) {
+                    occupancy[word] |= layerOccupancy[word];
+                }
+            }
+
+            BaseChunk baseChunk = null;
+            for (int word = 0; word < occupancy.length; word++) {
+                long bits = occupancy[word];
+                while (bits != 0) {
+                    int index = (word << 6) | Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+
+                    // Layers are ordered from top to bottom, the first one holding a block wins
+                    int stateId = -1;
+                    for (int layer = 0; layer < fakeSections.length && stateId < 0; layer++) {
+                        stateId = fakeSections[layer].getGlobalId(index);
+                    }
+                    // Removed concurrently since the bitmaps were copied, the server block stays
+                    if (stateId < 0) continue;
+                    if (baseChunk == null) {
+                        baseChunk = copySection(original);
+                        sections[section] = baseChunk;
                     }
+                    baseChunk.set(index & 15, index >> 8, (index >> 4) & 15, stateId);
+                    patched = true;
                 }
             }
+        }
+        if (!patched) return null;
+        return new Column(column.getX(), column.getZ(), column.isFullChunk(), sections, column.getTileEntities(), column.getHeightMaps());
+    }
 
-            byte[] fullLightSection = new byte[2048];
-            Arrays.fill(fullLightSection, (byte) 0xFF);
-            byte[][] fullLightArray = new byte[ySections][];
-            BitSet fullBitSet = new BitSet(ySections);
-            for (int i = 0; i < ySections; i++) {
-                fullLightArray[i] = fullLightSection;
-                fullBitSet.set(i);
+    /**
+     * Capture a chunk packet of the server for chunks inside a stage, so restoring the real chunk later resends it
+     * instead of rebuilding it. The column and light data must not be modified afterwards.
+     *
+     * @param world The world the chunk is in.
+     * @param column The decoded column, before any fake blocks are applied.
+     * @param lightData The light data sent with the column.
+     */
+    public void captureVanillaChunk(World world, Column column, LightData lightData) {
+        long worldVersion = Blockify.getInstance().getChunkVersionTracker().getVersion(world, column.getX(), column.getZ());
+        long bytes = 0;
+        for (BaseChunk section : column.getChunks()) {
+            if (section instanceof Chunk_v1_18 chunk) {
+                bytes += estimateBytes(chunk);
             }
-            BitSet emptyBitSet = new BitSet(ySections);
-
-            for (int section = 0; section < ySections; section++) {
-                Chunk_v1_18 baseChunk = new Chunk_v1_18();
-
-                long baseY = (section << 4) + minHeight;
-                for (int x = 0; x < 16; x++) {
-                    for (int y = 0; y < 16; y++) {
-                        long worldY = baseY + y;
-                        if (worldY >= minHeight && worldY < maxHeight) {
-                            for (int z = 0; z < 16; z++) {
-                                BlockData data = null;
-                                BlockifyPosition position = new BlockifyPosition(x + (chunk.x() << 4),
-                                        (section << 4) + y + minHeight, z + (chunk.z() << 4));
-
-                                if (!unload && blockData != null) {
-                                    data = blockData.get(position);
-                                }
-
-                                if (data == null) {
-                                    data = defaultBlockData[section][x][y][z];
-                                }
-
-                                WrappedBlockState state = blockDataToState.computeIfAbsent(data, SpigotConversionUtil::fromBukkitBlockData);
-                                baseChunk.set(x, y, z, state);
-                            }
+        }
+        bytes += estimateBytes(lightData.getSkyLightArray()) + estimateBytes(lightData.getBlockLightArray());
+        vanillaChunkCache.put(world.getUID(), BlockifyChunk.key(column.getX(), column.getZ()), worldVersion, new CachedChunkPacket(column, lightData, bytes));
+    }
+
+    /**
+     * Copy the block states of a section into a new section, sharing the biomes of the original.
+     */
+    private static BaseChunk copySection(Chunk_v1_18 original) {
+        Chunk_v1_18 copy = new Chunk_v1_18(0, DataPalette.createForChunk(), original.getBiomeData());
+        if (original.isEmpty()) return copy;
+        for (int index = 0; index < 4096; index++) {
+            int stateId = original.getBlockId(index & 15, index >> 8, (index >> 4) & 15);
+            if (stateId != 0) {
+                copy.set(index & 15, index >> 8, (index >> 4) & 15, stateId);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Build the chunk column for a chunk with the given fake blocks applied over the real world.
+     * Package-private so the benchmarks can build chunks from synthetic snapshots.
+     */
+    CachedChunkPacket buildChunkPacket(BlockifyChunk chunk, int ySections, int minSection, ChunkSnapshotData snapshot, View[] views, ChunkBlocks overrides) {
+        List<BaseChunk> chunks = new ArrayList<>(ySections);
+
+        byte[] fullLightSection = new byte[2048];
+        Arrays.fill(fullLightSection, (byte) 0xFF);
+        byte[][] fullLightArray = new byte[ySections][];
+        BitSet fullBitSet = new BitSet(ySections);
+        for (int i = 0; i < ySections; i++) {
+            fullLightArray[i] = fullLightSection;
+            fullBitSet.set(i);
+        }
+        BitSet emptyBitSet = new BitSet(ySections);
+
+        // When the player sees exactly the views of one stage here, their blocks come from its resolved surface
+        Stage surfaceStage = surfaceStage(chunk.getChunkKey(), views);
+        long bytes = 2L * fullLightSection.length;
+        for (int section = 0; section < ySections; section++) {
+            Chunk_v1_18 baseChunk = new Chunk_v1_18();
+            ResolvedSection surface = null;
+            BlockSection[] fakeSections;
+            if (surfaceStage == null) {
+                fakeSections = layerSections(chunk.getChunkKey(), section + minSection, views, overrides);
+            } else {
+                surface = resolvedSurfaceCache.get(surfaceStage, chunk.getChunkKey(), section + minSection);
+                fakeSections = layerSections(chunk.getChunkKey(), section + minSection, NO_VIEWS, overrides);
+            }
+            SectionSnapshot realSection = snapshot.getSection(section + minSection);
+
+            // New sections are all air (state id 0), so only other states have to be written
+            if (fakeSections.length == 0 && surface == null) {
+                if (realSection != null && !(realSection.isUniform() && realSection.get(0) == 0)) {
+                    for (int index = 0; index < 4096; index++) {
+                        int stateId = realSection.get(index);
+                        if (stateId != 0) {
+                            baseChunk.set(index & 15, index >> 8, (index >> 4) & 15, stateId);
                         }
                     }
                 }
-
-                int biomeId = baseChunk.getBiomeData().palette.stateToId(1);
-                int storageSize = baseChunk.getBiomeData().storage.getData().length;
-                for (int index = 0; index < storageSize; index++) {
-                    baseChunk.getBiomeData().storage.set(index, biomeId);
+            } else {
+                for (int index = 0; index < 4096; index++) {
+                    // Layers are ordered from top to bottom, the first one holding a block wins
+                    int stateId = -1;
+                    for (int layer = 0; layer < fakeSections.length && stateId < 0; layer++) {
+                        stateId = fakeSections[layer].getGlobalId(index);
+                    }
+                    if (stateId < 0 && surface != null) {
+                        stateId = surface.getStateId(index);
+                    }
+                    if (stateId < 0) {
+                        stateId = realSection == null ? 0 : realSection.get(index);
+                    }
+                    if (stateId != 0) {
+                        baseChunk.set(index & 15, index >> 8, (index >> 4) & 15, stateId);
+                    }
                 }
+            }
 
-                chunks.add(baseChunk);
+            int biomeId = baseChunk.getBiomeData().palette.stateToId(1);
+            int storageSize = baseChunk.getBiomeData().storage.getData().length;
+            for (int index = 0; index < storageSize; index++) {
+                baseChunk.getBiomeData().storage.set(index, biomeId);
             }
 
-            LightData lightData = new LightData();
-            lightData.setBlockLightArray(fullLightArray);
-            lightData.setSkyLightArray(fullLightArray);
-            lightData.setBlockLightCount(ySections);
-            lightData.setSkyLightCount(ySections);
-            lightData.setBlockLightMask(fullBitSet);
-            lightData.setSkyLightMask(fullBitSet);
-            lightData.setEmptyBlockLightMask(emptyBitSet);
-            lightData.setEmptySkyLightMask(emptyBitSet);
-
-            Column column = new Column(chunk.x(), chunk.z(), true, chunks.toArray(BaseChunk[]::new), null);
-            WrapperPlayServerUnloadChunk wrapperPlayServerUnloadChunk = new WrapperPlayServerUnloadChunk(chunk.x(), chunk.z());
-            packetUser.sendPacketSilently(wrapperPlayServerUnloadChunk);
-            WrapperPlayServerChunkData chunkData = new WrapperPlayServerChunkData(column, lightData);
-            packetUser.sendPacketSilently(chunkData);
-        } catch (Exception e) {
-            e.printStackTrace();
+            bytes += estimateBytes(baseChunk);
+            chunks.add(baseChunk);
         }
+
+        LightData lightData = new LightData();
+        lightData.setBlockLightArray(fullLightArray);
+        lightData.setSkyLightArray(fullLightArray);
+        lightData.setBlockLightCount(ySections);
+        lightData.setSkyLightCount(ySections);
+        lightData.setBlockLightMask(fullBitSet);
+        lightData.setSkyLightMask(fullBitSet);
+        lightData.setEmptyBlockLightMask(emptyBitSet);
+        lightData.setEmptySkyLightMask(emptyBitSet);
+
+        Column column = new Column(chunk.x(), chunk.z(), true, chunks.toArray(BaseChunk[]::new), null);
+        return new CachedChunkPacket(column, lightData, bytes);
     }
 
-    public void shutdown() {
-        executorService.shutdown();
-        try {
-            if (!executorService.awaitTermination(60, TimeUnit.SECONDS)) {
-                executorService.shutdownNow();
-                if (!executorService.awaitTermination(60, TimeUnit.SECONDS)) {
-                    System.err.println("Executor service did not terminate");
+    /**
+     * Get the global block state id of block data, as sent to clients.
+     */
+    public int getStateId(BlockData blockData) {
+        return BlockStateRegistry.getGlobalId(blockData);
+    }
+
+    /**
+     * Estimate the retained size of light arrays, used to bound the vanilla chunk cache.
+     */
+    private static long estimateBytes(byte[][] lightArrays) {
+        long bytes = 0;
+        if (lightArrays != null) {
+            for (byte[] array : lightArrays) {
+                if (array != null) {
+                    bytes += array.length;
                 }
             }
-        } catch (InterruptedException e) {
-            executorService.shutdownNow();
-            Thread.currentThread().interrupt();
         }
+        return bytes;
+    }
+
+    /**
+     * Estimate the retained size of a built section, used to bound the chunk packet caches.
+     */
+    private static long estimateBytes(Chunk_v1_18 section) {
+        long bytes = 128;
+        if (section.getChunkData().storage != null) {
+            bytes += (long) section.getChunkData().storage.getData().length << 3;
+        }
+        if (section.getBiomeData().storage != null) {
+            bytes += (long) section.getBiomeData().storage.getData().length << 3;
+        }
+        return bytes;
+    }
+
+    /**
+     * Find the stage whose resolved surface gives the same blocks as the view layers of a player in a chunk:
+     * every layer holding blocks in the chunk belongs to that stage, and they are all of its views that do, in the same order.
+     *
+     * @return The stage, or null if the layers have to be resolved one by one.
+     */
+    private static Stage surfaceStage(long chunkKey, View[] views) {
+        Stage stage = null;
+        int layers = 0;
+        for (View view : views) {
+            if (view.getChunkVersion(chunkKey) == 0) continue;
+            if (stage == null) {
+                stage = view.getStage();
+            } else if (view.getStage() != stage) {
+                return null;
+            }
+            layers++;
+        }
+        if (stage == null) return null;
+
+        int layer = 0;
+        for (View stageView : stage.getOrderedViews()) {
+            if (stageView.getChunkVersion(chunkKey) == 0) continue;
+            // Skip the player's layers without blocks here, they are not part of the surface either
+            while (layer < views.length && views[layer].getChunkVersion(chunkKey) == 0) {
+                layer++;
+            }
+            if (layer == views.length || views[layer] != stageView) return null;
+            layer++;
+            layers--;
+        }
+        return layers == 0 ? stage : null;
+    }
+
+    /**
+     * Collect the sections of every layer at a section position, ordered from top to bottom.
+     */
+    private BlockSection[] layerSections(long chunkKey, int sectionY, View[] views, ChunkBlocks overrides) {
+        List<BlockSection> sections = new ArrayList<>(views.length + 1);
+        if (overrides != null && overrides.getSection(sectionY) != null) {
+            sections.add(overrides.getSection(sectionY));
+        }
+        for (View view : views) {
+            BlockSection section = view.getSection(chunkKey, sectionY);
+            if (section != null) {
+                sections.add(section);
+            }
+        }
+        return sections.toArray(BlockSection[]::new);
+    }
+
+    /**
+     * Fingerprint of the fake blocks of a chunk: which layers touch the chunk, in which order, and at which version.
+     * Players with the same effective layers get the same fingerprint, so they share cached packets.
+     *
+     * @return The fingerprint, or 0 if there are no fake blocks.
+     */
+    private long fingerprint(long chunkKey, View[] views, ChunkBlocks overrides) {
+        long fingerprint = 0;
+        boolean any = false;
+        for (View view : views) {
+            long version = view.getChunkVersion(chunkKey);
+            if (version == 0) continue;
+            fingerprint = mix(fingerprint + view.getId());
+            fingerprint = mix(fingerprint + version);
+            any = true;
+        }
+        if (overrides != null && !overrides.isEmpty()) {
+            // Chunk versions are unique across all chunks, so personal overrides never collide with another player's
+            fingerprint = mix(fingerprint ^ overrides.getVersion());
+            any = true;
+        }
+        return any ? fingerprint | 1 : 0;
+    }
+
+    private static long mix(long hash) {
+        hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+        hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    public void shutdown() {
+        chunkSendPacer.stop();
+        chunkSendScheduler.shutdown();
     }
-}
\ No newline at end of file
+}
@@ -3,22 +3,38 @@ package codes.kooper.blockify.managers;
 import codes.kooper.blockify.Blockify;
 import codes.kooper.blockify.events.CreateStageEvent;
 import codes.kooper.blockify.events.DeleteStageEvent;
+import codes.kooper.blockify.models.Audience;
 import codes.kooper.blockify.models.Stage;
+import codes.kooper.blockify.storage.LongObjectMap;
+import codes.kooper.blockify.types.BlockifyChunk;
 import lombok.Getter;
 import org.bukkit.Bukkit;
+import org.bukkit.World;
 import org.bukkit.entity.Player;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Getter
 public class StageManager {
+    private static final Stage[] NO_STAGES = new Stage[0];
+
     private final Map<String, Stage> stages;
+    // World UUID -> chunk key -> stages covering the chunk
+    private final Map<UUID, LongObjectMap<Stage[]>> chunkIndex;
+    // Player UUID -> stages whose audience contains the player
+    private final Map<UUID, List<Stage>> playerIndex;
+    // Audience -> stages shown to the audience, so members joining or leaving only visit their own stages
+    private final Map<Audience, List<Stage>> audienceIndex;
+    // Stage -> chunk keys the stage is indexed under, so it can be removed even after its bounds changed
+    private final Map<Stage, long[]> indexedChunks;
 
     public StageManager() {
-        this.stages = new HashMap<>();
+        this.stages = new ConcurrentHashMap<>();
+        this.chunkIndex = new ConcurrentHashMap<>();
+        this.playerIndex = new ConcurrentHashMap<>();
+        this.audienceIndex = new ConcurrentHashMap<>();
+        this.indexedChunks = new ConcurrentHashMap<>();
     }
 
     /**
@@ -26,12 +42,16 @@ public class StageManager {
      * @param stage Stage to create
      */
     public void createStage(Stage stage) {
-        if (stages.containsKey(stage.getName())) {
+        if (stages.putIfAbsent(stage.getName(), stage) != null) {
             Blockify.getInstance().getLogger().warning("Stage with name " + stage.getName() + " already exists!");
             return;
         }
         Bukkit.getScheduler().runTask(Blockify.getInstance(), () -> new CreateStageEvent(stage).callEvent());
-        stages.put(stage.getName(), stage);
+        index(audienceIndex, stage.getAudience(), stage);
+        indexChunks(stage);
+        for (UUID player : stage.getAudience().getPlayers()) {
+            index(playerIndex, player, stage);
+        }
     }
 
     /**
@@ -49,7 +69,15 @@ public class StageManager {
      */
     public void deleteStage(String name) {
         new DeleteStageEvent(stages.get(name)).callEvent();
-        stages.remove(name);
+        Stage stage = stages.remove(name);
+        if (stage == null) return;
+        unindex(audienceIndex, stage.getAudience(), stage);
+        unindexChunks(stage);
+        Blockify.getInstance().getBlockChangeManager().getResolvedSurfaceCache().invalidateStage(stage);
+        for (UUID player : stage.getAudience().getPlayers()) {
+            unindex(playerIndex, player, stage);
+            Blockify.getInstance().getBlockChangeManager().cancelChunkSends(player, stage);
+        }
     }
 
     /**
@@ -62,16 +90,116 @@ public class StageManager {
     }
 
     /**
-     * Get all stages
-     * @return List of stages
+     * Get all stages of a player
+     * @param player Player
+     * @return Immutable list of stages, shared between calls
      */
     public List<Stage> getStages(Player player) {
-        List<Stage> stages = new ArrayList<>();
-        for (Stage stage : this.stages.values()) {
-            if (stage.getAudience().getPlayers().contains(player.getUniqueId())) {
-                stages.add(stage);
-            }
+        return playerIndex.getOrDefault(player.getUniqueId(), Collections.emptyList());
+    }
+
+    /**
+     * Get the stages covering a chunk
+     * @param world World of the chunk
+     * @param chunkX X coordinate of the chunk
+     * @param chunkZ Z coordinate of the chunk
+     * @return Array of stages, shared between calls and must not be modified
+     */
+    public Stage[] getStagesAt(World world, int chunkX, int chunkZ) {
+        LongObjectMap<Stage[]> worldIndex = chunkIndex.get(world.getUID());
+        if (worldIndex == null) return NO_STAGES;
+        Stage[] stagesAt = worldIndex.get(BlockifyChunk.key(chunkX, chunkZ));
+        return stagesAt == null ? NO_STAGES : stagesAt;
+    }
+
+    /**
+     * Check if a chunk is covered by any stage
+     * @param world World of the chunk
+     * @param chunkX X coordinate of the chunk
+     * @param chunkZ Z coordinate of the chunk
+     * @return boolean
+     */
+    public boolean isStageChunk(World world, int chunkX, int chunkZ) {
+        return getStagesAt(world, chunkX, chunkZ).length > 0;
+    }
+
+    /**
+     * Update the chunk index of a stage after its bounds changed
+     * @param stage Stage
+     */
+    public void reindexStage(Stage stage) {
+        if (!indexedChunks.containsKey(stage)) return;
+        unindexChunks(stage);
+        indexChunks(stage);
+    }
+
+    /**
+     * Called by {@link Audience} when a player was added to it
+     * @param audience Audience
+     * @param player UUID of the player
+     */
+    public void onAudienceJoin(Audience audience, UUID player) {
+        for (Stage stage : audienceIndex.getOrDefault(audience, Collections.emptyList())) {
+            index(playerIndex, player, stage);
+        }
+    }
+
+    /**
+     * Called by {@link Audience} when a player was removed from it
+     * @param audience Audience
+     * @param player UUID of the player
+     */
+    public void onAudienceLeave(Audience audience, UUID player) {
+        for (Stage stage : audienceIndex.getOrDefault(audience, Collections.emptyList())) {
+            unindex(playerIndex, player, stage);
+            Blockify.getInstance().getBlockChangeManager().cancelChunkSends(player, stage);
         }
-        return stages;
     }
-}
\ No newline at end of file
+
+    private void indexChunks(Stage stage) {
+        long[] keys = stage.getChunkKeys();
+        indexedChunks.put(stage, keys);
+        chunkIndex.computeIfAbsent(stage.getWorld().getUID(), k -> new LongObjectMap<>())
+                .computeAll(keys, (key, current) -> with(current, stage));
+    }
+
+    private void unindexChunks(Stage stage) {
+        long[] keys = indexedChunks.remove(stage);
+        LongObjectMap<Stage[]> worldIndex = chunkIndex.get(stage.getWorld().getUID());
+        if (keys == null || worldIndex == null) return;
+        worldIndex.computeAll(keys, (key, current) -> without(current, stage));
+    }
+
+    private static <K> void index(Map<K, List<Stage>> index, K key, Stage stage) {
+        index.compute(key, (k, current) -> {
+            if (current != null && current.contains(stage)) return current;
+            List<Stage> updated = current == null ? new ArrayList<>(1) : new ArrayList<>(current);
+            updated.add(stage);
+            return List.copyOf(updated);
+        });
+    }
+
+    private static <K> void unindex(Map<K, List<Stage>> index, K key, Stage stage) {
+        index.computeIfPresent(key, (k, current) -> {
+            List<Stage> updated = new ArrayList<>(current);
+            updated.remove(stage);
+            return updated.isEmpty() ? null : List.copyOf(updated);
+        });
+    }
+
+    private static Stage[] with(Stage[] current, Stage stage) {
+        if (current == null) return new Stage[]{stage};
+        for (Stage existing : current) {
+            if (existing == stage) return current;
+        }
+        Stage[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = stage;
+        return updated;
+    }
+
+    private static Stage[] without(Stage[] current, Stage stage) {
+        if (current == null) return null;
+        Stage[] updated = Arrays.stream(current).filter(existing -> existing != stage).toArray(Stage[]::new);
+        return updated.length == 0 ? null : updated;
+    }
+}
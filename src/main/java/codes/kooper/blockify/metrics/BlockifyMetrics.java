@@ -0,0 +1,218 @@
+package codes.kooper.blockify.metrics;
+
+import codes.kooper.blockify.managers.BlockChangeManager;
+import codes.kooper.blockify.models.PlayerLayers;
+import com.github.retrooper.packetevents.event.CancellableEvent;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Counters and histograms of the hot paths: chunk building and sending, pacing, view changes and packet listeners.
+ * Everything is recorded lock-free and read when collected, by the {@code /blockify metrics} command or the
+ * {@link PrometheusEndpoint}. Chunk sends, packet handling and edit sessions are also emitted as Java Flight Recorder
+ * events, see {@link ChunkBuildEvent}, {@link PacketHandlerEvent} and {@link EditSessionEvent}.
+ */
+@Getter
+public class BlockifyMetrics {
+    // 10 microseconds up to about 1.3 seconds
+    private static final long[] NANOS = Histogram.exponential(10_000, 2, 18);
+    // 1 KiB up to 8 MiB
+    private static final long[] BYTES = Histogram.exponential(1024, 2, 14);
+    private static final long[] CHUNKS = {0, 1, 2, 4, 8, 16, 32, 64, 128, 256, 512};
+    private static final double NANOS_TO_SECONDS = 1e-9;
+
+    private final Histogram chunkBuildTime = new Histogram("blockify_chunk_build_seconds", "Time to build a chunk packet that was not cached", NANOS_TO_SECONDS, NANOS);
+    private final Histogram chunkSendTime = new Histogram("blockify_chunk_send_seconds", "Time to look up or build a chunk packet and send it", NANOS_TO_SECONDS, NANOS);
+    private final Histogram chunkBytes = new Histogram("blockify_chunk_packet_bytes", "Estimated size of sent chunk packets", 1, BYTES);
+    private final Histogram chunksPerTick = new Histogram("blockify_chunks_per_tick", "Chunks handed to the chunk builders per tick, while refreshes run", 1, CHUNKS);
+    private final Histogram playerChunksPerTick = new Histogram("blockify_player_chunks_per_tick", "Chunks handed to the chunk builders per player and tick, while their refreshes run", 1, CHUNKS);
+    private final Counter chunksSent = new Counter("blockify_chunks_sent_total", "Chunks sent to players", "");
+    private final Counter chunkSendErrors = new Counter("blockify_chunk_send_errors_total", "Chunks that failed to build or send", "");
+    private final Counter chunksPatched = new Counter("blockify_chunks_patched_total", "Chunk packets of the server patched with fake blocks", "");
+    private final Counter chunksCulled = new Counter("blockify_chunks_culled_total", "Chunks of refreshes skipped because they were out of view or not loaded by the player", "");
+    private final Counter guardCorrections = new Counter("blockify_guard_corrections_total", "Blocks in block changes of the server rewritten to the fake block the player sees", "");
+
+    private final Counter viewAdds = mutations("add");
+    private final Counter viewSets = mutations("set");
+    private final Counter viewRemoves = mutations("remove");
+    private final Counter viewResets = mutations("reset");
+    private final Counter viewFills = mutations("fill");
+    private final Counter viewClears = mutations("clear");
+
+    private final Histogram chunkDataHandler = handler("chunk_data");
+    private final Histogram blockChangeHandler = handler("block_change");
+    private final Histogram multiBlockChangeHandler = handler("multi_block_change");
+    private final Histogram blockPlacementHandler = handler("block_placement");
+    private final Histogram diggingHandler = handler("player_digging");
+
+    @Getter(AccessLevel.NONE)
+    private final List<Gauge> gauges = new ArrayList<>();
+
+    private static Counter mutations(String op) {
+        return new Counter("blockify_view_mutations_total", "Blocks changed in views, fills and clears count once per view", "op=\"" + op + "\"");
+    }
+
+    private static Histogram handler(String name) {
+        return new Histogram("blockify_packet_handler_seconds", "Time spent by packet listeners on the packets they handle", "handler=\"" + name + "\"", NANOS_TO_SECONDS, NANOS);
+    }
+
+    /**
+     * Register the gauges that read the state of the chunk pipeline and player layers when collected.
+     *
+     * @param manager The block change manager.
+     */
+    public void registerGauges(BlockChangeManager manager) {
+        gauge("blockify_chunk_queue_pending", "Chunks waiting for a chunk builder", "gauge", () -> manager.getChunkSendScheduler().getPending());
+        gauge("blockify_chunk_queue_players", "Players with chunks waiting for a chunk builder", "gauge", () -> manager.getChunkSendScheduler().getQueuedPlayers());
+        gauge("blockify_chunk_pacer_players", "Players with a stage refresh running", "gauge", () -> manager.getChunkSendPacer().getPlayerCount());
+        gauge("blockify_chunk_cache_entries", "Chunk packets in the chunk packet cache", "gauge", () -> manager.getChunkPacketCache().size());
+        gauge("blockify_chunk_cache_bytes", "Estimated size of the chunk packet cache", "gauge", () -> manager.getChunkPacketCache().getCurrentBytes());
+        gauge("blockify_chunk_cache_hits_total", "Chunk packets served from the cache", "counter", () -> manager.getChunkPacketCache().getHits().get());
+        gauge("blockify_chunk_cache_misses_total", "Chunk packets that had to be built", "counter", () -> manager.getChunkPacketCache().getMisses().get());
+        gauge("blockify_vanilla_chunk_cache_entries", "Captured chunk packets of the server", "gauge", () -> manager.getVanillaChunkCache().size());
+        gauge("blockify_vanilla_chunk_cache_bytes", "Estimated size of the captured chunk packets", "gauge", () -> manager.getVanillaChunkCache().getCurrentBytes());
+        gauge("blockify_vanilla_chunk_cache_hits_total", "Chunks restored from a captured packet", "counter", () -> manager.getVanillaChunkCache().getHits().get());
+        gauge("blockify_vanilla_chunk_cache_misses_total", "Chunks without fake blocks that had no captured packet", "counter", () -> manager.getVanillaChunkCache().getMisses().get());
+        gauge("blockify_resolved_sections", "Sections with the visible block of every position resolved across the views of a stage", "gauge", () -> manager.getResolvedSurfaceCache().size());
+        gauge("blockify_resolved_sections_bytes", "Estimated size of the resolved sections", "gauge", () -> manager.getResolvedSurfaceCache().getCurrentBytes());
+        gauge("blockify_players", "Players with view layers", "gauge", () -> manager.getPlayerLayers().size());
+        gauge("blockify_player_views", "View layers of all players", "gauge", () -> {
+            long views = 0;
+            for (PlayerLayers layers : manager.getPlayerLayers().values()) {
+                views += layers.getViews().length;
+            }
+            return views;
+        });
+        gauge("blockify_player_override_blocks", "Personal blocks of all players", "gauge", () -> {
+            long blocks = 0;
+            for (PlayerLayers layers : manager.getPlayerLayers().values()) {
+                blocks += layers.getOverrideCount();
+            }
+            return blocks;
+        });
+        gauge("blockify_player_override_blocks_max", "Personal blocks of the player with the most", "gauge", () -> {
+            long max = 0;
+            for (PlayerLayers layers : manager.getPlayerLayers().values()) {
+                max = Math.max(max, layers.getOverrideCount());
+            }
+            return max;
+        });
+    }
+
+    /**
+     * Add a value that is read when the metrics are collected.
+     *
+     * @param name The exported name.
+     * @param help The description of the value.
+     * @param type The Prometheus type, gauge or counter.
+     * @param value The supplier of the value.
+     */
+    public synchronized void gauge(String name, String help, String type, DoubleSupplier value) {
+        gauges.add(new Gauge(name, help, type, value));
+    }
+
+    /**
+     * Run a packet listener and record how long it took.
+     *
+     * @param latency The histogram of the listener.
+     * @param event The packet event.
+     * @param handler The listener body.
+     */
+    public void handle(Histogram latency, CancellableEvent event, Runnable handler) {
+        PacketHandlerEvent jfrEvent = new PacketHandlerEvent();
+        jfrEvent.begin();
+        long start = System.nanoTime();
+        try {
+            handler.run();
+        } finally {
+            latency.record(System.nanoTime() - start);
+            if (jfrEvent.shouldCommit()) {
+                jfrEvent.setHandler(labelValue(latency.getLabels()));
+                jfrEvent.setCancelled(event.isCancelled());
+                jfrEvent.commit();
+            }
+        }
+    }
+
+    /**
+     * @return Every histogram, in export order.
+     */
+    public List<Histogram> getHistograms() {
+        return List.of(chunkBuildTime, chunkSendTime, chunkBytes, chunksPerTick, playerChunksPerTick,
+                chunkDataHandler, blockChangeHandler, multiBlockChangeHandler, blockPlacementHandler, diggingHandler);
+    }
+
+    /**
+     * @return Every counter, in export order.
+     */
+    public List<Counter> getCounters() {
+        return List.of(chunksSent, chunkSendErrors, chunksPatched, chunksCulled, guardCorrections, viewAdds, viewSets, viewRemoves, viewResets, viewFills, viewClears);
+    }
+
+    /**
+     * Write every metric in the Prometheus text exposition format.
+     *
+     * @param out The text to append to.
+     */
+    public void writePrometheus(StringBuilder out) {
+        Set<String> described = new HashSet<>();
+        for (Counter counter : getCounters()) {
+            describe(out, described, counter.getName(), counter.getHelp(), "counter");
+            out.append(counter.getName()).append(labels(counter.getLabels(), null)).append(' ').append(counter.get()).append('\n');
+        }
+        for (Histogram histogram : getHistograms()) {
+            describe(out, described, histogram.getName(), histogram.getHelp(), "histogram");
+            long[] bounds = histogram.getBounds();
+            long[] counts = histogram.getBucketCounts();
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += counts[i];
+                String le = format(bounds[i] * histogram.getScale());
+                out.append(histogram.getName()).append("_bucket").append(labels(histogram.getLabels(), le)).append(' ').append(cumulative).append('\n');
+            }
+            cumulative += counts[bounds.length];
+            out.append(histogram.getName()).append("_bucket").append(labels(histogram.getLabels(), "+Inf")).append(' ').append(cumulative).append('\n');
+            out.append(histogram.getName()).append("_sum").append(labels(histogram.getLabels(), null)).append(' ').append(format(histogram.getSum() * histogram.getScale())).append('\n');
+            out.append(histogram.getName()).append("_count").append(labels(histogram.getLabels(), null)).append(' ').append(cumulative).append('\n');
+        }
+        List<Gauge> current;
+        synchronized (this) {
+            current = new ArrayList<>(gauges);
+        }
+        for (Gauge gauge : current) {
+            describe(out, described, gauge.name(), gauge.help(), gauge.type());
+            out.append(gauge.name()).append(' ').append(format(gauge.value().getAsDouble())).append('\n');
+        }
+    }
+
+    /**
+     * @param labels A single label, for example op="add".
+     * @return The value of the label, for example add.
+     */
+    public static String labelValue(String labels) {
+        return labels.substring(labels.indexOf('"') + 1, labels.length() - 1);
+    }
+
+    private static void describe(StringBuilder out, Set<String> described, String name, String help, String type) {
+        if (!described.add(name)) return;
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String labels(String labels, String le) {
+        if (le == null) return labels.isEmpty() ? "" : "{" + labels + "}";
+        return "{" + (labels.isEmpty() ? "" : labels + ",") + "le=\"" + le + "\"}";
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) return Long.toString((long) value);
+        return String.format(Locale.ROOT, "%.9g", value);
+    }
+}
@@ -0,0 +1,36 @@
+package codes.kooper.blockify.metrics;
+
+import jdk.jfr.*;
+import lombok.Setter;
+
+/**
+ * A chunk that was built and sent to a player, recorded by Java Flight Recorder when enabled.
+ */
+@Name("blockify.ChunkSend")
+@Label("Chunk Send")
+@Category("Blockify")
+@Description("A chunk with fake blocks built or taken from the cache and sent to a player")
+@StackTrace(false)
+@Setter
+public class ChunkBuildEvent extends Event {
+    @Label("Player")
+    private String player;
+
+    @Label("Chunk X")
+    private int chunkX;
+
+    @Label("Chunk Z")
+    private int chunkZ;
+
+    @Label("Cached")
+    @Description("Whether the chunk came from the chunk packet cache")
+    private boolean cached;
+
+    @Label("Layers")
+    @Description("The amount of view layers of the player")
+    private int layers;
+
+    @Label("Size")
+    @DataAmount
+    private long bytes;
+}
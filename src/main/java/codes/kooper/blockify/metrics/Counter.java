@@ -0,0 +1,44 @@
+package codes.kooper.blockify.metrics;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count that only goes up, for example chunks sent. Any thread can add to it without contention.
+ */
+@Getter
+public class Counter {
+    private final String name, help;
+    // Prometheus labels without braces, for example op="add", or empty
+    private final String labels;
+    @Getter(AccessLevel.NONE)
+    private final LongAdder value = new LongAdder();
+
+    /**
+     * @param name The exported name.
+     * @param help The description of the counter.
+     * @param labels The labels, for example op="add", or an empty string.
+     */
+    public Counter(String name, String help, String labels) {
+        this.name = name;
+        this.help = help;
+        this.labels = labels;
+    }
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long amount) {
+        value.add(amount);
+    }
+
+    /**
+     * @return The current count.
+     */
+    public long get() {
+        return value.sum();
+    }
+}
@@ -0,0 +1,26 @@
+package codes.kooper.blockify.metrics;
+
+import jdk.jfr.*;
+import lombok.Setter;
+
+/**
+ * An applied edit session, recorded by Java Flight Recorder when enabled.
+ */
+@Name("blockify.EditSession")
+@Label("Edit Session")
+@Category("Blockify")
+@Description("A batch of block changes applied to a view")
+@Setter
+public class EditSessionEvent extends Event {
+    @Label("Stage")
+    private String stage;
+
+    @Label("View")
+    private String view;
+
+    @Label("Blocks")
+    private int blocks;
+
+    @Label("Chunks")
+    private int chunks;
+}
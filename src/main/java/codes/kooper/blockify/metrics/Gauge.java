@@ -0,0 +1,14 @@
+package codes.kooper.blockify.metrics;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * A value read when the metrics are collected, for example the length of a queue.
+ *
+ * @param name The exported name.
+ * @param help The description of the value.
+ * @param type The Prometheus type, gauge, or counter for totals that are kept elsewhere.
+ * @param value The supplier of the current value.
+ */
+public record Gauge(String name, String help, String type, DoubleSupplier value) {
+}
@@ -0,0 +1,146 @@
+package codes.kooper.blockify.metrics;
+
+import lombok.Getter;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram with fixed bucket bounds that any thread can record into.
+ * Recording is a binary search over the bounds and two {@link LongAdder} increments, cheap enough for per-chunk paths.
+ */
+public class Histogram {
+    @Getter
+    private final String name, help;
+    // Prometheus labels without braces, for example handler="chunk_data", or empty
+    @Getter
+    private final String labels;
+    // Multiplier turning recorded values into the exported unit, for example 1e-9 for nanoseconds as seconds
+    @Getter
+    private final double scale;
+    private final long[] bounds;
+    // One bucket per bound plus one for everything above the last bound
+    private final LongAdder[] buckets;
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * @param name The exported name.
+     * @param help The description of the histogram.
+     * @param scale The multiplier turning recorded values into the exported unit.
+     * @param bounds The inclusive upper bounds of the buckets, ascending.
+     */
+    public Histogram(String name, String help, double scale, long[] bounds) {
+        this(name, help, "", scale, bounds);
+    }
+
+    /**
+     * @param name The exported name.
+     * @param help The description of the histogram.
+     * @param labels The labels, for example handler="chunk_data", or an empty string.
+     * @param scale The multiplier turning recorded values into the exported unit.
+     * @param bounds The inclusive upper bounds of the buckets, ascending.
+     */
+    public Histogram(String name, String help, String labels, double scale, long[] bounds) {
+        this.name = name;
+        this.help = help;
+        this.labels = labels;
+        this.scale = scale;
+        this.bounds = bounds.clone();
+        this.buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Bounds growing by a factor, for values spanning several orders of magnitude.
+     *
+     * @param start The first bound.
+     * @param factor The factor between two bounds.
+     * @param count The amount of bounds.
+     * @return The bounds.
+     */
+    public static long[] exponential(long start, double factor, int count) {
+        long[] bounds = new long[count];
+        double bound = start;
+        for (int i = 0; i < count; i++) {
+            bounds[i] = Math.round(bound);
+            bound *= factor;
+        }
+        return bounds;
+    }
+
+    /**
+     * @param value The value, in the unit of the bounds.
+     */
+    public void record(long value) {
+        int low = 0, high = bounds.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (bounds[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        buckets[low].increment();
+        sum.add(value);
+    }
+
+    /**
+     * @return The amount of recorded values.
+     */
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return The sum of every recorded value, in the unit of the bounds.
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Estimate a percentile as the upper bound of the bucket it falls in.
+     *
+     * @param percentile The percentile, between 0 and 1.
+     * @return The estimate in the unit of the bounds, 0 if nothing was recorded, or the last bound if it falls above it.
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(percentile * total);
+        long seen = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return bounds[i];
+        }
+        return bounds[bounds.length - 1];
+    }
+
+    /**
+     * @return A copy of the bounds.
+     */
+    public long[] getBounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * @return The count of every bucket, the last one counts the values above the last bound.
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,22 @@
+package codes.kooper.blockify.metrics;
+
+import jdk.jfr.*;
+import lombok.Setter;
+
+/**
+ * A packet handled by one of the packet listeners, recorded by Java Flight Recorder when enabled.
+ */
+@Name("blockify.PacketHandler")
+@Label("Packet Handler")
+@Category("Blockify")
+@Description("Time spent by a Blockify packet listener on a packet it handles")
+@StackTrace(false)
+@Setter
+public class PacketHandlerEvent extends Event {
+    @Label("Handler")
+    private String handler;
+
+    @Label("Cancelled")
+    @Description("Whether the handler cancelled the packet")
+    private boolean cancelled;
+}
@@ -0,0 +1,59 @@
+package codes.kooper.blockify.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves {@link BlockifyMetrics} in the Prometheus text format at {@code /metrics}.
+ * Bind it to a loopback address unless the port is firewalled, the metrics include player counts.
+ */
+public class PrometheusEndpoint {
+    private final HttpServer server;
+
+    /**
+     * Start serving.
+     *
+     * @param metrics The metrics.
+     * @param host The address to bind to, for example 127.0.0.1.
+     * @param port The port.
+     * @throws IOException If the port cannot be bound.
+     */
+    public PrometheusEndpoint(BlockifyMetrics metrics, String host, int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext("/metrics", exchange -> {
+            try (exchange) {
+                if (!exchange.getRequestMethod().equals("GET")) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                StringBuilder text = new StringBuilder(8192);
+                metrics.writePrometheus(text);
+                byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * @return The address the endpoint is bound to.
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Stop serving, requests in progress are dropped.
+     */
+    public void stop() {
+        server.stop(0);
+    }
+}
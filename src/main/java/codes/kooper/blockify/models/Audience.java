@@ -1,19 +1,27 @@
 package codes.kooper.blockify.models;
 
 import codes.kooper.blockify.Blockify;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import org.bukkit.entity.Player;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 @Setter
 @Getter
 public class Audience {
     private boolean arePlayersHidden;
+    // Read from netty threads, only changed through addPlayer and removePlayer
+    @Getter(AccessLevel.NONE)
     private final Set<UUID> players;
     private final Map<UUID, Float> miningSpeeds;
+    // Immutable snapshot of the online members, replaced whenever membership or online state changes
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private volatile Online online;
 
     /**
      * @param players The set of players
@@ -50,9 +58,18 @@ public class Audience {
      * @param arePlayersHidden Whether the players are hidden
      */
     private Audience(Set<UUID> players, boolean arePlayersHidden) {
-        this.players = players;
+        this.players = ConcurrentHashMap.newKeySet();
+        this.players.addAll(players);
         this.arePlayersHidden = arePlayersHidden;
         this.miningSpeeds = new HashMap<>();
+        List<Player> onlinePlayers = new ArrayList<>();
+        for (UUID player : this.players) {
+            Player p = Blockify.getInstance().getServer().getPlayer(player);
+            if (p != null) {
+                onlinePlayers.add(p);
+            }
+        }
+        this.online = new Online(onlinePlayers.toArray(Player[]::new), 0);
     }
 
     /**
@@ -68,8 +85,14 @@ public class Audience {
      * @return The set of uuids of players
      */
     public Set<UUID> addPlayer(UUID player) {
-        players.add(player);
-        return players;
+        if (players.add(player)) {
+            Player onlinePlayer = Blockify.getInstance().getServer().getPlayer(player);
+            if (onlinePlayer != null) {
+                addOnline(onlinePlayer);
+            }
+            Blockify.getInstance().getStageManager().onAudienceJoin(this, player);
+        }
+        return getPlayers();
     }
 
     /**
@@ -85,22 +108,103 @@ public class Audience {
      * @return The set of uuids of players
      */
     public Set<UUID> removePlayer(UUID player) {
-        players.remove(player);
-        return players;
+        if (players.remove(player)) {
+            removeOnline(player);
+            Blockify.getInstance().getStageManager().onAudienceLeave(this, player);
+        }
+        return getPlayers();
     }
 
     /**
-     * @return A set of online players in the audience
+     * Members are added and removed through {@link #addPlayer(UUID)} and {@link #removePlayer(UUID)}, which also keep
+     * the online members and the stage indexes up to date.
+     *
+     * @return An unmodifiable view of the uuids of players in the audience
+     */
+    public Set<UUID> getPlayers() {
+        return Collections.unmodifiableSet(players);
+    }
+
+    /**
+     * @return A new set of online players in the audience, which the caller may modify
      */
     public Set<Player> getOnlinePlayers() {
-        List<Player> onlinePlayers = new ArrayList<>();
-        for (UUID player : players) {
-            Player p = Blockify.getInstance().getServer().getPlayer(player);
-            if (p != null) {
-                onlinePlayers.add(p);
-            }
+        return new HashSet<>(online.set());
+    }
+
+    /**
+     * Get the online players in the audience without copying, shared between calls until the members change.
+     *
+     * @return An immutable set of online players in the audience
+     */
+    public Set<Player> getOnlinePlayersSnapshot() {
+        return online.set();
+    }
+
+    /**
+     * Get the online players in the audience without copying, safe to call from any thread.
+     * Only kept up to date for players added and removed through {@link #addPlayer(UUID)} and {@link #removePlayer(UUID)}.
+     *
+     * @return Array of online players, shared between calls and must not be modified
+     */
+    public Player[] getOnlineMembers() {
+        return online.players();
+    }
+
+    /**
+     * Get the version of the online members, which changes whenever a member is added, removed, joins or quits.
+     * Callers can keep the version next to data derived from the members and compare it to detect changes.
+     *
+     * @return The version of the online members
+     */
+    public long getVersion() {
+        return online.version();
+    }
+
+    /**
+     * Called by {@link codes.kooper.blockify.listeners.AudienceListener} when a member joins the server
+     * @param player The player
+     */
+    public void onPlayerJoin(Player player) {
+        if (players.contains(player.getUniqueId())) {
+            addOnline(player);
+        }
+    }
+
+    /**
+     * Called by {@link codes.kooper.blockify.listeners.AudienceListener} when a member quits the server
+     * @param player The player
+     */
+    public void onPlayerQuit(Player player) {
+        removeOnline(player.getUniqueId());
+    }
+
+    private synchronized void addOnline(Player player) {
+        Player[] current = online.players();
+        for (int i = 0; i < current.length; i++) {
+            if (!current[i].getUniqueId().equals(player.getUniqueId())) continue;
+            if (current[i] == player) return;
+            // A rejoining player gets a new player object
+            Player[] next = current.clone();
+            next[i] = player;
+            online = new Online(next, online.version() + 1);
+            return;
+        }
+        Player[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = player;
+        online = new Online(next, online.version() + 1);
+    }
+
+    private synchronized void removeOnline(UUID player) {
+        Player[] current = online.players();
+        for (int i = 0; i < current.length; i++) {
+            if (!current[i].getUniqueId().equals(player)) continue;
+            Player[] next = new Player[current.length - 1];
+            System.arraycopy(current, 0, next, 0, i);
+            System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+            online = new Online(next, online.version() + 1);
+            return;
         }
-        return new HashSet<>(onlinePlayers);
     }
 
 
@@ -160,4 +264,15 @@ public class Audience {
         return miningSpeeds.getOrDefault(player, 1f);
     }
 
+    /**
+     * @param players The online members
+     * @param set The online members as an immutable set
+     * @param version The version of the online members
+     */
+    private record Online(Player[] players, Set<Player> set, long version) {
+        private Online(Player[] players, long version) {
+            this(players, Set.of(players), version);
+        }
+    }
+
 }
\ No newline at end of file
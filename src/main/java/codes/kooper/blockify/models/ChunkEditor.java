@@ -0,0 +1,94 @@
+package codes.kooper.blockify.models;
+
+import codes.kooper.blockify.storage.ChunkBlocks;
+import codes.kooper.blockify.storage.LongObjectMap;
+import org.bukkit.block.data.BlockData;
+
+/**
+ * Applies the operations of an {@link EditSession} to one chunk of a view, keeping the chunk's storage at hand between
+ * operations. Changes go through a {@link ChunkBlocks.Batch}, so every changed section and the chunk are versioned once
+ * when the editor finishes. Views that store their blocks differently return their own editor from {@link View#editChunk(long)}.
+ */
+class ChunkEditor {
+    protected final View view;
+    protected final long chunkKey;
+    protected ChunkBlocks chunkBlocks;
+    protected ChunkBlocks.Batch batch;
+    // The block stored at the position of the last applied operation, null if it was removed
+    protected BlockData result;
+
+    ChunkEditor(View view, long chunkKey) {
+        this.view = view;
+        this.chunkKey = chunkKey;
+        this.chunkBlocks = view.getChunkBlocks().get(chunkKey);
+        this.batch = chunkBlocks == null ? null : chunkBlocks.batch();
+    }
+
+    /**
+     * Add a block from the view's pattern.
+     */
+    boolean add(int x, int y, int z) {
+        if (chunkBlocks == null) {
+            chunkBlocks = view.getChunkBlocks().computeIfAbsent(chunkKey, key -> new ChunkBlocks(x >> 4, z >> 4));
+            batch = chunkBlocks.batch();
+        }
+        result = view.getPattern().getRandomBlockData();
+        batch.set(x, y, z, result);
+        return true;
+    }
+
+    /**
+     * Replace a block that is already in the view.
+     */
+    boolean set(int x, int y, int z, BlockData blockData) {
+        if (chunkBlocks == null || !chunkBlocks.has(x, y, z)) return false;
+        result = blockData;
+        batch.set(x, y, z, blockData);
+        return true;
+    }
+
+    /**
+     * Remove a block from the view.
+     */
+    boolean remove(int x, int y, int z) {
+        result = null;
+        return chunkBlocks != null && batch.remove(x, y, z) != null;
+    }
+
+    /**
+     * Replace a block that is already in the view with a new block from the view's pattern.
+     */
+    boolean reset(int x, int y, int z) {
+        if (chunkBlocks == null || !chunkBlocks.has(x, y, z)) return false;
+        result = view.getPattern().getRandomBlockData();
+        batch.set(x, y, z, result);
+        return true;
+    }
+
+    /**
+     * @return The block stored at the position of the last applied operation, null if it was removed.
+     */
+    BlockData getResult() {
+        return result;
+    }
+
+    /**
+     * Called after the last operation on the chunk.
+     */
+    void finish() {
+        if (chunkBlocks == null) return;
+        batch.commit();
+        settle(view.getChunkBlocks(), chunkKey, chunkBlocks);
+    }
+
+    /**
+     * Drop a chunk entry the editor emptied, or make sure an entry it wrote to is still stored.
+     */
+    static void settle(LongObjectMap<ChunkBlocks> chunks, long chunkKey, ChunkBlocks chunkBlocks) {
+        if (chunkBlocks.isEmpty()) {
+            View.dropChunk(chunks, chunkKey, chunkBlocks);
+        } else {
+            View.keepChunk(chunks, chunkKey, chunkBlocks);
+        }
+    }
+}
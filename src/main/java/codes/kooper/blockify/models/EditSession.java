@@ -0,0 +1,276 @@
+package codes.kooper.blockify.models;
+
+import codes.kooper.blockify.Blockify;
+import codes.kooper.blockify.managers.BlockChangeManager;
+import codes.kooper.blockify.metrics.BlockifyMetrics;
+import codes.kooper.blockify.metrics.EditSessionEvent;
+import codes.kooper.blockify.persistence.StageJournal;
+import codes.kooper.blockify.shapes.Shape;
+import codes.kooper.blockify.types.BlockDelta;
+import codes.kooper.blockify.types.BlockifyChunk;
+import codes.kooper.blockify.types.BlockifyPosition;
+import codes.kooper.blockify.types.EditResult;
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.entity.Player;
+
+import java.util.*;
+
+/**
+ * Collects block changes for a {@link View} and applies them in one pass.
+ * Changes are grouped by chunk, so every chunk is looked up and invalidated once per session instead of once per block,
+ * and the view is attached to its audience once. Writes go through a {@link codes.kooper.blockify.storage.ChunkBlocks.Batch},
+ * so every changed section and chunk moves to a new version once per session. Operations on the same position apply in
+ * the order they were added.
+ * <p>
+ * Use {@link View#edit()} to create a session.
+ */
+public class EditSession {
+    private static final byte ADD = 0, SET = 1, REMOVE = 2, RESET = 3;
+
+    private final View view;
+    private int[] coordinates = new int[48];
+    private byte[] types = new byte[16];
+    private BlockData[] blockData = new BlockData[16];
+    private int size;
+    private boolean send;
+
+    EditSession(View view) {
+        this.view = view;
+    }
+
+    /**
+     * Send the positions that changed to every online audience member when the session is applied.
+     * Without this, players see the changes with the next refresh, like with the single block methods.
+     *
+     * @param send Whether to send the changes.
+     * @return This session.
+     */
+    public EditSession send(boolean send) {
+        this.send = send;
+        return this;
+    }
+
+    /**
+     * Add a block from the view's pattern.
+     */
+    public EditSession add(int x, int y, int z) {
+        return append(ADD, x, y, z, null);
+    }
+
+    public EditSession add(BlockifyPosition position) {
+        return add(position.getX(), position.getY(), position.getZ());
+    }
+
+    public EditSession addAll(Iterable<BlockifyPosition> positions) {
+        positions.forEach(this::add);
+        return this;
+    }
+
+    public EditSession addAll(Shape shape) {
+        shape.forEach(this::add);
+        return this;
+    }
+
+    /**
+     * Change a block that is already in the view.
+     */
+    public EditSession set(int x, int y, int z, BlockData blockData) {
+        return append(SET, x, y, z, blockData);
+    }
+
+    public EditSession set(BlockifyPosition position, BlockData blockData) {
+        return set(position.getX(), position.getY(), position.getZ(), blockData);
+    }
+
+    public EditSession setAll(Iterable<BlockifyPosition> positions, BlockData blockData) {
+        positions.forEach(position -> set(position, blockData));
+        return this;
+    }
+
+    public EditSession setAll(Shape shape, BlockData blockData) {
+        shape.forEach((x, y, z) -> set(x, y, z, blockData));
+        return this;
+    }
+
+    /**
+     * Remove a block from the view.
+     */
+    public EditSession remove(int x, int y, int z) {
+        return append(REMOVE, x, y, z, null);
+    }
+
+    public EditSession remove(BlockifyPosition position) {
+        return remove(position.getX(), position.getY(), position.getZ());
+    }
+
+    public EditSession removeAll(Iterable<BlockifyPosition> positions) {
+        positions.forEach(this::remove);
+        return this;
+    }
+
+    public EditSession removeAll(Shape shape) {
+        shape.forEach(this::remove);
+        return this;
+    }
+
+    /**
+     * Replace a block that is already in the view with a new block from the view's pattern.
+     */
+    public EditSession reset(int x, int y, int z) {
+        return append(RESET, x, y, z, null);
+    }
+
+    public EditSession reset(BlockifyPosition position) {
+        return reset(position.getX(), position.getY(), position.getZ());
+    }
+
+    public EditSession resetAll(Iterable<BlockifyPosition> positions) {
+        positions.forEach(this::reset);
+        return this;
+    }
+
+    public EditSession resetAll(Shape shape) {
+        shape.forEach(this::reset);
+        return this;
+    }
+
+    /**
+     * @return The amount of operations in the session.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Apply every operation to the view and publish the result once per chunk.
+     * The session is empty afterwards and can be reused.
+     *
+     * @return The amount of changes and the time spent.
+     */
+    public EditResult apply() {
+        EditSessionEvent event = new EditSessionEvent();
+        event.begin();
+        long start = System.nanoTime();
+        Map<Long, int[]> chunks = groupByChunk();
+        StageJournal journal = view.getStage().getJournal();
+        boolean collectChanges = send;
+        List<BlockifyPosition> changed = collectChanges ? new ArrayList<>() : null;
+        // Applied operations per type, indexed by ADD, SET, REMOVE and RESET
+        long[] appliedTypes = new long[4];
+
+        for (Map.Entry<Long, int[]> entry : chunks.entrySet()) {
+            int[] operations = entry.getValue();
+            ChunkEditor editor = view.editChunk(entry.getKey());
+
+            for (int i = 1; i <= operations[0]; i++) {
+                int operation = operations[i];
+                int x = coordinates[operation * 3], y = coordinates[operation * 3 + 1], z = coordinates[operation * 3 + 2];
+                boolean applied = switch (types[operation]) {
+                    case ADD -> editor.add(x, y, z);
+                    case SET -> editor.set(x, y, z, blockData[operation]);
+                    case REMOVE -> editor.remove(x, y, z);
+                    default -> editor.reset(x, y, z);
+                };
+                if (!applied) continue;
+                appliedTypes[types[operation]]++;
+                if (journal != null) {
+                    journal.set(view, x, y, z, editor.getResult());
+                }
+                if (collectChanges) {
+                    changed.add(new BlockifyPosition(x, y, z));
+                }
+            }
+            editor.finish();
+        }
+        int blocks = size;
+        clear();
+        long applied = System.nanoTime();
+
+        for (long chunkKey : chunks.keySet()) {
+            view.invalidateChunk(chunkKey);
+        }
+        if (!view.isEmpty()) {
+            view.attachToAudience();
+        }
+        if (collectChanges && !changed.isEmpty()) {
+            publish(changed);
+        }
+
+        BlockifyMetrics metrics = View.metrics();
+        metrics.getViewAdds().add(appliedTypes[ADD]);
+        metrics.getViewSets().add(appliedTypes[SET]);
+        metrics.getViewRemoves().add(appliedTypes[REMOVE]);
+        metrics.getViewResets().add(appliedTypes[RESET]);
+        if (event.shouldCommit()) {
+            event.setStage(view.getStage().getName());
+            event.setView(view.getName());
+            event.setBlocks(blocks);
+            event.setChunks(chunks.size());
+            event.commit();
+        }
+        return new EditResult(blocks, chunks.size(), applied - start, System.nanoTime() - applied);
+    }
+
+    /**
+     * Drop every operation without applying it.
+     */
+    public void clear() {
+        size = 0;
+        Arrays.fill(blockData, null);
+    }
+
+    /**
+     * Send one delta per player, resolved through their layers so views above this one still win.
+     */
+    private void publish(List<BlockifyPosition> changed) {
+        BlockChangeManager blockChangeManager = Blockify.getInstance().getBlockChangeManager();
+        for (Player player : view.getStage().getAudience().getOnlineMembers()) {
+            PlayerLayers layers = blockChangeManager.getLayers(player);
+            if (layers == null || !layers.hasView(view)) continue;
+            BlockDelta delta = new BlockDelta();
+            World world = view.getStage().getWorld();
+            for (BlockifyPosition position : changed) {
+                delta.set(position, layers.getBlock(world, position.getX(), position.getY(), position.getZ()));
+            }
+            blockChangeManager.sendBlockDelta(player, view.getStage(), delta);
+        }
+    }
+
+    /**
+     * Group the operation indices by chunk, keeping their order. The first entry of every array is the amount of indices.
+     */
+    private Map<Long, int[]> groupByChunk() {
+        Map<Long, int[]> chunks = new HashMap<>();
+        long lastKey = 0;
+        int[] last = null;
+        for (int operation = 0; operation < size; operation++) {
+            long chunkKey = BlockifyChunk.keyOfBlock(coordinates[operation * 3], coordinates[operation * 3 + 2]);
+            int[] indices = last != null && chunkKey == lastKey ? last : chunks.computeIfAbsent(chunkKey, key -> new int[9]);
+            if (indices[0] + 1 == indices.length) {
+                indices = Arrays.copyOf(indices, indices.length * 2);
+                chunks.put(chunkKey, indices);
+            }
+            indices[++indices[0]] = operation;
+            last = indices;
+            lastKey = chunkKey;
+        }
+        return chunks;
+    }
+
+    private EditSession append(byte type, int x, int y, int z, BlockData data) {
+        if (size == types.length) {
+            int capacity = size * 2;
+            coordinates = Arrays.copyOf(coordinates, capacity * 3);
+            types = Arrays.copyOf(types, capacity);
+            blockData = Arrays.copyOf(blockData, capacity);
+        }
+        coordinates[size * 3] = x;
+        coordinates[size * 3 + 1] = y;
+        coordinates[size * 3 + 2] = z;
+        types[size] = type;
+        blockData[size] = data;
+        size++;
+        return this;
+    }
+}
@@ -1,5 +1,6 @@
 package codes.kooper.blockify.models;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import org.bukkit.block.data.BlockData;
@@ -13,6 +14,12 @@ public class Pattern {
     private final BlockData[] blockDataArray;
     private final int[] alias;
     private final double[] probability;
+    // The weights as given, a pattern built from them again gets the exact same alias table
+    @Getter(AccessLevel.NONE)
+    private final double[] weights;
+    // probability scaled to 32 bits, so a sample needs a single random long
+    @Getter(AccessLevel.NONE)
+    private final long[] threshold;
 
     /**
      * Creates a new Pattern with the given BlockData and their respective percentages.
@@ -29,6 +36,8 @@ public class Pattern {
         blockDataArray = new BlockData[size];
         alias = new int[size];
         probability = new double[size];
+        threshold = new long[size];
+        weights = new double[size];
 
         // Normalize the weights
         double sum = blockDataPercentages.values().stream().mapToDouble(Double::doubleValue).sum();
@@ -37,6 +46,7 @@ public class Pattern {
         int i = 0;
         for (Map.Entry<BlockData, Double> entry : blockDataPercentages.entrySet()) {
             blockDataArray[i] = entry.getKey();
+            weights[i] = entry.getValue();
             normalizedWeights[i] = entry.getValue() / sum * size;
             i++;
         }
@@ -75,6 +85,10 @@ public class Pattern {
         while (!large.isEmpty()) {
             probability[large.remove()] = 1.0;
         }
+
+        for (int j = 0; j < size; j++) {
+            threshold[j] = probability[j] >= 1.0 ? 1L << 32 : (long) (probability[j] * (1L << 32));
+        }
     }
 
     /**
@@ -83,9 +97,55 @@ public class Pattern {
      * @return A random BlockData from the Pattern.
      */
     public BlockData getRandomBlockData() {
-        int column = ThreadLocalRandom.current().nextInt(blockDataArray.length);
-        boolean useAlias = ThreadLocalRandom.current().nextDouble() >= probability[column];
-        return blockDataArray[useAlias ? alias[column] : column];
+        return blockDataArray[sampleIndex(ThreadLocalRandom.current().nextLong())];
+    }
+
+    /**
+     * Pick an index into {@link #getBlockDataArray()} from 64 random bits.
+     * The high 32 bits choose the alias table column and the low 32 bits decide between the column and its alias.
+     *
+     * @param random Uniformly distributed random bits, for example from {@link PatternFill#hash(long, long)}.
+     * @return The index of the picked block data.
+     */
+    public int sampleIndex(long random) {
+        int column = (int) (((random >>> 32) * blockDataArray.length) >>> 32);
+        return (random & 0xFFFFFFFFL) < threshold[column] ? column : alias[column];
+    }
+
+    /**
+     * Recover the normalized weights of the block data from the alias table.
+     * Every column keeps its own probability and hands the rest to its alias.
+     *
+     * @return The block data and their weights, summing up to 1.
+     */
+    public Map<BlockData, Double> getWeights() {
+        int size = blockDataArray.length;
+        double[] weights = new double[size];
+        for (int i = 0; i < size; i++) {
+            weights[i] += probability[i];
+            if (probability[i] < 1.0) {
+                weights[alias[i]] += 1.0 - probability[i];
+            }
+        }
+        Map<BlockData, Double> result = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            result.merge(blockDataArray[i], weights[i] / size, Double::sum);
+        }
+        return result;
+    }
+
+    /**
+     * Get the weights exactly as they were given to the constructor. Unlike {@link #getWeights()}, which is recovered
+     * from the alias table, a pattern built from these weights samples exactly the same blocks as this one.
+     *
+     * @return The block data and their weights, in the order of {@link #getBlockDataArray()}.
+     */
+    public Map<BlockData, Double> getSourceWeights() {
+        Map<BlockData, Double> result = new LinkedHashMap<>();
+        for (int i = 0; i < blockDataArray.length; i++) {
+            result.put(blockDataArray[i], weights[i]);
+        }
+        return result;
     }
 
     @Override
@@ -0,0 +1,162 @@
+package codes.kooper.blockify.models;
+
+import codes.kooper.blockify.storage.BlockSection;
+import codes.kooper.blockify.storage.ChunkBlocks;
+import codes.kooper.blockify.storage.IndexSampler;
+import codes.kooper.blockify.types.BlockifyPosition;
+import org.bukkit.block.data.BlockData;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+
+/**
+ * Fills whole 16x16x16 sections from a {@link Pattern} at once.
+ * <p>
+ * Every position draws from a counter-based SplitMix64 hash of the fill seed, its section and its index, the same
+ * generator {@link java.util.SplittableRandom} is built on. A position's block therefore does not depend on which
+ * thread fills its section or in which order, so sections run in parallel on the common fork-join pool and a seeded
+ * fill always produces the same blocks. The pattern's alias table is sampled straight into palette indices, so no
+ * {@link BlockData} is looked up per position and the sections are ready to encode afterwards.
+ */
+public final class PatternFill {
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private final Pattern pattern;
+    private long seed;
+    private boolean parallel;
+
+    private PatternFill(Pattern pattern) {
+        this.pattern = pattern;
+        this.seed = ThreadLocalRandom.current().nextLong();
+        this.parallel = true;
+    }
+
+    /**
+     * @param pattern The pattern to fill with.
+     * @return A new fill with a random seed that runs in parallel.
+     */
+    public static PatternFill of(Pattern pattern) {
+        return new PatternFill(pattern);
+    }
+
+    /**
+     * Use a fixed seed, so the same positions always get the same blocks.
+     *
+     * @param seed The seed.
+     * @return This fill.
+     */
+    public PatternFill seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * @param parallel Whether sections are filled on the common fork-join pool.
+     * @return This fill.
+     */
+    public PatternFill parallel(boolean parallel) {
+        this.parallel = parallel;
+        return this;
+    }
+
+    /**
+     * @return The seed of this fill.
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Refill every stored block of the chunks, section by section.
+     *
+     * @param chunks The chunks.
+     * @return The amount of sections filled.
+     */
+    public int refill(List<ChunkBlocks> chunks) {
+        List<ChunkBlocks> sectionChunks = new ArrayList<>();
+        List<Integer> sectionYs = new ArrayList<>();
+        for (ChunkBlocks chunkBlocks : chunks) {
+            for (int sectionY = chunkBlocks.getMinSection(); sectionY <= chunkBlocks.getMaxSection(); sectionY++) {
+                BlockSection section = chunkBlocks.getSection(sectionY);
+                if (section != null && !section.isEmpty()) {
+                    sectionChunks.add(chunkBlocks);
+                    sectionYs.add(sectionY);
+                }
+            }
+        }
+
+        IntStream indices = IntStream.range(0, sectionChunks.size());
+        if (parallel) {
+            indices = indices.parallel();
+        }
+        indices.forEach(i -> fill(sectionChunks.get(i), sectionYs.get(i), null));
+        return sectionChunks.size();
+    }
+
+    /**
+     * Fill positions of one section.
+     *
+     * @param chunkBlocks The chunk.
+     * @param sectionY The section y coordinate (world y >> 4).
+     * @param mask The positions to fill as 64 longs of 64 bits, or null to refill every stored block of the section.
+     */
+    public void fill(ChunkBlocks chunkBlocks, int sectionY, long[] mask) {
+        chunkBlocks.fill(sectionY, mask, pattern.getBlockDataArray(), sampler(chunkBlocks.getChunkX(), sectionY, chunkBlocks.getChunkZ()));
+    }
+
+    /**
+     * Fill positions of a section that is not part of a chunk, for example one generated on demand.
+     *
+     * @param section The section.
+     * @param chunkX The x coordinate of the chunk.
+     * @param sectionY The section y coordinate (world y >> 4).
+     * @param chunkZ The z coordinate of the chunk.
+     * @param mask The positions to fill as 64 longs of 64 bits, or null to refill every stored block of the section.
+     */
+    public void fill(BlockSection section, int chunkX, int sectionY, int chunkZ, long[] mask) {
+        section.fill(mask, pattern.getBlockDataArray(), sampler(chunkX, sectionY, chunkZ));
+    }
+
+    private IndexSampler sampler(int chunkX, int sectionY, int chunkZ) {
+        long sectionSeed = sectionSeed(seed, chunkX, sectionY, chunkZ);
+        return index -> pattern.sampleIndex(mix(sectionSeed + (index + 1) * GOLDEN_GAMMA));
+    }
+
+    /**
+     * Pick the block a fill with the given seed puts at a position, without filling anything.
+     *
+     * @param pattern The pattern.
+     * @param seed The seed of the fill.
+     * @return The block data.
+     */
+    public static BlockData sample(Pattern pattern, long seed, int x, int y, int z) {
+        long sectionSeed = sectionSeed(seed, x >> 4, y >> 4, z >> 4);
+        return pattern.getBlockDataArray()[pattern.sampleIndex(mix(sectionSeed + (BlockSection.index(x, y, z) + 1) * GOLDEN_GAMMA))];
+    }
+
+    private static long sectionSeed(long seed, int chunkX, int sectionY, int chunkZ) {
+        return hash(seed, BlockifyPosition.pack(chunkX, sectionY, chunkZ));
+    }
+
+    /**
+     * Hash a key with a seed into uniformly distributed bits, stable across runs.
+     *
+     * @param seed The seed.
+     * @param key The key, for example a packed position.
+     * @return The hash.
+     */
+    public static long hash(long seed, long key) {
+        return mix(mix(seed + GOLDEN_GAMMA) ^ key * GOLDEN_GAMMA);
+    }
+
+    /**
+     * The SplitMix64 finalizer.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,220 @@
+package codes.kooper.blockify.models;
+
+import codes.kooper.blockify.storage.ChunkBlocks;
+import codes.kooper.blockify.storage.LongObjectMap;
+import codes.kooper.blockify.types.BlockifyChunk;
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Everything a single player sees: references to shared {@link View} layers plus a personal override layer.
+ * Views are resolved by zIndex at read time, the highest zIndex wins and ties go to the view added last.
+ * Personal overrides always win over views. Overrides are kept per world, like views belong to the world of their stage.
+ */
+public class PlayerLayers {
+    private static final View[] EMPTY = new View[0];
+
+    private volatile View[] views = EMPTY;
+    // Views the player explicitly removed, these are not attached again when the view changes
+    private final Set<View> hiddenViews = ConcurrentHashMap.newKeySet();
+    // World UID -> chunk key -> personal blocks of this player
+    private final Map<UUID, LongObjectMap<ChunkBlocks>> overrides = new ConcurrentHashMap<>();
+
+    /**
+     * Add a view layer.
+     *
+     * @param view The view.
+     * @return False if the player already had the view.
+     */
+    public synchronized boolean addView(View view) {
+        hiddenViews.remove(view);
+        if (hasView(view)) return false;
+        View[] updated = Arrays.copyOf(views, views.length + 1);
+        updated[views.length] = view;
+        views = updated;
+        return true;
+    }
+
+    /**
+     * Remove a view layer. The view stays hidden until it is added again.
+     *
+     * @param view The view.
+     * @return False if the player did not have the view.
+     */
+    public synchronized boolean removeView(View view) {
+        hiddenViews.add(view);
+        View[] current = views;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == view) {
+                View[] updated = new View[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                views = updated;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add a view layer unless the player has it already or explicitly removed it.
+     *
+     * @param view The view.
+     */
+    public void attachView(View view) {
+        if (hasView(view) || hiddenViews.contains(view)) return;
+        synchronized (this) {
+            if (!hiddenViews.contains(view)) {
+                addView(view);
+            }
+        }
+    }
+
+    /**
+     * @param view The view.
+     * @return True if the player has the view layer.
+     */
+    public boolean hasView(View view) {
+        for (View layer : views) {
+            if (layer == view) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The view layers in the order they were added. The array must not be modified.
+     */
+    public View[] getViews() {
+        return views;
+    }
+
+    /**
+     * @return The view layers ordered from top to bottom, as they are resolved.
+     */
+    public View[] getOrderedViews() {
+        View[] current = views;
+        View[] ordered = new View[current.length];
+        for (int i = 0; i < current.length; i++) {
+            ordered[i] = current[current.length - 1 - i];
+        }
+        Arrays.sort(ordered, Comparator.comparingInt(View::getZIndex).reversed());
+        return ordered;
+    }
+
+    /**
+     * @param world The world.
+     * @return The view layers of stages in the world ordered from top to bottom, as they are resolved.
+     */
+    public View[] getOrderedViews(World world) {
+        View[] ordered = getOrderedViews();
+        int size = 0;
+        for (View view : ordered) {
+            if (view.getStage().getWorld() == world) {
+                ordered[size++] = view;
+            }
+        }
+        return size == ordered.length ? ordered : Arrays.copyOf(ordered, size);
+    }
+
+    /**
+     * Resolve the block the player sees at a position in a world, ignoring layers of other worlds.
+     *
+     * @param world The world of the position.
+     * @return The block data, or null if the player sees the real world block.
+     */
+    public BlockData getBlock(World world, int x, int y, int z) {
+        return getBlock(world, x, y, z, null);
+    }
+
+    /**
+     * Resolve the block the player sees at a position in a world while ignoring one view layer.
+     *
+     * @param world The world of the position.
+     * @param excluded The view to ignore, may be null.
+     * @return The block data, or null if the player sees the real world block.
+     */
+    public BlockData getBlock(World world, int x, int y, int z, View excluded) {
+        ChunkBlocks override = getOverrides(world, BlockifyChunk.keyOfBlock(x, z));
+        if (override != null) {
+            BlockData data = override.get(x, y, z);
+            if (data != null) return data;
+        }
+
+        View top = null;
+        BlockData topData = null;
+        for (View view : views) {
+            if (view == excluded || (top != null && view.getZIndex() < top.getZIndex())) continue;
+            if (view.getStage().getWorld() != world) continue;
+            BlockData data = view.getBlock(x, y, z);
+            if (data != null) {
+                top = view;
+                topData = data;
+            }
+        }
+        return topData;
+    }
+
+    /**
+     * Check if the player may see fake blocks in a chunk, without resolving any block.
+     *
+     * @param world The world of the chunk.
+     * @param chunkKey The chunk key, see {@link BlockifyChunk#key(int, int)}.
+     * @return False if no view layer and no personal block of the player is in the chunk.
+     */
+    public boolean hasBlocksIn(World world, long chunkKey) {
+        if (getOverrides(world, chunkKey) != null) return true;
+        for (View view : views) {
+            if (view.getStage().getWorld() == world && view.getChunkVersion(chunkKey) != 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param world The world of the chunk.
+     * @param chunkKey The chunk key, see {@link BlockifyChunk#key(int, int)}.
+     * @return The personal blocks of the player in the chunk, or null if there are none.
+     */
+    public ChunkBlocks getOverrides(World world, long chunkKey) {
+        LongObjectMap<ChunkBlocks> worldOverrides = overrides.get(world.getUID());
+        return worldOverrides == null ? null : worldOverrides.get(chunkKey);
+    }
+
+    /**
+     * @return The amount of personal blocks of the player, across all worlds.
+     */
+    public int getOverrideCount() {
+        int[] count = {0};
+        for (LongObjectMap<ChunkBlocks> worldOverrides : overrides.values()) {
+            worldOverrides.forEach((chunkKey, chunkBlocks) -> count[0] += chunkBlocks.size());
+        }
+        return count[0];
+    }
+
+    /**
+     * Set a personal block for the player.
+     *
+     * @param world The world of the position.
+     * @param blockData The block data, or null to remove the personal block.
+     */
+    public void setOverride(World world, int x, int y, int z, BlockData blockData) {
+        long chunkKey = BlockifyChunk.keyOfBlock(x, z);
+        if (blockData == null) {
+            ChunkBlocks chunkBlocks = getOverrides(world, chunkKey);
+            if (chunkBlocks != null && chunkBlocks.remove(x, y, z) != null) {
+                View.dropChunk(overrides.get(world.getUID()), chunkKey, chunkBlocks);
+            }
+            return;
+        }
+        LongObjectMap<ChunkBlocks> worldOverrides = overrides.computeIfAbsent(world.getUID(), key -> new LongObjectMap<>());
+        ChunkBlocks chunkBlocks = worldOverrides.computeIfAbsent(chunkKey, key -> new ChunkBlocks(x >> 4, z >> 4));
+        chunkBlocks.set(x, y, z, blockData);
+        View.keepChunk(worldOverrides, chunkKey, chunkBlocks);
+    }
+}
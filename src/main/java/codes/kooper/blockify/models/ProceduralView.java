@@ -0,0 +1,626 @@
+package codes.kooper.blockify.models;
+
+import codes.kooper.blockify.shapes.Shape;
+import codes.kooper.blockify.storage.BlockConsumer;
+import codes.kooper.blockify.storage.BlockSection;
+import codes.kooper.blockify.storage.ChunkBlocks;
+import codes.kooper.blockify.storage.LongObjectMap;
+import codes.kooper.blockify.types.BlockifyChunk;
+import codes.kooper.blockify.types.BlockifyPosition;
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.bukkit.block.data.BlockData;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A view whose blocks are generated from a shape and a pattern instead of being stored.
+ * <p>
+ * Every position of the shape holds the block a {@link PatternFill} with the view's seed puts there, so
+ * {@link #getBlock(int, int, int)}, the sections sent to players and the view after a restart always agree.
+ * Only changes are stored: blocks placed or replaced by the plugin live in {@link #getChunkBlocks()} like in any other view,
+ * and positions of the shape that were removed are kept in {@link #getRemoved()}. An untouched view costs the same
+ * few objects however large its shape is, where a stored view of a 1000x1000 floor holds a million palette indices.
+ * <p>
+ * Changing the pattern or seed changes every generated block at once.
+ * <p>
+ * Sections built for players are kept while nothing changes in them, see {@link #getSection(long, int)}, so a view
+ * that is sent again is not generated again.
+ */
+@Getter
+public class ProceduralView extends View {
+    private static final AtomicLong GENERATIONS = new AtomicLong();
+    private static final int MAX_CACHED_SECTIONS = 512;
+
+    // Null once every block was removed
+    private volatile Shape shape;
+    private volatile long seed;
+    // Chunk key -> positions of the shape that were removed, holding the block that was generated there
+    private final LongObjectMap<ChunkBlocks> removed = new LongObjectMap<>();
+    // Moves whenever every generated block changes, so chunk versions never repeat
+    private volatile long generation = GENERATIONS.incrementAndGet();
+    // The shape with the chunks it was checked against, replaced together with the shape
+    @Getter(AccessLevel.NONE)
+    private volatile ShapeChunks shapeChunks;
+    // Sections built by getSection, least recently used first, valid while their section version is unchanged
+    @Getter(AccessLevel.NONE)
+    private final LinkedHashMap<SectionKey, GeneratedSection> sections = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SectionKey, GeneratedSection> eldest) {
+            return size() > MAX_CACHED_SECTIONS;
+        }
+    };
+
+    /**
+     * @param name The name of the view.
+     * @param stage The stage of the view.
+     * @param pattern The pattern the blocks are generated from.
+     * @param shape The positions that hold a block.
+     * @param breakable Whether players can break the blocks.
+     */
+    public ProceduralView(String name, Stage stage, Pattern pattern, Shape shape, boolean breakable) {
+        this(name, stage, pattern, shape, ThreadLocalRandom.current().nextLong(), breakable);
+    }
+
+    /**
+     * @param name The name of the view.
+     * @param stage The stage of the view.
+     * @param pattern The pattern the blocks are generated from.
+     * @param shape The positions that hold a block.
+     * @param seed The seed, the same seed always generates the same blocks.
+     * @param breakable Whether players can break the blocks.
+     */
+    public ProceduralView(String name, Stage stage, Pattern pattern, Shape shape, long seed, boolean breakable) {
+        super(name, stage, pattern, breakable);
+        this.shape = shape;
+        this.shapeChunks = new ShapeChunks(shape, new LongObjectMap<>());
+        this.seed = seed;
+    }
+
+    /**
+     * Replace the shape, dropping removed positions. Blocks placed by the plugin stay.
+     *
+     * @param shape The positions that hold a block.
+     */
+    public void setShape(Shape shape) {
+        invalidateShape(this.shape);
+        this.shape = shape;
+        shapeChunks = new ShapeChunks(shape, new LongObjectMap<>());
+        removed.clear();
+        nextGeneration();
+        invalidateShape(shape);
+        getStage().requestSnapshot();
+        attachToAudience();
+    }
+
+    /**
+     * @return The block the shape and pattern put at a position, whether or not it was changed since.
+     */
+    public BlockData getGeneratedBlock(int x, int y, int z) {
+        Shape current = shape;
+        return current != null && current.contains(x, y, z) ? PatternFill.sample(getPattern(), seed, x, y, z) : null;
+    }
+
+    private boolean isRemoved(int x, int y, int z) {
+        ChunkBlocks chunkBlocks = removed.get(BlockifyChunk.keyOfBlock(x, z));
+        return chunkBlocks != null && chunkBlocks.has(x, y, z);
+    }
+
+    @Override
+    public BlockData getBlock(int x, int y, int z) {
+        BlockData edited = super.getBlock(x, y, z);
+        if (edited != null) return edited;
+        return isRemoved(x, y, z) ? null : getGeneratedBlock(x, y, z);
+    }
+
+    @Override
+    public boolean hasBlock(int x, int y, int z) {
+        if (super.hasBlock(x, y, z)) return true;
+        Shape current = shape;
+        return current != null && current.contains(x, y, z) && !isRemoved(x, y, z);
+    }
+
+    @Override
+    public boolean hasChunk(int x, int z) {
+        return super.hasChunk(x, z) || shapeChunks.touches(x, z);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return super.isEmpty() && shape == null;
+    }
+
+    /**
+     * Build a section from the generated blocks, the removed positions and the stored edits. Sections are cached by
+     * their section version, so they are only built again after something in them changed.
+     */
+    @Override
+    public BlockSection getSection(long chunkKey, int sectionY) {
+        if (!generates(chunkKey, sectionY)) return super.getSection(chunkKey, sectionY);
+        // The version is read before the section is built, so a concurrent change can never be cached under the new version
+        long version = getSectionVersion(chunkKey, sectionY);
+        SectionKey key = new SectionKey(chunkKey, sectionY);
+        synchronized (sections) {
+            GeneratedSection cached = sections.get(key);
+            if (cached != null && cached.version() == version) return cached.section();
+        }
+        BlockSection section = generateSection(chunkKey, sectionY);
+        synchronized (sections) {
+            sections.put(key, new GeneratedSection(version, section));
+        }
+        return section;
+    }
+
+    private BlockSection generateSection(long chunkKey, int sectionY) {
+        BlockSection edits = super.getSection(chunkKey, sectionY);
+        Shape current = shapeChunks.shape();
+        BlockifyChunk chunk = BlockifyChunk.fromKey(chunkKey);
+        if (current == null) return edits;
+        BlockifyPosition min = current.getMin(), max = current.getMax();
+        int baseY = sectionY << 4;
+
+        long[] mask = new long[BlockSection.SIZE >> 6];
+        int baseX = chunk.x() << 4, baseZ = chunk.z() << 4;
+        for (int y = Math.max(baseY, min.getY()); y <= Math.min(baseY + 15, max.getY()); y++) {
+            for (int z = Math.max(baseZ, min.getZ()); z <= Math.min(baseZ + 15, max.getZ()); z++) {
+                for (int x = Math.max(baseX, min.getX()); x <= Math.min(baseX + 15, max.getX()); x++) {
+                    if (current.contains(x, y, z)) {
+                        int index = BlockSection.index(x, y, z);
+                        mask[index >> 6] |= 1L << index;
+                    }
+                }
+            }
+        }
+        ChunkBlocks removedChunk = removed.get(chunkKey);
+        BlockSection removedSection = removedChunk == null ? null : removedChunk.getSection(sectionY);
+        if (removedSection != null) {
+            long[] occupancy = removedSection.getOccupancy();
+            for (int i = 0; i < mask.length; i++) {
+                mask[i] &= ~occupancy[i];
+            }
+        }
+
+        BlockSection section = new BlockSection();
+        PatternFill.of(getPattern()).seed(seed).fill(section, chunk.x(), sectionY, chunk.z(), mask);
+        if (edits != null) {
+            edits.forEach(0, 0, 0, (x, y, z, blockData) -> section.set(BlockSection.index(x, y, z), blockData));
+        }
+        return section.isEmpty() ? null : section;
+    }
+
+    @Override
+    public long getChunkVersion(long chunkKey) {
+        long edits = super.getChunkVersion(chunkKey);
+        BlockifyChunk chunk = BlockifyChunk.fromKey(chunkKey);
+        // Chunks the bounding box overlaps without a position of the shape hold nothing generated
+        if (!shapeChunks.touches(chunk.x(), chunk.z())) return edits;
+        ChunkBlocks removedChunk = removed.get(chunkKey);
+        long removedVersion = removedChunk == null ? 0 : removedChunk.getVersion();
+        // Never 0, which means the view holds nothing in the chunk
+        return PatternFill.hash(PatternFill.hash(generation, edits), removedVersion) | 1;
+    }
+
+    @Override
+    public long getSectionVersion(long chunkKey, int sectionY) {
+        long edits = super.getSectionVersion(chunkKey, sectionY);
+        if (!generates(chunkKey, sectionY)) return edits;
+        return sectionVersion(generation, edits, getVersion(removedSection(chunkKey, sectionY)));
+    }
+
+    /**
+     * A change to a position of the shape moves the stored edits, the removed positions or both, so the change is
+     * found by matching the version before it against the previous versions of either.
+     */
+    @Override
+    public int getChangedIndex(long chunkKey, int sectionY, long since, long current) {
+        if (!generates(chunkKey, sectionY)) return super.getChangedIndex(chunkKey, sectionY, since, current);
+        long generation = this.generation;
+        BlockSection edits = super.getSection(chunkKey, sectionY);
+        BlockSection removedSection = removedSection(chunkKey, sectionY);
+        long editsVersion = getVersion(edits), removedVersion = getVersion(removedSection);
+        if (sectionVersion(generation, editsVersion, removedVersion) != current) return -1;
+        long editsPrevious = edits == null ? -1 : edits.getPreviousVersion();
+        long removedPrevious = removedSection == null ? -1 : removedSection.getPreviousVersion();
+        if (edits != null && since == sectionVersion(generation, editsPrevious, removedVersion)) {
+            return edits.getChangedIndex(editsPrevious, editsVersion);
+        }
+        if (removedSection != null && since == sectionVersion(generation, editsVersion, removedPrevious)) {
+            return removedSection.getChangedIndex(removedPrevious, removedVersion);
+        }
+        if (edits != null && removedSection != null && since == sectionVersion(generation, editsPrevious, removedPrevious)) {
+            int index = edits.getChangedIndex(editsPrevious, editsVersion);
+            return index == removedSection.getChangedIndex(removedPrevious, removedVersion) ? index : -1;
+        }
+        return -1;
+    }
+
+    private BlockSection removedSection(long chunkKey, int sectionY) {
+        ChunkBlocks removedChunk = removed.get(chunkKey);
+        return removedChunk == null ? null : removedChunk.getSection(sectionY);
+    }
+
+    private static long getVersion(BlockSection section) {
+        return section == null ? 0 : section.getVersion();
+    }
+
+    // Never 0, which means the view holds nothing in the section
+    private static long sectionVersion(long generation, long edits, long removed) {
+        return PatternFill.hash(PatternFill.hash(generation, edits), removed) | 1;
+    }
+
+    @Override
+    public void forEachBlock(BlockConsumer consumer) {
+        Shape current = shape;
+        if (current != null) {
+            current.forEach((x, y, z) -> {
+                BlockData blockData = getBlock(x, y, z);
+                if (blockData != null) {
+                    consumer.accept(x, y, z, blockData);
+                }
+            });
+        }
+        super.forEachBlock((x, y, z, blockData) -> {
+            if (current == null || !current.contains(x, y, z)) {
+                consumer.accept(x, y, z, blockData);
+            }
+        });
+    }
+
+    @Override
+    public void forEachBlock(long chunkKey, BlockConsumer consumer) {
+        Shape current = shape;
+        BlockifyChunk chunk = BlockifyChunk.fromKey(chunkKey);
+        if (touches(current, chunk.x(), chunk.z())) {
+            BlockifyPosition min = current.getMin(), max = current.getMax();
+            int baseX = chunk.x() << 4, baseZ = chunk.z() << 4;
+            for (int y = min.getY(); y <= max.getY(); y++) {
+                for (int z = Math.max(baseZ, min.getZ()); z <= Math.min(baseZ + 15, max.getZ()); z++) {
+                    for (int x = Math.max(baseX, min.getX()); x <= Math.min(baseX + 15, max.getX()); x++) {
+                        if (!current.contains(x, y, z)) continue;
+                        BlockData blockData = getBlock(x, y, z);
+                        if (blockData != null) {
+                            consumer.accept(x, y, z, blockData);
+                        }
+                    }
+                }
+            }
+        }
+        super.forEachBlock(chunkKey, (x, y, z, blockData) -> {
+            if (current == null || !current.contains(x, y, z)) {
+                consumer.accept(x, y, z, blockData);
+            }
+        });
+    }
+
+    @Override
+    public void removeBlock(int x, int y, int z) {
+        if (!hasBlock(x, y, z)) return;
+        restoreBlock(x, y, z, null);
+        metrics().getViewRemoves().increment();
+        journal(x, y, z, null);
+        invalidateChunk(BlockifyChunk.keyOfBlock(x, z));
+    }
+
+    @Override
+    public void addBlock(int x, int y, int z) {
+        BlockData newData = regenerate(x, y, z);
+        metrics().getViewAdds().increment();
+        journal(x, y, z, newData);
+        invalidateChunk(BlockifyChunk.keyOfBlock(x, z));
+        attachToAudience();
+    }
+
+    @Override
+    public void setBlock(int x, int y, int z, BlockData blockData) {
+        if (!hasBlock(x, y, z)) return;
+        restoreBlock(x, y, z, blockData);
+        metrics().getViewSets().increment();
+        journal(x, y, z, blockData);
+        invalidateChunk(BlockifyChunk.keyOfBlock(x, z));
+        attachToAudience();
+    }
+
+    @Override
+    public void resetBlock(int x, int y, int z) {
+        if (!hasBlock(x, y, z)) return;
+        BlockData newData = regenerate(x, y, z);
+        metrics().getViewResets().increment();
+        journal(x, y, z, newData);
+        invalidateChunk(BlockifyChunk.keyOfBlock(x, z));
+        attachToAudience();
+    }
+
+    /**
+     * Store a block without invalidating chunks, attaching the view or journaling.
+     * Removing a position of the shape remembers it as removed, which the journal does not cover,
+     * so the stage is snapshot on its next compaction.
+     *
+     * @param blockData The block data, or null to remove the block.
+     */
+    @Override
+    public void restoreBlock(int x, int y, int z, BlockData blockData) {
+        long chunkKey = BlockifyChunk.keyOfBlock(x, z);
+        if (blockData != null) {
+            unremove(chunkKey, x, y, z);
+            super.restoreBlock(x, y, z, blockData);
+            return;
+        }
+        dropEdit(chunkKey, x, y, z);
+        BlockData generated = getGeneratedBlock(x, y, z);
+        if (generated != null) {
+            ChunkBlocks removedChunk = removed.computeIfAbsent(chunkKey, key -> new ChunkBlocks(x >> 4, z >> 4));
+            removedChunk.set(x, y, z, generated);
+            keepChunk(removed, chunkKey, removedChunk);
+            getStage().requestSnapshot();
+        }
+    }
+
+    /**
+     * Put back the generated block of a position of the shape, or store a block from the pattern outside of it.
+     *
+     * @return The block now at the position.
+     */
+    private BlockData regenerate(int x, int y, int z) {
+        BlockData generated = getGeneratedBlock(x, y, z);
+        if (generated == null) {
+            BlockData newData = getPattern().getRandomBlockData();
+            super.restoreBlock(x, y, z, newData);
+            return newData;
+        }
+        long chunkKey = BlockifyChunk.keyOfBlock(x, z);
+        dropEdit(chunkKey, x, y, z);
+        unremove(chunkKey, x, y, z);
+        return generated;
+    }
+
+    private void dropEdit(long chunkKey, int x, int y, int z) {
+        ChunkBlocks chunkBlocks = getChunkBlocks().get(chunkKey);
+        if (chunkBlocks != null && chunkBlocks.remove(x, y, z) != null) {
+            dropChunk(getChunkBlocks(), chunkKey, chunkBlocks);
+        }
+    }
+
+    private void unremove(long chunkKey, int x, int y, int z) {
+        ChunkBlocks chunkBlocks = removed.get(chunkKey);
+        if (chunkBlocks != null && chunkBlocks.remove(x, y, z) != null) {
+            dropChunk(removed, chunkKey, chunkBlocks);
+        }
+    }
+
+    @Override
+    public void removeAllBlocks() {
+        invalidateShape(shape);
+        shape = null;
+        shapeChunks = new ShapeChunks(null, new LongObjectMap<>());
+        removed.clear();
+        nextGeneration();
+        super.removeAllBlocks();
+    }
+
+    /**
+     * Generate every block of the shape from a new seed and reset the blocks placed outside of it.
+     * Blocks placed inside the shape are dropped, removed positions stay removed.
+     */
+    @Override
+    public void resetViewBlocks() {
+        resetViewBlocks(ThreadLocalRandom.current().nextLong());
+    }
+
+    @Override
+    public void resetViewBlocks(long seed) {
+        Shape current = shape;
+        Pattern pattern = getPattern();
+        metrics().getViewFills().increment();
+        restoreFill(pattern, seed);
+        getChunkBlocks().forEach((chunkKey, chunkBlocks) -> invalidateChunk(chunkKey));
+        invalidateShape(current);
+        if (getStage().getJournal() != null) {
+            getStage().getJournal().fill(this, pattern, seed);
+        }
+        attachToAudience();
+    }
+
+    /**
+     * Generate the shape from the seed and refill the blocks placed outside of it from the pattern with the same seed,
+     * so replaying the fill puts back exactly the same blocks. The shape is always generated from the pattern of the view.
+     *
+     * @param pattern The pattern the blocks outside of the shape were filled with.
+     * @param seed The seed of the fill.
+     */
+    @Override
+    public void restoreFill(Pattern pattern, long seed) {
+        Shape current = shape;
+        this.seed = seed;
+        nextGeneration();
+        getChunkBlocks().forEach((chunkKey, chunkBlocks) -> {
+            chunkBlocks.replaceAll((x, y, z, blockData) -> current != null && current.contains(x, y, z) ? null : PatternFill.sample(pattern, seed, x, y, z));
+            dropChunk(getChunkBlocks(), chunkKey, chunkBlocks);
+        });
+    }
+
+    /**
+     * Change the pattern, which regenerates every block of the shape.
+     *
+     * @param pattern The new pattern.
+     */
+    @Override
+    public void changePattern(Pattern pattern) {
+        setPattern(pattern);
+    }
+
+    @Override
+    public void setPattern(Pattern pattern) {
+        super.setPattern(pattern);
+        nextGeneration();
+        invalidateShape(shape);
+        getStage().requestSnapshot();
+    }
+
+    /**
+     * The editor keeps a batch for the stored edits and one for the removed positions of the chunk, so both are
+     * versioned once per edit session like the blocks of any other view.
+     */
+    @Override
+    ChunkEditor editChunk(long chunkKey) {
+        return new ChunkEditor(this, chunkKey) {
+            private ChunkBlocks removedChunk = removed.get(chunkKey);
+            private ChunkBlocks.Batch removedBatch = removedChunk == null ? null : removedChunk.batch();
+            private boolean removedGenerated;
+
+            @Override
+            boolean add(int x, int y, int z) {
+                result = regenerate(x, y, z);
+                return true;
+            }
+
+            @Override
+            boolean set(int x, int y, int z, BlockData blockData) {
+                if (!hasBlock(x, y, z)) return false;
+                result = blockData;
+                if (removedBatch != null) {
+                    removedBatch.remove(x, y, z);
+                }
+                edits(x, z).set(x, y, z, blockData);
+                return true;
+            }
+
+            @Override
+            boolean remove(int x, int y, int z) {
+                result = null;
+                if (!hasBlock(x, y, z)) return false;
+                if (batch != null) {
+                    batch.remove(x, y, z);
+                }
+                BlockData generated = getGeneratedBlock(x, y, z);
+                if (generated != null) {
+                    removals(x, z).set(x, y, z, generated);
+                    removedGenerated = true;
+                }
+                return true;
+            }
+
+            @Override
+            boolean reset(int x, int y, int z) {
+                if (!hasBlock(x, y, z)) return false;
+                result = regenerate(x, y, z);
+                return true;
+            }
+
+            @Override
+            void finish() {
+                if (batch != null) {
+                    batch.commit();
+                    settle(getChunkBlocks(), chunkKey, chunkBlocks);
+                }
+                if (removedBatch != null) {
+                    removedBatch.commit();
+                    settle(removed, chunkKey, removedChunk);
+                }
+                // Removed positions are not covered by the journal, see restoreBlock
+                if (removedGenerated) {
+                    getStage().requestSnapshot();
+                }
+            }
+
+            /**
+             * Like {@link ProceduralView#regenerate(int, int, int)}, through the batches of the editor.
+             */
+            private BlockData regenerate(int x, int y, int z) {
+                BlockData generated = getGeneratedBlock(x, y, z);
+                if (generated == null) {
+                    BlockData newData = getPattern().getRandomBlockData();
+                    edits(x, z).set(x, y, z, newData);
+                    return newData;
+                }
+                if (batch != null) {
+                    batch.remove(x, y, z);
+                }
+                if (removedBatch != null) {
+                    removedBatch.remove(x, y, z);
+                }
+                return generated;
+            }
+
+            private ChunkBlocks.Batch edits(int x, int z) {
+                if (batch == null) {
+                    chunkBlocks = getChunkBlocks().computeIfAbsent(chunkKey, key -> new ChunkBlocks(x >> 4, z >> 4));
+                    batch = chunkBlocks.batch();
+                }
+                return batch;
+            }
+
+            private ChunkBlocks.Batch removals(int x, int z) {
+                if (removedBatch == null) {
+                    removedChunk = removed.computeIfAbsent(chunkKey, key -> new ChunkBlocks(x >> 4, z >> 4));
+                    removedBatch = removedChunk.batch();
+                }
+                return removedBatch;
+            }
+        };
+    }
+
+    private void invalidateShape(Shape shape) {
+        if (shape == null) return;
+        BlockifyPosition min = shape.getMin(), max = shape.getMax();
+        for (int chunkX = min.getX() >> 4; chunkX <= max.getX() >> 4; chunkX++) {
+            for (int chunkZ = min.getZ() >> 4; chunkZ <= max.getZ() >> 4; chunkZ++) {
+                invalidateChunk(BlockifyChunk.key(chunkX, chunkZ));
+            }
+        }
+    }
+
+    /**
+     * Move every generated block to a new generation and drop the sections built from the old one.
+     */
+    private void nextGeneration() {
+        generation = GENERATIONS.incrementAndGet();
+        synchronized (sections) {
+            sections.clear();
+        }
+    }
+
+    /**
+     * @return True if the shape has a position in the chunk of the section and its bounding box overlaps the section.
+     */
+    private boolean generates(long chunkKey, int sectionY) {
+        ShapeChunks current = shapeChunks;
+        if (current.shape() == null) return false;
+        BlockifyChunk chunk = BlockifyChunk.fromKey(chunkKey);
+        int baseY = sectionY << 4;
+        return baseY <= current.shape().getMax().getY() && baseY + 15 >= current.shape().getMin().getY() && current.touches(chunk.x(), chunk.z());
+    }
+
+    /**
+     * @return True if the bounding box of the shape overlaps the chunk.
+     */
+    private static boolean touches(Shape shape, int chunkX, int chunkZ) {
+        if (shape == null) return false;
+        BlockifyPosition min = shape.getMin(), max = shape.getMax();
+        return chunkX >= min.getX() >> 4 && chunkX <= max.getX() >> 4 && chunkZ >= min.getZ() >> 4 && chunkZ <= max.getZ() >> 4;
+    }
+
+    /**
+     * A shape with the chunks it was checked against, see {@link Shape#touchesChunk(int, int)}.
+     */
+    private record ShapeChunks(Shape shape, LongObjectMap<Boolean> touched) {
+        boolean touches(int chunkX, int chunkZ) {
+            if (!ProceduralView.touches(shape, chunkX, chunkZ)) return false;
+            long key = BlockifyChunk.key(chunkX, chunkZ);
+            Boolean touches = touched.get(key);
+            if (touches == null) {
+                touches = shape.touchesChunk(chunkX, chunkZ);
+                touched.put(key, touches);
+            }
+            return touches;
+        }
+    }
+
+    private record SectionKey(long chunkKey, int sectionY) {
+    }
+
+    private record GeneratedSection(long version, BlockSection section) {
+    }
+}
@@ -1,16 +1,19 @@
 package codes.kooper.blockify.models;
 
 import codes.kooper.blockify.Blockify;
+import codes.kooper.blockify.persistence.StageJournal;
+import codes.kooper.blockify.shapes.Shape;
+import codes.kooper.blockify.types.BlockDelta;
 import codes.kooper.blockify.types.BlockifyChunk;
 import codes.kooper.blockify.types.BlockifyPosition;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.entity.Player;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
 
 @Getter
 @Setter
@@ -18,18 +21,27 @@ public class Stage {
     private final String name;
     private final World world;
     private BlockifyPosition maxPosition, minPosition;
-    private final Set<View> views;
+    // Replaced as a whole on every change, so packet handlers read the views without locking
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private volatile Views views;
+    // Chunks sent in the first tick of a refresh, after that the rate adapts to each player's connection
     private int chunksPerTick;
+    // Changes per 16x16x16 section above which a delta resends the whole chunk instead of a multi block change
+    private int multiBlockChangeThreshold;
     private final Audience audience;
+    // Set while the stage is tracked by the StageStore, view changes are recorded to it
+    private StageJournal journal;
 
     public Stage(String name, World world, BlockifyPosition pos1, BlockifyPosition pos2, Audience audience) {
         this.name = name;
         this.world = world;
         this.maxPosition = new BlockifyPosition(Math.max(pos1.getX(), pos2.getX()), Math.max(pos1.getY(), pos2.getY()), Math.max(pos1.getZ(), pos2.getZ()));
         this.minPosition = new BlockifyPosition(Math.min(pos1.getX(), pos2.getX()), Math.min(pos1.getY(), pos2.getY()), Math.min(pos1.getZ(), pos2.getZ()));
-        this.views = new HashSet<>();
+        this.views = Views.of(new View[0]);
         this.audience = audience;
         this.chunksPerTick = 1;
+        this.multiBlockChangeThreshold = 1024;
     }
 
     public boolean isLocationWithin(Location location) {
@@ -42,6 +54,7 @@ public class Stage {
     /**
      * Sends all blocks (from all views) to the audience.
      * Call this after you've done incremental updates (e.g., added/removed views for players).
+     * Each player is only sent the chunks within their view distance, closest first, see {@link codes.kooper.blockify.scheduler.ChunkSendPacer}.
      */
     public void sendBlocksToAudience() {
         Blockify.getInstance().getBlockChangeManager().sendBlockChanges(this, audience, getChunks(), false);
@@ -52,30 +65,120 @@ public class Stage {
      * Use this after making incremental block-level changes.
      */
     public void refreshBlocksToAudience(Set<BlockifyPosition> blocks) {
-        for (Player player : audience.getOnlinePlayers()) {
+        for (Player player : audience.getOnlineMembers()) {
             Blockify.getInstance().getBlockChangeManager().sendMultiBlockChange(player, blocks);
         }
     }
 
+    /**
+     * Refreshes the blocks of a shape to the audience.
+     * Use this after making incremental block-level changes.
+     */
+    public void refreshBlocksToAudience(Shape shape) {
+        for (Player player : audience.getOnlineMembers()) {
+            Blockify.getInstance().getBlockChangeManager().sendMultiBlockChange(player, shape);
+        }
+    }
+
     public void addView(View view) {
-        if (views.stream().anyMatch(v -> v.getName().equalsIgnoreCase(view.getName()))) {
-            Blockify.getInstance().getLogger().warning("View with name " + view.getName() + " already exists in stage " + name + "!");
-            return;
+        synchronized (this) {
+            Views current = views;
+            if (current.byName().containsKey(key(view.getName()))) {
+                Blockify.getInstance().getLogger().warning("View with name " + view.getName() + " already exists in stage " + name + "!");
+                return;
+            }
+            View[] added = Arrays.copyOf(current.added(), current.added().length + 1);
+            added[current.added().length] = view;
+            views = Views.of(added);
+        }
+        requestSnapshot();
+        // Views that already hold blocks, such as procedural or loaded views, are shown right away
+        if (!view.isEmpty()) {
+            Blockify.getInstance().getBlockChangeManager().attachView(view);
         }
-        views.add(view);
     }
 
     public void removeView(View view) {
-        views.remove(view);
+        synchronized (this) {
+            Views current = views;
+            if (!current.set().contains(view)) return;
+            views = Views.of(Arrays.stream(current.added()).filter(added -> added != view).toArray(View[]::new));
+        }
+        requestSnapshot();
     }
 
     public View getView(String viewName) {
-        for (View view : views) {
-            if (view.getName().equalsIgnoreCase(viewName)) {
-                return view;
+        return views.byName().get(key(viewName));
+    }
+
+    /**
+     * @return An immutable set of the views of the stage
+     */
+    public Set<View> getViews() {
+        return views.set();
+    }
+
+    /**
+     * Get the views ordered from top to bottom: the highest zIndex first, ties go to the view added last.
+     * Safe to call from any thread, the array is replaced whenever a view is added, removed, renamed or its zIndex changes.
+     *
+     * @return Array of views, shared between calls and must not be modified
+     */
+    public View[] getOrderedViews() {
+        return views.ordered();
+    }
+
+    /**
+     * Called by {@link View} when its zIndex or name changed, to keep the ordered views and the name lookup up to date
+     * @param view The view
+     */
+    synchronized void reindexView(View view) {
+        Views current = views;
+        if (current.set().contains(view)) {
+            views = Views.of(current.added());
+        }
+    }
+
+    private static String key(String viewName) {
+        return viewName.toLowerCase(Locale.ROOT);
+    }
+
+    public void setMaxPosition(BlockifyPosition maxPosition) {
+        this.maxPosition = maxPosition;
+        Blockify.getInstance().getStageManager().reindexStage(this);
+        requestSnapshot();
+    }
+
+    public void setMinPosition(BlockifyPosition minPosition) {
+        this.minPosition = minPosition;
+        Blockify.getInstance().getStageManager().reindexStage(this);
+        requestSnapshot();
+    }
+
+    /**
+     * Write the whole stage on the next journal compaction if it is tracked, for changes the journal does not record.
+     */
+    public void requestSnapshot() {
+        StageJournal current = journal;
+        if (current != null) {
+            current.requestSnapshot();
+        }
+    }
+
+    /**
+     * @return The packed keys of every chunk the stage covers, see {@link BlockifyChunk#key(int, int)}.
+     */
+    public long[] getChunkKeys() {
+        int minX = minPosition.getX() >> 4, maxX = maxPosition.getX() >> 4;
+        int minZ = minPosition.getZ() >> 4, maxZ = maxPosition.getZ() >> 4;
+        long[] keys = new long[(maxX - minX + 1) * (maxZ - minZ + 1)];
+        int i = 0;
+        for (int x = minX; x <= maxX; x++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                keys[i++] = BlockifyChunk.key(x, z);
             }
         }
-        return null;
+        return keys;
     }
 
     public Set<BlockifyChunk> getChunks() {
@@ -96,9 +199,9 @@ public class Stage {
      */
     public void addViewForPlayer(Player player, View view) {
         // This method uses BlockChangeManager's addViewToPlayer to merge the view's blocks into player's cache
-        Blockify.getInstance().getBlockChangeManager().addViewToPlayer(player, view);
-        // After updating what the player sees, refresh all blocks
-        sendBlocksToAudience();
+        BlockDelta delta = Blockify.getInstance().getBlockChangeManager().addViewToPlayer(player, view);
+        // After updating what the player sees, send only the positions that changed for them
+        Blockify.getInstance().getBlockChangeManager().sendBlockDelta(player, this, delta);
     }
 
     /**
@@ -120,9 +223,9 @@ public class Stage {
      */
     public void removeViewForPlayer(Player player, View view) {
         // Remove view's blocks from player's cache
-        Blockify.getInstance().getBlockChangeManager().removeViewFromPlayer(player, view);
-        // Refresh all blocks for audience after removing the view
-        sendBlocksToAudience();
+        BlockDelta delta = Blockify.getInstance().getBlockChangeManager().removeViewFromPlayer(player, view);
+        // Send only the positions that changed for the player after removing the view
+        Blockify.getInstance().getBlockChangeManager().sendBlockDelta(player, this, delta);
     }
 
     /**
@@ -136,4 +239,26 @@ public class Stage {
         }
         removeViewForPlayer(player, view);
     }
-}
\ No newline at end of file
+
+    /**
+     * @param added The views in the order they were added
+     * @param ordered The views ordered from top to bottom
+     * @param set The views as an immutable set
+     * @param byName The views by lower case name
+     */
+    private record Views(View[] added, View[] ordered, Set<View> set, Map<String, View> byName) {
+        private static Views of(View[] added) {
+            View[] ordered = new View[added.length];
+            for (int i = 0; i < added.length; i++) {
+                ordered[i] = added[added.length - 1 - i];
+            }
+            // Stable, so views with the same zIndex stay ordered from last added to first added
+            Arrays.sort(ordered, Comparator.comparingInt(View::getZIndex).reversed());
+            Map<String, View> byName = new HashMap<>();
+            for (View view : added) {
+                byName.put(key(view.getName()), view);
+            }
+            return new Views(added, ordered, Set.of(added), Map.copyOf(byName));
+        }
+    }
+}
@@ -1,21 +1,37 @@
 package codes.kooper.blockify.models;
 
 import codes.kooper.blockify.Blockify;
+import codes.kooper.blockify.metrics.BlockifyMetrics;
+import codes.kooper.blockify.persistence.StageJournal;
+import codes.kooper.blockify.shapes.Shape;
+import codes.kooper.blockify.storage.BlockConsumer;
+import codes.kooper.blockify.storage.BlockSection;
+import codes.kooper.blockify.storage.ChunkBlocks;
+import codes.kooper.blockify.storage.LongObjectMap;
 import codes.kooper.blockify.types.BlockifyChunk;
 import codes.kooper.blockify.types.BlockifyPosition;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import org.bukkit.block.data.BlockData;
-import org.bukkit.entity.Player;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Getter
 @Setter
 public class View {
-    @Getter
-    private ConcurrentHashMap<BlockifyChunk, ConcurrentHashMap<BlockifyPosition, BlockData>> blocks;
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+
+    // Unique for the lifetime of the server, used to tell views apart in cache keys
+    private final long id = NEXT_ID.incrementAndGet();
+    // Chunk key -> palette-compressed sections, see ChunkBlocks
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private final LongObjectMap<ChunkBlocks> blocks;
     private Stage stage;
     private String name;
     private int zIndex;
@@ -24,18 +40,29 @@ public class View {
 
     public View(String name, Stage stage, Pattern pattern, boolean breakable) {
         this.name = name;
-        this.blocks = new ConcurrentHashMap<>();
+        this.blocks = new LongObjectMap<>();
         this.stage = stage;
         this.breakable = breakable;
         this.pattern = pattern;
         this.zIndex = 0;
     }
 
+    public void setName(String name) {
+        this.name = name;
+        stage.reindexView(this);
+    }
+
+    public void setZIndex(int zIndex) {
+        this.zIndex = zIndex;
+        // Keeps the stage's views ordered by zIndex
+        stage.reindexView(this);
+    }
+
     public BlockifyPosition getHighestBlock(int x, int z) {
         for (int y = stage.getMaxPosition().getY(); y >= stage.getMinPosition().getY(); y--) {
-            BlockifyPosition position = new BlockifyPosition(x, y, z);
-            if (hasBlock(position) && getBlock(position).getMaterial().isSolid()) {
-                return position;
+            BlockData blockData = getBlock(x, y, z);
+            if (blockData != null && blockData.getMaterial().isSolid()) {
+                return new BlockifyPosition(x, y, z);
             }
         }
         return null;
@@ -43,68 +70,79 @@ public class View {
 
     public BlockifyPosition getLowestBlock(int x, int z) {
         for (int y = stage.getMinPosition().getY(); y <= stage.getMaxPosition().getY(); y++) {
-            BlockifyPosition position = new BlockifyPosition(x, y, z);
-            if (hasBlock(position) && getBlock(position).getMaterial().isSolid()) {
-                return position;
+            BlockData blockData = getBlock(x, y, z);
+            if (blockData != null && blockData.getMaterial().isSolid()) {
+                return new BlockifyPosition(x, y, z);
             }
         }
         return null;
     }
 
     public void removeBlock(BlockifyPosition position) {
-        BlockifyChunk chunk = position.toBlockifyChunk();
-        ConcurrentHashMap<BlockifyPosition, BlockData> chunkMap = blocks.get(chunk);
-        if (chunkMap != null && chunkMap.remove(position) != null && chunkMap.isEmpty()) {
-            blocks.remove(chunk);
-        }
+        removeBlock(position.getX(), position.getY(), position.getZ());
+    }
 
-        // Also update each viewer's cache: data = null means remove the block
-        for (Player viewer : stage.getAudience().getOnlinePlayers()) {
-            Blockify.getInstance().getBlockChangeManager().applyBlockChange(viewer, chunk, position, null, this.name);
+    public void removeBlock(int x, int y, int z) {
+        long chunkKey = BlockifyChunk.keyOfBlock(x, z);
+        ChunkBlocks chunkBlocks = blocks.get(chunkKey);
+        if (chunkBlocks != null && chunkBlocks.remove(x, y, z) != null) {
+            metrics().getViewRemoves().increment();
+            journal(x, y, z, null);
+            dropChunk(blocks, chunkKey, chunkBlocks);
+            invalidateChunk(chunkKey);
         }
     }
 
     public void removeBlocks(Set<BlockifyPosition> positions) {
-        for (BlockifyPosition position : positions) {
-            removeBlock(position);
-        }
+        edit().removeAll(positions).apply();
+    }
+
+    public void removeBlocks(Shape shape) {
+        edit().removeAll(shape).apply();
     }
 
     public void removeAllBlocks() {
-        // Removing all blocks in bulk, update caches accordingly
-        for (BlockifyChunk chunk : blocks.keySet()) {
-            ConcurrentHashMap<BlockifyPosition, BlockData> chunkMap = blocks.get(chunk);
-            if (chunkMap == null) continue;
-            for (BlockifyPosition position : chunkMap.keySet()) {
-                // Apply removal to each viewer
-                for (Player viewer : stage.getAudience().getOnlinePlayers()) {
-                    Blockify.getInstance().getBlockChangeManager().applyBlockChange(viewer, chunk, position, null, this.name);
-                }
-            }
-        }
+        // Viewers reference this view directly, so clearing it is all that is needed
+        blocks.forEach((chunkKey, chunkBlocks) -> invalidateChunk(chunkKey));
         blocks.clear();
+        metrics().getViewClears().increment();
+        StageJournal journal = stage.getJournal();
+        if (journal != null) {
+            journal.clear(this);
+        }
     }
 
     public void addBlock(BlockifyPosition position) {
-        BlockData newData = pattern.getRandomBlockData();
-        BlockifyChunk chunk = position.toBlockifyChunk();
-        blocks.computeIfAbsent(chunk, c -> new ConcurrentHashMap<>()).put(position, newData);
+        addBlock(position.getX(), position.getY(), position.getZ());
+    }
 
-        // Update each viewer's cache with the new block
-        for (Player viewer : stage.getAudience().getOnlinePlayers()) {
-            Blockify.getInstance().getBlockChangeManager().applyBlockChange(viewer, chunk, position, newData, this.name);
-        }
+    public void addBlock(int x, int y, int z) {
+        BlockData newData = pattern.getRandomBlockData();
+        long chunkKey = BlockifyChunk.keyOfBlock(x, z);
+        ChunkBlocks chunkBlocks = blocks.computeIfAbsent(chunkKey, key -> new ChunkBlocks(x >> 4, z >> 4));
+        chunkBlocks.set(x, y, z, newData);
+        keepChunk(blocks, chunkKey, chunkBlocks);
+        metrics().getViewAdds().increment();
+        journal(x, y, z, newData);
+        invalidateChunk(chunkKey);
+        attachToAudience();
     }
 
     public void addBlocks(Set<BlockifyPosition> positions) {
-        for (BlockifyPosition position : positions) {
-            addBlock(position);
-        }
+        edit().addAll(positions).apply();
+    }
+
+    public void addBlocks(Shape shape) {
+        edit().addAll(shape).apply();
     }
 
     public boolean hasBlock(BlockifyPosition position) {
-        ConcurrentHashMap<BlockifyPosition, BlockData> chunkMap = blocks.get(position.toBlockifyChunk());
-        return chunkMap != null && chunkMap.containsKey(position);
+        return hasBlock(position.getX(), position.getY(), position.getZ());
+    }
+
+    public boolean hasBlock(int x, int y, int z) {
+        ChunkBlocks chunkBlocks = blocks.get(BlockifyChunk.keyOfBlock(x, z));
+        return chunkBlocks != null && chunkBlocks.has(x, y, z);
     }
 
     public boolean hasBlocks(Set<BlockifyPosition> positions) {
@@ -117,66 +155,331 @@ public class View {
     }
 
     public BlockData getBlock(BlockifyPosition position) {
-        ConcurrentHashMap<BlockifyPosition, BlockData> chunkMap = blocks.get(position.toBlockifyChunk());
-        return (chunkMap == null) ? null : chunkMap.get(position);
+        return getBlock(position.getX(), position.getY(), position.getZ());
+    }
+
+    public BlockData getBlock(int x, int y, int z) {
+        ChunkBlocks chunkBlocks = blocks.get(BlockifyChunk.keyOfBlock(x, z));
+        return (chunkBlocks == null) ? null : chunkBlocks.get(x, y, z);
+    }
+
+    /**
+     * Get the storage of the view. Blocks should be changed through the view, so chunk packets are invalidated and
+     * the changes are journaled.
+     *
+     * @return The blocks of the view by chunk key, see {@link BlockifyChunk#key(int, int)}.
+     */
+    public LongObjectMap<ChunkBlocks> getChunkBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Copy every block of the view into maps by chunk and position. The maps are a copy, changing them does not change the view.
+     *
+     * @return The blocks of the view.
+     * @deprecated Copies every block of the view on each call, use {@link #getBlock(int, int, int)},
+     * {@link #forEachBlock(BlockConsumer)} or {@link #getChunkBlocks()} instead.
+     */
+    @Deprecated
+    public ConcurrentHashMap<BlockifyChunk, ConcurrentHashMap<BlockifyPosition, BlockData>> getBlocks() {
+        ConcurrentHashMap<BlockifyChunk, ConcurrentHashMap<BlockifyPosition, BlockData>> copy = new ConcurrentHashMap<>();
+        forEachBlock((x, y, z, blockData) -> copy.computeIfAbsent(new BlockifyChunk(x >> 4, z >> 4), chunk -> new ConcurrentHashMap<>())
+                .put(new BlockifyPosition(x, y, z), blockData));
+        return copy;
+    }
+
+    /**
+     * Replace every block of the view.
+     *
+     * @param blocks The blocks by chunk and position.
+     * @deprecated Use {@link #removeAllBlocks()} followed by an {@link #edit()} session instead.
+     */
+    @Deprecated
+    public void setBlocks(ConcurrentHashMap<BlockifyChunk, ConcurrentHashMap<BlockifyPosition, BlockData>> blocks) {
+        removeAllBlocks();
+        blocks.forEach((chunk, chunkMap) -> chunkMap.forEach((position, blockData) ->
+                restoreBlock(position.getX(), position.getY(), position.getZ(), blockData)));
+        this.blocks.forEach((chunkKey, chunkBlocks) -> invalidateChunk(chunkKey));
+        // The restored blocks are not journaled
+        stage.requestSnapshot();
+        attachToAudience();
     }
 
     public boolean hasChunk(int x, int z) {
-        return blocks.containsKey(new BlockifyChunk(x, z));
+        return blocks.containsKey(BlockifyChunk.key(x, z));
     }
 
-    public void setBlocks(Set<BlockifyPosition> positions, BlockData blockData) {
-        for (BlockifyPosition position : positions) {
-            setBlock(position, blockData);
+    /**
+     * @return True if the view holds no blocks.
+     */
+    public boolean isEmpty() {
+        return blocks.isEmpty();
+    }
+
+    /**
+     * Get a section of the view for building chunk packets. Sections are meant for reading.
+     *
+     * @param chunkKey The chunk key, see {@link BlockifyChunk#key(int, int)}.
+     * @param sectionY The section y coordinate (world y >> 4).
+     * @return The section, or null if the view holds no blocks in it.
+     */
+    public BlockSection getSection(long chunkKey, int sectionY) {
+        ChunkBlocks chunkBlocks = blocks.get(chunkKey);
+        return chunkBlocks == null ? null : chunkBlocks.getSection(sectionY);
+    }
+
+    /**
+     * Get the version of the view's blocks in a chunk, which moves with every change to the chunk.
+     *
+     * @param chunkKey The chunk key, see {@link BlockifyChunk#key(int, int)}.
+     * @return The version, or 0 if the view holds no blocks in the chunk.
+     */
+    public long getChunkVersion(long chunkKey) {
+        ChunkBlocks chunkBlocks = blocks.get(chunkKey);
+        return chunkBlocks == null ? 0 : chunkBlocks.getVersion();
+    }
+
+    /**
+     * Get the version of the view's blocks in a section, which moves with every change to the section.
+     *
+     * @param chunkKey The chunk key, see {@link BlockifyChunk#key(int, int)}.
+     * @param sectionY The section y coordinate (world y >> 4).
+     * @return The version, or 0 if the view holds no blocks in the section.
+     */
+    public long getSectionVersion(long chunkKey, int sectionY) {
+        ChunkBlocks chunkBlocks = blocks.get(chunkKey);
+        return chunkBlocks == null ? 0 : chunkBlocks.getSectionVersion(sectionY);
+    }
+
+    /**
+     * Get the position a single change moved a section of the view from one version to another, so readers caching
+     * the section can update that position instead of reading the whole section again.
+     *
+     * @param chunkKey The chunk key, see {@link BlockifyChunk#key(int, int)}.
+     * @param sectionY The section y coordinate (world y >> 4).
+     * @param since The version before the change, see {@link #getSectionVersion(long, int)}.
+     * @param current The version after the change.
+     * @return The index of the changed position within the section, or -1 if the versions are not one single-position change apart.
+     */
+    public int getChangedIndex(long chunkKey, int sectionY, long since, long current) {
+        ChunkBlocks chunkBlocks = blocks.get(chunkKey);
+        BlockSection section = chunkBlocks == null ? null : chunkBlocks.getSection(sectionY);
+        return section == null ? -1 : section.getChangedIndex(since, current);
+    }
+
+    /**
+     * Iterate every block of the view.
+     *
+     * @param consumer The consumer to call for every block.
+     */
+    public void forEachBlock(BlockConsumer consumer) {
+        blocks.forEach((chunkKey, chunkBlocks) -> chunkBlocks.forEach(consumer));
+    }
+
+    /**
+     * Iterate every block of the view in a chunk.
+     *
+     * @param chunkKey The chunk key, see {@link BlockifyChunk#key(int, int)}.
+     * @param consumer The consumer to call for every block.
+     */
+    public void forEachBlock(long chunkKey, BlockConsumer consumer) {
+        ChunkBlocks chunkBlocks = blocks.get(chunkKey);
+        if (chunkBlocks != null) {
+            chunkBlocks.forEach(consumer);
         }
     }
 
+    /**
+     * Store a block without invalidating chunks, attaching the view or journaling, used when recovering a stage.
+     *
+     * @param blockData The block data, or null to remove the block.
+     */
+    public void restoreBlock(int x, int y, int z, BlockData blockData) {
+        long chunkKey = BlockifyChunk.keyOfBlock(x, z);
+        if (blockData == null) {
+            ChunkBlocks chunkBlocks = blocks.get(chunkKey);
+            if (chunkBlocks != null && chunkBlocks.remove(x, y, z) != null) {
+                dropChunk(blocks, chunkKey, chunkBlocks);
+            }
+            return;
+        }
+        ChunkBlocks chunkBlocks = blocks.computeIfAbsent(chunkKey, key -> new ChunkBlocks(x >> 4, z >> 4));
+        chunkBlocks.set(x, y, z, blockData);
+        keepChunk(blocks, chunkKey, chunkBlocks);
+    }
+
+    /**
+     * Refill every block of the view like {@link #resetViewBlocks(long)}, without changing the pattern of the view,
+     * invalidating chunks, attaching the view or journaling, used when recovering a stage.
+     *
+     * @param pattern The pattern the view was filled with.
+     * @param seed The seed of the fill.
+     */
+    public void restoreFill(Pattern pattern, long seed) {
+        PatternFill.of(pattern).seed(seed).refill(new ArrayList<>(blocks.values()));
+    }
+
+    public void setBlocks(Set<BlockifyPosition> positions, BlockData blockData) {
+        edit().setAll(positions, blockData).apply();
+    }
+
+    public void setBlocks(Shape shape, BlockData blockData) {
+        edit().setAll(shape, blockData).apply();
+    }
+
     public void setBlock(BlockifyPosition position, BlockData blockData) {
-        if (hasBlock(position)) {
-            BlockifyChunk chunk = position.toBlockifyChunk();
-            blocks.get(chunk).put(position, blockData);
+        setBlock(position.getX(), position.getY(), position.getZ(), blockData);
+    }
 
-            // Update each viewer's cache with the updated block
-            for (Player viewer : stage.getAudience().getOnlinePlayers()) {
-                Blockify.getInstance().getBlockChangeManager().applyBlockChange(viewer, chunk, position, blockData, this.name);
-            }
+    public void setBlock(int x, int y, int z, BlockData blockData) {
+        long chunkKey = BlockifyChunk.keyOfBlock(x, z);
+        ChunkBlocks chunkBlocks = blocks.get(chunkKey);
+        if (chunkBlocks != null && chunkBlocks.has(x, y, z)) {
+            chunkBlocks.set(x, y, z, blockData);
+            keepChunk(blocks, chunkKey, chunkBlocks);
+            metrics().getViewSets().increment();
+            journal(x, y, z, blockData);
+            invalidateChunk(chunkKey);
+            attachToAudience();
         }
     }
 
     public void resetBlock(BlockifyPosition position) {
-        if (hasBlock(position)) {
-            BlockData newData = pattern.getRandomBlockData();
-            BlockifyChunk chunk = position.toBlockifyChunk();
-            blocks.get(chunk).put(position, newData);
+        resetBlock(position.getX(), position.getY(), position.getZ());
+    }
 
-            // Update viewers
-            for (Player viewer : stage.getAudience().getOnlinePlayers()) {
-                Blockify.getInstance().getBlockChangeManager().applyBlockChange(viewer, chunk, position, newData, this.name);
-            }
+    public void resetBlock(int x, int y, int z) {
+        long chunkKey = BlockifyChunk.keyOfBlock(x, z);
+        ChunkBlocks chunkBlocks = blocks.get(chunkKey);
+        if (chunkBlocks != null && chunkBlocks.has(x, y, z)) {
+            BlockData newData = pattern.getRandomBlockData();
+            chunkBlocks.set(x, y, z, newData);
+            keepChunk(blocks, chunkKey, chunkBlocks);
+            metrics().getViewResets().increment();
+            journal(x, y, z, newData);
+            invalidateChunk(chunkKey);
+            attachToAudience();
         }
     }
 
     public void resetBlocks(Set<BlockifyPosition> positions) {
-        for (BlockifyPosition position : positions) {
-            resetBlock(position);
-        }
+        edit().resetAll(positions).apply();
+    }
+
+    public void resetBlocks(Shape shape) {
+        edit().resetAll(shape).apply();
     }
 
     public void resetViewBlocks() {
-        for (BlockifyChunk chunk : blocks.keySet()) {
-            ConcurrentHashMap<BlockifyPosition, BlockData> chunkMap = blocks.get(chunk);
-            for (BlockifyPosition position : chunkMap.keySet()) {
-                BlockData newData = pattern.getRandomBlockData();
-                chunkMap.put(position, newData);
-                // Update viewers
-                for (Player viewer : stage.getAudience().getOnlinePlayers()) {
-                    Blockify.getInstance().getBlockChangeManager().applyBlockChange(viewer, chunk, position, newData, this.name);
-                }
-            }
+        resetViewBlocks(PatternFill.of(pattern));
+    }
+
+    /**
+     * Reset every block of the view with a fixed seed, so the same positions always get the same blocks.
+     *
+     * @param seed The seed.
+     */
+    public void resetViewBlocks(long seed) {
+        resetViewBlocks(PatternFill.of(pattern).seed(seed));
+    }
+
+    private void resetViewBlocks(PatternFill fill) {
+        List<ChunkBlocks> chunks = new ArrayList<>();
+        blocks.forEach((chunkKey, chunkBlocks) -> chunks.add(chunkBlocks));
+        fill.refill(chunks);
+        metrics().getViewFills().increment();
+        blocks.forEach((chunkKey, chunkBlocks) -> invalidateChunk(chunkKey));
+        StageJournal journal = stage.getJournal();
+        if (journal != null) {
+            journal.fill(this, pattern, fill.getSeed());
         }
+        attachToAudience();
     }
 
     public void changePattern(Pattern pattern) {
         this.pattern = pattern;
     }
-}
\ No newline at end of file
+
+    /**
+     * Start a batch of changes to this view, see {@link EditSession}.
+     *
+     * @return A new, empty edit session.
+     */
+    public EditSession edit() {
+        return new EditSession(this);
+    }
+
+    /**
+     * @param chunkKey The chunk key, see {@link BlockifyChunk#key(int, int)}.
+     * @return An editor applying edit session operations to one chunk of this view.
+     */
+    ChunkEditor editChunk(long chunkKey) {
+        return new ChunkEditor(this, chunkKey);
+    }
+
+    /**
+     * Make sure the stage audience sees this view after it changed, unless a player explicitly removed it.
+     * The view is shared by reference, so this only adds a layer for players that do not have it yet.
+     */
+    void attachToAudience() {
+        Blockify.getInstance().getBlockChangeManager().attachView(this);
+    }
+
+    /**
+     * Record a change to the journal of the stage, if the stage is tracked.
+     *
+     * @param blockData The block data now stored at the position, or null if it was removed.
+     */
+    void journal(int x, int y, int z, BlockData blockData) {
+        StageJournal journal = stage.getJournal();
+        if (journal != null) {
+            journal.set(this, x, y, z, blockData);
+        }
+    }
+
+    /**
+     * Drop the entry of a chunk that ran out of blocks. The entry is removed before the chunk is checked again, so a
+     * block written into it at the same time is either seen here and the entry is put back, or the writer finds the
+     * entry gone in {@link #keepChunk(LongObjectMap, long, ChunkBlocks)}.
+     *
+     * @param chunks The chunk entries, writes to them lock the map.
+     */
+    static void dropChunk(LongObjectMap<ChunkBlocks> chunks, long chunkKey, ChunkBlocks chunkBlocks) {
+        if (!chunkBlocks.isEmpty()) return;
+        synchronized (chunks) {
+            if (chunks.remove(chunkKey, chunkBlocks) && !chunkBlocks.isEmpty()) {
+                chunks.put(chunkKey, chunkBlocks);
+            }
+        }
+    }
+
+    /**
+     * Called after writing blocks into a chunk entry, puts the entry back if {@link #dropChunk} removed it meanwhile.
+     * If another entry took its place already, the written blocks are moved over to it.
+     *
+     * @param chunks The chunk entries, writes to them lock the map.
+     */
+    static void keepChunk(LongObjectMap<ChunkBlocks> chunks, long chunkKey, ChunkBlocks chunkBlocks) {
+        if (chunks.get(chunkKey) == chunkBlocks) return;
+        synchronized (chunks) {
+            ChunkBlocks current = chunks.get(chunkKey);
+            if (current == chunkBlocks || chunkBlocks.isEmpty()) return;
+            if (current == null) {
+                chunks.put(chunkKey, chunkBlocks);
+            } else {
+                chunkBlocks.forEach(current::set);
+            }
+        }
+    }
+
+    static BlockifyMetrics metrics() {
+        return Blockify.getInstance().getMetrics();
+    }
+
+    /**
+     * Drop cached chunk packets of a chunk after this view changed it.
+     */
+    void invalidateChunk(long chunkKey) {
+        Blockify.getInstance().getBlockChangeManager().getChunkPacketCache().invalidate(stage.getWorld().getUID(), chunkKey);
+    }
+}
@@ -0,0 +1,90 @@
+package codes.kooper.blockify.persistence;
+
+import codes.kooper.blockify.shapes.*;
+import codes.kooper.blockify.types.BlockifyPosition;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the built-in shapes as a type byte followed by the arguments of their constructor.
+ * <pre>
+ * cuboid   byte 0, int minX, minY, minZ, maxX, maxY, maxZ
+ * wall     byte 1, int minX, minY, minZ, maxX, maxY, maxZ
+ * sphere   byte 2, int centerX, centerY, centerZ, double radius
+ * cylinder byte 3, int baseX, baseY, baseZ, double radius, int height
+ * hollow   byte 4, shape
+ * </pre>
+ */
+final class ShapeCodec {
+    private static final byte CUBOID = 0;
+    private static final byte WALL = 1;
+    private static final byte SPHERE = 2;
+    private static final byte CYLINDER = 3;
+    private static final byte HOLLOW = 4;
+
+    private ShapeCodec() {
+    }
+
+    /**
+     * @return True if the shape can be written, plugins may implement shapes of their own.
+     */
+    static boolean canWrite(Shape shape) {
+        if (shape instanceof HollowShape hollow) return canWrite(hollow.getShape());
+        return shape instanceof Cuboid || shape instanceof Wall || shape instanceof Sphere || shape instanceof Cylinder;
+    }
+
+    static void write(DataOutputStream out, Shape shape) throws IOException {
+        switch (shape) {
+            case Cuboid cuboid -> {
+                out.writeByte(CUBOID);
+                writePosition(out, cuboid.getMin());
+                writePosition(out, cuboid.getMax());
+            }
+            case Wall wall -> {
+                out.writeByte(WALL);
+                writePosition(out, wall.getMin());
+                writePosition(out, wall.getMax());
+            }
+            case Sphere sphere -> {
+                out.writeByte(SPHERE);
+                writePosition(out, sphere.getCenter());
+                out.writeDouble(sphere.getRadius());
+            }
+            case Cylinder cylinder -> {
+                out.writeByte(CYLINDER);
+                writePosition(out, cylinder.getBase());
+                out.writeDouble(cylinder.getRadius());
+                out.writeInt(cylinder.getMax().getY() - cylinder.getMin().getY() + 1);
+            }
+            case HollowShape hollow -> {
+                out.writeByte(HOLLOW);
+                write(out, hollow.getShape());
+            }
+            default -> throw new IOException("Cannot write shape " + shape.getClass().getName());
+        }
+    }
+
+    static Shape read(ByteBuffer buffer) throws IOException {
+        byte type = buffer.get();
+        return switch (type) {
+            case CUBOID -> new Cuboid(readPosition(buffer), readPosition(buffer));
+            case WALL -> new Wall(readPosition(buffer), readPosition(buffer));
+            case SPHERE -> new Sphere(readPosition(buffer), buffer.getDouble());
+            case CYLINDER -> new Cylinder(readPosition(buffer), buffer.getDouble(), buffer.getInt());
+            case HOLLOW -> read(buffer).hollow();
+            default -> throw new IOException("Unknown shape type " + type);
+        };
+    }
+
+    private static void writePosition(DataOutputStream out, BlockifyPosition position) throws IOException {
+        out.writeInt(position.getX());
+        out.writeInt(position.getY());
+        out.writeInt(position.getZ());
+    }
+
+    private static BlockifyPosition readPosition(ByteBuffer buffer) {
+        return new BlockifyPosition(buffer.getInt(), buffer.getInt(), buffer.getInt());
+    }
+}
@@ -0,0 +1,367 @@
+package codes.kooper.blockify.persistence;
+
+import codes.kooper.blockify.models.Audience;
+import codes.kooper.blockify.models.Pattern;
+import codes.kooper.blockify.models.ProceduralView;
+import codes.kooper.blockify.models.Stage;
+import codes.kooper.blockify.models.View;
+import codes.kooper.blockify.shapes.Shape;
+import codes.kooper.blockify.storage.BlockSection;
+import codes.kooper.blockify.storage.ChunkBlocks;
+import codes.kooper.blockify.storage.LongObjectMap;
+import codes.kooper.blockify.types.BlockifyChunk;
+import codes.kooper.blockify.types.BlockifyPosition;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * The binary file format of a stage and its views.
+ * <p>
+ * Blocks are written in the same layout {@link BlockSection} keeps in memory, so loading copies the packed
+ * index arrays and occupancy bitmaps straight out of a memory-mapped file instead of setting blocks one by one.
+ * Block data is stored once per file in a string palette at the end, sections refer to it by id.
+ * <pre>
+ * header   int magic "BLKF", short version, long palette offset
+ * stage    string name, long world uuid most, long world uuid least, string world name,
+ *          int minX, minY, minZ, maxX, maxY, maxZ, int chunksPerTick, int multiBlockChangeThreshold
+ * audience bool hidden, int players, (long most, long least)*, int speeds, (long most, long least, float speed)*
+ * views    int count, then per view:
+ *          string name, int zIndex, bool breakable, bool placeable, int pattern size, (int palette id, double weight)*,
+ *          byte kind, for procedural views (kind 1): long seed, bool has shape, shape,
+ *          int chunks, then per chunk: int chunkX, int chunkZ, int sections, (int sectionY, section)*,
+ *          for procedural views: int removed chunks, chunk*
+ * section  see {@link BlockSection#write}
+ * shape    see {@link ShapeCodec}
+ * palette  int count, string*
+ * </pre>
+ * Strings are an int length followed by UTF-8 bytes, everything is big endian. Version 1 files have no view kind.
+ * Procedural views with a shape of a plugin's own are written with every block, and load as stored views.
+ */
+public final class StageFile {
+    public static final int MAGIC = 0x424C4B46;
+    public static final short VERSION = 2;
+    // Files are read through a single memory mapping, whose positions are ints
+    private static final long MAX_SIZE = Integer.MAX_VALUE;
+
+    private static final byte STORED = 0;
+    private static final byte PROCEDURAL = 1;
+
+    private StageFile() {
+    }
+
+    /**
+     * Write a stage and its views. The file is written next to the target and moved in place, so a crash never leaves a partial file.
+     *
+     * @param stage The stage.
+     * @param path The target file.
+     * @throws IOException If writing fails.
+     */
+    public static void write(Stage stage, Path path) throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Map<BlockData, Integer> palette = new LinkedHashMap<>();
+
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeLong(0);
+            writeStage(out, stage, palette);
+            out.flush();
+
+            long paletteOffset = channel.position();
+            out.writeInt(palette.size());
+            for (BlockData blockData : palette.keySet()) {
+                writeString(out, blockData.getAsString());
+            }
+            out.flush();
+
+            // Patch the palette offset now that it is known
+            channel.write(ByteBuffer.allocate(Long.BYTES).putLong(0, paletteOffset), Integer.BYTES + Short.BYTES);
+            channel.force(true);
+        }
+        if (Files.size(temp) > MAX_SIZE) {
+            long size = Files.size(temp);
+            Files.delete(temp);
+            throw new IOException("Stage " + stage.getName() + " takes " + size + " bytes, stage files are limited to " + MAX_SIZE + " bytes");
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read a stage and its views. The stage is not registered, see {@link StageStore#load(String)}.
+     *
+     * @param path The file.
+     * @return The stage.
+     * @throws IOException If the file cannot be read, is not a stage file, is larger than 2 GB or its world is not loaded.
+     */
+    public static Stage read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > MAX_SIZE) {
+                throw new IOException("Stage file takes " + channel.size() + " bytes, stage files are limited to " + MAX_SIZE + " bytes: " + path);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < Integer.BYTES + Short.BYTES + Long.BYTES || buffer.getInt() != MAGIC) {
+                throw new IOException("Not a stage file: " + path);
+            }
+            short version = buffer.getShort();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported stage file version " + version + ": " + path);
+            }
+            long paletteOffset = buffer.getLong();
+            int bodyStart = buffer.position();
+            if (paletteOffset < bodyStart || paletteOffset > buffer.limit() - Integer.BYTES) {
+                throw new IOException("Corrupt stage file, palette offset " + paletteOffset + " is outside the file: " + path);
+            }
+
+            buffer.position((int) paletteOffset);
+            BlockData[] palette = new BlockData[buffer.getInt()];
+            for (int i = 0; i < palette.length; i++) {
+                palette[i] = Bukkit.createBlockData(readString(buffer));
+            }
+
+            buffer.position(bodyStart);
+            return readStage(buffer, palette, path, version);
+        }
+    }
+
+    private static void writeStage(DataOutputStream out, Stage stage, Map<BlockData, Integer> palette) throws IOException {
+        writeString(out, stage.getName());
+        UUID worldId = stage.getWorld().getUID();
+        out.writeLong(worldId.getMostSignificantBits());
+        out.writeLong(worldId.getLeastSignificantBits());
+        writeString(out, stage.getWorld().getName());
+        writePosition(out, stage.getMinPosition());
+        writePosition(out, stage.getMaxPosition());
+        out.writeInt(stage.getChunksPerTick());
+        out.writeInt(stage.getMultiBlockChangeThreshold());
+
+        Audience audience = stage.getAudience();
+        out.writeBoolean(audience.isArePlayersHidden());
+        List<UUID> players = new ArrayList<>(audience.getPlayers());
+        out.writeInt(players.size());
+        for (UUID player : players) {
+            out.writeLong(player.getMostSignificantBits());
+            out.writeLong(player.getLeastSignificantBits());
+        }
+        Map<UUID, Float> speeds = new HashMap<>(audience.getMiningSpeeds());
+        out.writeInt(speeds.size());
+        for (Map.Entry<UUID, Float> entry : speeds.entrySet()) {
+            out.writeLong(entry.getKey().getMostSignificantBits());
+            out.writeLong(entry.getKey().getLeastSignificantBits());
+            out.writeFloat(entry.getValue());
+        }
+
+        List<View> views = new ArrayList<>(stage.getViews());
+        out.writeInt(views.size());
+        for (View view : views) {
+            writeView(out, view, palette);
+        }
+    }
+
+    private static void writeView(DataOutputStream out, View view, Map<BlockData, Integer> palette) throws IOException {
+        writeString(out, view.getName());
+        out.writeInt(view.getZIndex());
+        out.writeBoolean(view.isBreakable());
+        out.writeBoolean(view.isPlaceable());
+        Map<BlockData, Double> weights = view.getPattern().getSourceWeights();
+        out.writeInt(weights.size());
+        for (Map.Entry<BlockData, Double> entry : weights.entrySet()) {
+            out.writeInt(paletteId(palette, entry.getKey()));
+            out.writeDouble(entry.getValue());
+        }
+
+        if (view instanceof ProceduralView procedural && (procedural.getShape() == null || ShapeCodec.canWrite(procedural.getShape()))) {
+            Shape shape = procedural.getShape();
+            out.writeByte(PROCEDURAL);
+            out.writeLong(procedural.getSeed());
+            out.writeBoolean(shape != null);
+            if (shape != null) {
+                ShapeCodec.write(out, shape);
+            }
+            writeChunks(out, view.getChunkBlocks(), palette);
+            writeChunks(out, procedural.getRemoved(), palette);
+            return;
+        }
+        out.writeByte(STORED);
+        if (view instanceof ProceduralView) {
+            LongObjectMap<ChunkBlocks> materialized = new LongObjectMap<>();
+            view.forEachBlock((x, y, z, blockData) -> materialized.computeIfAbsent(BlockifyChunk.keyOfBlock(x, z), key -> new ChunkBlocks(x >> 4, z >> 4)).set(x, y, z, blockData));
+            writeChunks(out, materialized, palette);
+            return;
+        }
+        writeChunks(out, view.getChunkBlocks(), palette);
+    }
+
+    private static void writeChunks(DataOutputStream out, LongObjectMap<ChunkBlocks> blocks, Map<BlockData, Integer> palette) throws IOException {
+        List<ChunkBlocks> chunks = new ArrayList<>();
+        blocks.forEach((chunkKey, chunkBlocks) -> chunks.add(chunkBlocks));
+        out.writeInt(chunks.size());
+        for (ChunkBlocks chunkBlocks : chunks) {
+            writeChunk(out, chunkBlocks, palette);
+        }
+    }
+
+    /**
+     * Write the non-empty sections of a chunk.
+     */
+    static void writeChunk(DataOutputStream out, ChunkBlocks chunkBlocks, Map<BlockData, Integer> palette) throws IOException {
+        out.writeInt(chunkBlocks.getChunkX());
+        out.writeInt(chunkBlocks.getChunkZ());
+        List<BlockSection> sections = new ArrayList<>();
+        List<Integer> sectionYs = new ArrayList<>();
+        for (int sectionY = chunkBlocks.getMinSection(); sectionY <= chunkBlocks.getMaxSection(); sectionY++) {
+            BlockSection section = chunkBlocks.getSection(sectionY);
+            if (section != null && !section.isEmpty()) {
+                sections.add(section);
+                sectionYs.add(sectionY);
+            }
+        }
+        out.writeInt(sections.size());
+        for (int i = 0; i < sections.size(); i++) {
+            out.writeInt(sectionYs.get(i));
+            sections.get(i).write(out, data -> paletteId(palette, data));
+        }
+    }
+
+    private static Stage readStage(ByteBuffer buffer, BlockData[] palette, Path path, short version) throws IOException {
+        String name = readString(buffer);
+        UUID worldId = new UUID(buffer.getLong(), buffer.getLong());
+        String worldName = readString(buffer);
+        World world = Bukkit.getWorld(worldId);
+        if (world == null) {
+            world = Bukkit.getWorld(worldName);
+        }
+        if (world == null) {
+            throw new IOException("World " + worldName + " of stage " + name + " is not loaded: " + path);
+        }
+        BlockifyPosition min = readPosition(buffer);
+        BlockifyPosition max = readPosition(buffer);
+        int chunksPerTick = buffer.getInt();
+        int multiBlockChangeThreshold = buffer.getInt();
+
+        boolean hidden = buffer.get() != 0;
+        int playerCount = buffer.getInt();
+        Set<UUID> players = new HashSet<>(playerCount);
+        for (int i = 0; i < playerCount; i++) {
+            players.add(new UUID(buffer.getLong(), buffer.getLong()));
+        }
+        Audience audience = Audience.fromUUIDs(players, hidden);
+        int speedCount = buffer.getInt();
+        for (int i = 0; i < speedCount; i++) {
+            audience.getMiningSpeeds().put(new UUID(buffer.getLong(), buffer.getLong()), buffer.getFloat());
+        }
+
+        Stage stage = new Stage(name, world, min, max, audience);
+        stage.setChunksPerTick(chunksPerTick);
+        stage.setMultiBlockChangeThreshold(multiBlockChangeThreshold);
+
+        int viewCount = buffer.getInt();
+        for (int i = 0; i < viewCount; i++) {
+            stage.addView(readView(buffer, stage, palette, version));
+        }
+        return stage;
+    }
+
+    private static View readView(ByteBuffer buffer, Stage stage, BlockData[] palette, short version) throws IOException {
+        String name = readString(buffer);
+        int zIndex = buffer.getInt();
+        boolean breakable = buffer.get() != 0;
+        boolean placeable = buffer.get() != 0;
+        int patternSize = buffer.getInt();
+        Map<BlockData, Double> weights = new LinkedHashMap<>();
+        for (int i = 0; i < patternSize; i++) {
+            weights.put(palette[buffer.getInt()], buffer.getDouble());
+        }
+
+        byte kind = version >= 2 ? buffer.get() : STORED;
+        View view;
+        if (kind == PROCEDURAL) {
+            long seed = buffer.getLong();
+            Shape shape = buffer.get() != 0 ? ShapeCodec.read(buffer) : null;
+            view = new ProceduralView(name, stage, new Pattern(weights), shape, seed, breakable);
+        } else {
+            view = new View(name, stage, new Pattern(weights), breakable);
+        }
+        view.setZIndex(zIndex);
+        view.setPlaceable(placeable);
+
+        readChunks(buffer, palette, view.getChunkBlocks());
+        if (view instanceof ProceduralView procedural) {
+            readChunks(buffer, palette, procedural.getRemoved());
+        }
+        return view;
+    }
+
+    private static void readChunks(ByteBuffer buffer, BlockData[] palette, LongObjectMap<ChunkBlocks> blocks) {
+        int chunkCount = buffer.getInt();
+        long[] keys = new long[chunkCount];
+        ChunkBlocks[] chunks = new ChunkBlocks[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            chunks[i] = readChunk(buffer, palette);
+            keys[i] = BlockifyChunk.key(chunks[i].getChunkX(), chunks[i].getChunkZ());
+        }
+        // One lock and at most one rebuild of the table for the whole view, keys are visited in array order
+        int[] next = {0};
+        blocks.computeAll(keys, (key, current) -> chunks[next[0]++]);
+    }
+
+    /**
+     * Read a chunk written by {@link #writeChunk}.
+     */
+    static ChunkBlocks readChunk(ByteBuffer buffer, BlockData[] palette) {
+        ChunkBlocks chunkBlocks = new ChunkBlocks(buffer.getInt(), buffer.getInt());
+        int sectionCount = buffer.getInt();
+        for (int i = 0; i < sectionCount; i++) {
+            int sectionY = buffer.getInt();
+            chunkBlocks.setSection(sectionY, BlockSection.read(buffer, palette));
+        }
+        return chunkBlocks;
+    }
+
+    private static int paletteId(Map<BlockData, Integer> palette, BlockData blockData) {
+        Integer id = palette.get(blockData);
+        if (id == null) {
+            id = palette.size();
+            palette.put(blockData, id);
+        }
+        return id;
+    }
+
+    private static void writePosition(DataOutputStream out, BlockifyPosition position) throws IOException {
+        out.writeInt(position.getX());
+        out.writeInt(position.getY());
+        out.writeInt(position.getZ());
+    }
+
+    private static BlockifyPosition readPosition(ByteBuffer buffer) {
+        return new BlockifyPosition(buffer.getInt(), buffer.getInt(), buffer.getInt());
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
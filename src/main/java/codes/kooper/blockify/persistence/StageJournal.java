@@ -0,0 +1,519 @@
+package codes.kooper.blockify.persistence;
+
+import codes.kooper.blockify.Blockify;
+import codes.kooper.blockify.models.Pattern;
+import codes.kooper.blockify.models.PatternFill;
+import codes.kooper.blockify.models.Stage;
+import codes.kooper.blockify.models.View;
+import codes.kooper.blockify.storage.BlockSection;
+import codes.kooper.blockify.storage.ChunkBlocks;
+import codes.kooper.blockify.types.BlockifyChunk;
+import codes.kooper.blockify.types.BlockifyPosition;
+import lombok.Getter;
+import org.bukkit.Bukkit;
+import org.bukkit.block.data.BlockData;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Crash-safe durability for a stage that keeps changing after it was saved.
+ * <p>
+ * Every view mutation appends a small record to an in-memory buffer, which the store's background thread flushes to an
+ * append-only journal file. Nothing touches the disk while a mutation runs. The sections a record touched are marked
+ * dirty, and a periodic compaction folds only those sections into a section file next to the {@link StageFile}, then
+ * drops the journals it covered. Once the section file outgrows the stage file, the stage file is rewritten instead.
+ * <p>
+ * Files of a stage named {@code mine}: {@code mine.stage} (the base), {@code mine.sections} (sections written since the
+ * base, newest last) and {@code mine.<epoch>.journal} (block changes not compacted yet). Loading applies them in that order.
+ * Journal records hold the resulting block, not the operation, so replaying a record twice is harmless.
+ */
+public class StageJournal {
+    private static final byte DEFINE_VIEW = 0, DEFINE_DATA = 1, SET = 2, REMOVE = 3, CLEAR = 4, FILL = 5;
+    private static final String JOURNAL_EXTENSION = ".journal";
+    private static final String SECTIONS_EXTENSION = ".sections";
+    // The section file is never rewritten below this size, small stages would otherwise be rewritten on every compaction
+    private static final long MIN_SECTIONS_REWRITE = 1 << 20;
+
+    @Getter
+    private final Stage stage;
+    private final Path directory;
+    private final Path stageFile;
+    private final Path sectionsFile;
+
+    // Guarded by this, shared with the threads mutating views
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private DataOutputStream out = new DataOutputStream(pending);
+    private final Map<View, Integer> viewIds = new HashMap<>();
+    private final Map<BlockData, Integer> dataIds = new HashMap<>();
+    // View -> packed (chunkX, sectionY, chunkZ) of the sections changed since the last compaction
+    private Map<View, Set<Long>> dirty = new HashMap<>();
+    private boolean snapshotRequested;
+
+    // Only used by the store's background thread
+    private FileChannel channel;
+    private long epoch;
+    @Getter
+    private long journalBytes;
+
+    StageJournal(Stage stage, Path directory, Path stageFile) {
+        this.stage = stage;
+        this.directory = directory;
+        this.stageFile = stageFile;
+        this.sectionsFile = directory.resolve(stage.getName() + SECTIONS_EXTENSION);
+        this.epoch = journals(directory, stage.getName()).stream().mapToLong(Journal::epoch).max().orElse(0);
+    }
+
+    /**
+     * Record the block a view now holds at a position.
+     *
+     * @param view The view.
+     * @param blockData The block data, or null if the block was removed.
+     */
+    public synchronized void set(View view, int x, int y, int z, BlockData blockData) {
+        try {
+            int viewId = viewId(view);
+            if (blockData == null) {
+                out.writeByte(REMOVE);
+                writePosition(viewId, x, y, z);
+            } else {
+                int dataId = dataId(blockData);
+                out.writeByte(SET);
+                writePosition(viewId, x, y, z);
+                out.writeInt(dataId);
+            }
+        } catch (IOException e) {
+            // Writes to a byte array never fail
+            throw new IllegalStateException(e);
+        }
+        dirty.computeIfAbsent(view, key -> new HashSet<>()).add(BlockifyPosition.pack(x >> 4, y >> 4, z >> 4));
+    }
+
+    /**
+     * Record that every block of a view was removed.
+     *
+     * @param view The view.
+     */
+    public synchronized void clear(View view) {
+        try {
+            int viewId = viewId(view);
+            out.writeByte(CLEAR);
+            out.writeInt(viewId);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        // The whole view is gone, so sections are no help here
+        snapshotRequested = true;
+    }
+
+    /**
+     * Record that every block of a view was refilled from a pattern, see {@link PatternFill}.
+     * Replaying refills with the same seed and the weights the pattern was built from instead of storing every block,
+     * so the replayed blocks are exactly the filled ones. The view keeps its current pattern.
+     *
+     * @param view The view.
+     * @param pattern The pattern the view was filled with.
+     * @param seed The seed of the fill.
+     */
+    public synchronized void fill(View view, Pattern pattern, long seed) {
+        try {
+            int viewId = viewId(view);
+            Map<BlockData, Double> weights = pattern.getSourceWeights();
+            int[] dataIds = new int[weights.size()];
+            int i = 0;
+            for (BlockData blockData : weights.keySet()) {
+                dataIds[i++] = dataId(blockData);
+            }
+            out.writeByte(FILL);
+            out.writeInt(viewId);
+            out.writeLong(seed);
+            out.writeInt(weights.size());
+            i = 0;
+            for (double weight : weights.values()) {
+                out.writeInt(dataIds[i++]);
+                out.writeDouble(weight);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        // Every section changed, writing the stage once is cheaper than tracking them
+        snapshotRequested = true;
+    }
+
+    /**
+     * Rewrite the whole stage file on the next compaction, for changes the journal does not cover
+     * such as added views, new bounds or a different audience.
+     */
+    public synchronized void requestSnapshot() {
+        snapshotRequested = true;
+    }
+
+    /**
+     * Append the buffered records to the journal file.
+     *
+     * @throws IOException If writing fails, the records are kept for the next attempt.
+     */
+    void flush() throws IOException {
+        byte[] bytes, prelude = null;
+        synchronized (this) {
+            if (pending.size() == 0) return;
+            bytes = pending.toByteArray();
+            pending.reset();
+            if (channel == null) {
+                prelude = definitions();
+            }
+        }
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(journalFile(++epoch), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                writeFully(prelude);
+            }
+            writeFully(bytes);
+            channel.force(false);
+        } catch (IOException e) {
+            synchronized (this) {
+                byte[] newer = pending.toByteArray();
+                pending.reset();
+                pending.writeBytes(bytes);
+                pending.writeBytes(newer);
+            }
+            if (prelude != null && channel != null) {
+                channel.close();
+                channel = null;
+            }
+            throw e;
+        }
+        journalBytes += bytes.length;
+    }
+
+    /**
+     * Fold the dirty sections into the section file, or rewrite the stage file, then delete the covered journals.
+     * Sections are serialized one at a time under their own lock, so views keep changing while this runs.
+     *
+     * @throws IOException If writing fails, the journals are kept and the sections stay dirty.
+     */
+    void compact() throws IOException {
+        flush();
+        Map<View, Set<Long>> sections;
+        boolean snapshot;
+        synchronized (this) {
+            sections = dirty;
+            dirty = new HashMap<>();
+            snapshot = snapshotRequested;
+            snapshotRequested = false;
+        }
+        // Records from here on go to a new journal, which survives this compaction
+        long covered = epoch;
+        if (channel != null) {
+            channel.close();
+            channel = null;
+            journalBytes = 0;
+        }
+
+        try {
+            long sectionsSize = Files.exists(sectionsFile) ? Files.size(sectionsFile) : 0;
+            long stageSize = Files.exists(stageFile) ? Files.size(stageFile) : 0;
+            if (snapshot || stageSize == 0 || sectionsSize > Math.max(stageSize, MIN_SECTIONS_REWRITE)) {
+                StageFile.write(stage, stageFile);
+                Files.deleteIfExists(sectionsFile);
+            } else if (!sections.isEmpty()) {
+                appendSections(sections);
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                sections.forEach((view, keys) -> dirty.computeIfAbsent(view, key -> new HashSet<>()).addAll(keys));
+                snapshotRequested |= snapshot;
+            }
+            throw e;
+        }
+
+        for (Journal journal : journals(directory, stage.getName())) {
+            if (journal.epoch() <= covered) {
+                Files.deleteIfExists(journal.path());
+            }
+        }
+    }
+
+    /**
+     * Flush what is left and close the journal file.
+     *
+     * @throws IOException If writing fails.
+     */
+    void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Delete the section file and every journal of a stage.
+     */
+    static void deleteFiles(Path directory, String name) throws IOException {
+        Files.deleteIfExists(directory.resolve(name + SECTIONS_EXTENSION));
+        for (Journal journal : journals(directory, name)) {
+            Files.deleteIfExists(journal.path());
+        }
+    }
+
+    /**
+     * Apply the section file and the journals of a stage that was just read from its stage file.
+     * A record cut off by a crash ends the file it is in.
+     *
+     * @param stage The stage, not registered yet.
+     * @param directory The directory holding the files.
+     * @throws IOException If a file cannot be read.
+     */
+    static void recover(Stage stage, Path directory) throws IOException {
+        Path sectionsFile = directory.resolve(stage.getName() + SECTIONS_EXTENSION);
+        if (Files.exists(sectionsFile)) {
+            try (FileChannel channel = FileChannel.open(sectionsFile, StandardOpenOption.READ)) {
+                applySections(stage, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        }
+        for (Journal journal : journals(directory, stage.getName())) {
+            try (FileChannel channel = FileChannel.open(journal.path(), StandardOpenOption.READ)) {
+                replay(stage, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        }
+    }
+
+    /**
+     * Section records are a length followed by: string view, int chunkX, int chunkZ, int sectionY,
+     * int palette size, string palette entries, then the section as written by {@link BlockSection#write}.
+     */
+    private void appendSections(Map<View, Set<Long>> sections) throws IOException {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream recordOut = new DataOutputStream(records);
+        ByteArrayOutputStream sectionBytes = new ByteArrayOutputStream(BlockSection.SIZE * 2);
+        DataOutputStream sectionOut = new DataOutputStream(sectionBytes);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(BlockSection.SIZE * 2);
+        DataOutputStream out = new DataOutputStream(record);
+
+        for (Map.Entry<View, Set<Long>> entry : sections.entrySet()) {
+            View view = entry.getKey();
+            if (!stage.getViews().contains(view)) continue;
+            for (long key : entry.getValue()) {
+                int chunkX = BlockifyPosition.unpackX(key), sectionY = BlockifyPosition.unpackY(key), chunkZ = BlockifyPosition.unpackZ(key);
+                ChunkBlocks chunkBlocks = view.getChunkBlocks().get(BlockifyChunk.key(chunkX, chunkZ));
+                BlockSection section = chunkBlocks == null ? null : chunkBlocks.getSection(sectionY);
+
+                List<BlockData> palette = new ArrayList<>();
+                Map<BlockData, Integer> paletteIds = new HashMap<>();
+                sectionBytes.reset();
+                (section == null ? new BlockSection() : section).write(sectionOut, data -> paletteIds.computeIfAbsent(data, added -> {
+                    palette.add(added);
+                    return palette.size() - 1;
+                }));
+
+                record.reset();
+                writeString(out, view.getName());
+                out.writeInt(chunkX);
+                out.writeInt(chunkZ);
+                out.writeInt(sectionY);
+                out.writeInt(palette.size());
+                for (BlockData blockData : palette) {
+                    writeString(out, blockData.getAsString());
+                }
+                sectionBytes.writeTo(out);
+                recordOut.writeInt(record.size());
+                record.writeTo(recordOut);
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(sectionsFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+    }
+
+    private static void applySections(Stage stage, ByteBuffer buffer) {
+        Map<String, BlockData> parsed = new HashMap<>();
+        while (buffer.remaining() >= Integer.BYTES) {
+            int length = buffer.getInt();
+            if (length > buffer.remaining()) break;
+            ByteBuffer record = buffer.slice(buffer.position(), length);
+            buffer.position(buffer.position() + length);
+
+            View view = stage.getView(readString(record));
+            int chunkX = record.getInt(), chunkZ = record.getInt(), sectionY = record.getInt();
+            BlockData[] palette = new BlockData[record.getInt()];
+            for (int i = 0; i < palette.length; i++) {
+                palette[i] = parsed.computeIfAbsent(readString(record), Bukkit::createBlockData);
+            }
+            if (view == null) continue;
+            long chunkKey = BlockifyChunk.key(chunkX, chunkZ);
+            ChunkBlocks chunkBlocks = view.getChunkBlocks().computeIfAbsent(chunkKey, key -> new ChunkBlocks(chunkX, chunkZ));
+            chunkBlocks.setSection(sectionY, BlockSection.read(record, palette));
+            // Sections that were emptied are written too
+            if (chunkBlocks.isEmpty()) {
+                view.getChunkBlocks().remove(chunkKey, chunkBlocks);
+            }
+        }
+    }
+
+    private static void replay(Stage stage, ByteBuffer buffer) {
+        Map<Integer, View> views = new HashMap<>();
+        Map<Integer, BlockData> data = new HashMap<>();
+        try {
+            while (buffer.hasRemaining()) {
+                byte type = buffer.get();
+                switch (type) {
+                    case DEFINE_VIEW -> {
+                        int id = buffer.getInt();
+                        View view = stage.getView(readString(buffer));
+                        if (view != null) views.put(id, view);
+                    }
+                    case DEFINE_DATA -> {
+                        int id = buffer.getInt();
+                        data.put(id, Bukkit.createBlockData(readString(buffer)));
+                    }
+                    case SET, REMOVE -> {
+                        View view = views.get(buffer.getInt());
+                        int x = buffer.getInt(), y = buffer.getInt(), z = buffer.getInt();
+                        BlockData blockData = type == SET ? data.get(buffer.getInt()) : null;
+                        if (view != null) view.restoreBlock(x, y, z, blockData);
+                    }
+                    case CLEAR -> {
+                        View view = views.get(buffer.getInt());
+                        if (view != null) view.removeAllBlocks();
+                    }
+                    case FILL -> {
+                        View view = views.get(buffer.getInt());
+                        long seed = buffer.getLong();
+                        Map<BlockData, Double> weights = new LinkedHashMap<>();
+                        int size = buffer.getInt();
+                        for (int i = 0; i < size; i++) {
+                            weights.put(data.get(buffer.getInt()), buffer.getDouble());
+                        }
+                        if (view == null) continue;
+                        view.restoreFill(new Pattern(weights), seed);
+                    }
+                    default -> {
+                        Blockify.getInstance().getLogger().warning("Unknown journal record " + type + " in stage " + stage.getName() + ", skipping the rest");
+                        return;
+                    }
+                }
+            }
+        } catch (BufferUnderflowException ignored) {
+            // The last record was cut off by a crash
+        }
+    }
+
+    private int viewId(View view) throws IOException {
+        Integer id = viewIds.get(view);
+        if (id == null) {
+            id = viewIds.size();
+            viewIds.put(view, id);
+            out.writeByte(DEFINE_VIEW);
+            out.writeInt(id);
+            writeString(out, view.getName());
+        }
+        return id;
+    }
+
+    private int dataId(BlockData blockData) throws IOException {
+        Integer id = dataIds.get(blockData);
+        if (id == null) {
+            id = dataIds.size();
+            dataIds.put(blockData, id);
+            out.writeByte(DEFINE_DATA);
+            out.writeInt(id);
+            writeString(out, blockData.getAsString());
+        }
+        return id;
+    }
+
+    private void writePosition(int viewId, int x, int y, int z) throws IOException {
+        out.writeInt(viewId);
+        out.writeInt(x);
+        out.writeInt(y);
+        out.writeInt(z);
+    }
+
+    /**
+     * Ids stay the same for the lifetime of the journal, every new file starts by defining the ones known so far.
+     */
+    private byte[] definitions() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream prelude = new DataOutputStream(bytes);
+        try {
+            for (Map.Entry<View, Integer> entry : viewIds.entrySet()) {
+                prelude.writeByte(DEFINE_VIEW);
+                prelude.writeInt(entry.getValue());
+                writeString(prelude, entry.getKey().getName());
+            }
+            for (Map.Entry<BlockData, Integer> entry : dataIds.entrySet()) {
+                prelude.writeByte(DEFINE_DATA);
+                prelude.writeInt(entry.getValue());
+                writeString(prelude, entry.getKey().getAsString());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void writeFully(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private Path journalFile(long epoch) {
+        return directory.resolve(stage.getName() + "." + epoch + JOURNAL_EXTENSION);
+    }
+
+    private static List<Journal> journals(Path directory, String name) {
+        List<Journal> journals = new ArrayList<>();
+        if (!Files.isDirectory(directory)) return journals;
+        String prefix = name + ".";
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(file -> {
+                String fileName = file.getFileName().toString();
+                if (!fileName.startsWith(prefix) || !fileName.endsWith(JOURNAL_EXTENSION)) return;
+                String epoch = fileName.substring(prefix.length(), fileName.length() - JOURNAL_EXTENSION.length());
+                if (!epoch.isEmpty() && epoch.chars().allMatch(Character::isDigit)) {
+                    journals.add(new Journal(file, Long.parseLong(epoch)));
+                }
+            });
+        } catch (IOException e) {
+            Blockify.getInstance().getLogger().warning("Failed to list journals of stage " + name + ": " + e.getMessage());
+        }
+        journals.sort(Comparator.comparingLong(Journal::epoch));
+        return journals;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private record Journal(Path path, long epoch) {
+    }
+}
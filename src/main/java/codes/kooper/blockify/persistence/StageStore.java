@@ -0,0 +1,266 @@
+package codes.kooper.blockify.persistence;
+
+import codes.kooper.blockify.Blockify;
+import codes.kooper.blockify.models.Stage;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+/**
+ * Saves stages to and loads them from a directory, one {@link StageFile} per stage.
+ * Nothing is saved or loaded automatically, plugins decide when their stages are written.
+ * Stages passed to {@link #track(Stage)} keep a {@link StageJournal}, which a single background thread flushes every
+ * {@link #FLUSH_INTERVAL_MILLIS} and compacts every {@link #COMPACT_INTERVAL_FLUSHES} flushes or once it grows too large.
+ */
+public class StageStore {
+    public static final String EXTENSION = ".stage";
+    public static final long FLUSH_INTERVAL_MILLIS = 1000;
+    public static final int COMPACT_INTERVAL_FLUSHES = 60;
+    public static final long COMPACT_JOURNAL_BYTES = 16 << 20;
+
+    @Getter
+    private final Path directory;
+    private final Map<Stage, StageJournal> journals = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor;
+    private int flushes;
+
+    /**
+     * @param directory The directory holding the stage files.
+     */
+    public StageStore(Path directory) {
+        this.directory = directory;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Blockify Stage Journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::tick, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write a stage and its views, replacing an older file of the stage.
+     * Blocks are read while they may still change, so call this from the thread that edits the stage for an exact copy.
+     * For a tracked stage this is a full compaction on the journal thread, and the call waits for it.
+     *
+     * @param stage The stage.
+     * @throws IOException If writing fails.
+     */
+    public void save(Stage stage) throws IOException {
+        StageJournal journal = journals.get(stage);
+        if (journal == null) {
+            StageFile.write(stage, getFile(stage.getName()));
+            return;
+        }
+        snapshot(journal);
+    }
+
+    /**
+     * Keep a stage durable from now on: its files are rewritten once, then every view change is journaled
+     * and compacted in the background. Changes the journal does not cover, such as new views, bounds or audience,
+     * are written by the next {@link StageJournal#requestSnapshot()} and on shutdown.
+     *
+     * @param stage The stage.
+     * @return The journal of the stage.
+     * @throws IOException If the stage cannot be written.
+     */
+    public StageJournal track(Stage stage) throws IOException {
+        StageJournal existing = journals.get(stage);
+        if (existing != null) return existing;
+
+        // Files of an older stage with this name would be replayed on top of the new one
+        StageJournal.deleteFiles(directory, stage.getName());
+        StageJournal journal = new StageJournal(stage, directory, getFile(stage.getName()));
+        // Journal before writing, so changes made while the file is written are not lost
+        journals.put(stage, journal);
+        stage.setJournal(journal);
+        snapshot(journal);
+        return journal;
+    }
+
+    /**
+     * Stop journaling a stage after writing what is left. The saved files stay.
+     *
+     * @param stage The stage.
+     */
+    public void untrack(Stage stage) {
+        StageJournal journal = journals.remove(stage);
+        if (journal == null) return;
+        stage.setJournal(null);
+        executor.execute(() -> {
+            try {
+                journal.compact();
+                journal.close();
+            } catch (IOException e) {
+                Blockify.getInstance().getLogger().warning("Failed to compact stage " + stage.getName() + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * @param stage The stage.
+     * @return True if changes of the stage are journaled.
+     */
+    public boolean isTracked(Stage stage) {
+        return journals.containsKey(stage);
+    }
+
+    /**
+     * Stop the journal thread and write every tracked stage in full.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                Blockify.getInstance().getLogger().warning("Stage journal thread did not stop in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (StageJournal journal : journals.values()) {
+            try {
+                journal.requestSnapshot();
+                journal.compact();
+                journal.close();
+            } catch (IOException e) {
+                Blockify.getInstance().getLogger().warning("Failed to save stage " + journal.getStage().getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Rewrite the stage file on the journal thread, so it never races a background compaction, and wait for it.
+     */
+    private void snapshot(StageJournal journal) throws IOException {
+        journal.requestSnapshot();
+        try {
+            executor.submit(() -> {
+                journal.compact();
+                return null;
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while saving stage " + journal.getStage().getName(), e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        }
+    }
+
+    private void tick() {
+        boolean compactAll = ++flushes >= COMPACT_INTERVAL_FLUSHES;
+        if (compactAll) {
+            flushes = 0;
+        }
+        for (StageJournal journal : journals.values()) {
+            try {
+                if (compactAll || journal.getJournalBytes() >= COMPACT_JOURNAL_BYTES) {
+                    journal.compact();
+                } else {
+                    journal.flush();
+                }
+            } catch (IOException e) {
+                Blockify.getInstance().getLogger().warning("Failed to write journal of stage " + journal.getStage().getName() + ": " + e.getMessage());
+            } catch (RuntimeException e) {
+                // An exception would cancel the scheduled task for every stage
+                Blockify.getInstance().getLogger().severe("Unexpected error in journal of stage " + journal.getStage().getName() + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Write every registered stage, logging the ones that fail.
+     */
+    public void saveAll() {
+        for (Stage stage : Blockify.getInstance().getStageManager().getStages().values()) {
+            try {
+                save(stage);
+            } catch (IOException e) {
+                Blockify.getInstance().getLogger().warning("Failed to save stage " + stage.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Load a stage, including changes journaled after its file was written, and register it with the stage manager.
+     * The stage is not tracked, see {@link #track(Stage)}.
+     *
+     * @param name The name of the stage.
+     * @return The stage, or null if no file exists for it.
+     * @throws IOException If the file cannot be read.
+     */
+    public Stage load(String name) throws IOException {
+        Path file = getFile(name);
+        if (!Files.exists(file)) return null;
+        Stage stage = StageFile.read(file);
+        StageJournal.recover(stage, directory);
+        Blockify.getInstance().getStageManager().createStage(stage);
+        return stage;
+    }
+
+    /**
+     * Load and register every saved stage, logging the ones that fail.
+     *
+     * @return The loaded stages.
+     */
+    public List<Stage> loadAll() {
+        List<Stage> loaded = new ArrayList<>();
+        for (String name : getSavedStages()) {
+            try {
+                Stage stage = load(name);
+                if (stage != null) {
+                    loaded.add(stage);
+                }
+            } catch (IOException e) {
+                Blockify.getInstance().getLogger().warning("Failed to load stage " + name + ": " + e.getMessage());
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Delete the files of a stage. The stage itself is not touched, but it is no longer tracked.
+     *
+     * @param name The name of the stage.
+     * @return True if a stage file was deleted.
+     * @throws IOException If deleting fails.
+     */
+    public boolean delete(String name) throws IOException {
+        journals.keySet().removeIf(stage -> {
+            if (!stage.getName().equals(name)) return false;
+            stage.setJournal(null);
+            return true;
+        });
+        StageJournal.deleteFiles(directory, name);
+        return Files.deleteIfExists(getFile(name));
+    }
+
+    /**
+     * @return The names of all saved stages.
+     */
+    public List<String> getSavedStages() {
+        List<String> names = new ArrayList<>();
+        if (!Files.isDirectory(directory)) return names;
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(file -> file.endsWith(EXTENSION))
+                    .forEach(file -> names.add(file.substring(0, file.length() - EXTENSION.length())));
+        } catch (IOException e) {
+            Blockify.getInstance().getLogger().warning("Failed to list saved stages: " + e.getMessage());
+        }
+        return names;
+    }
+
+    /**
+     * @param name The name of the stage.
+     * @return The file of the stage.
+     */
+    public Path getFile(String name) {
+        return directory.resolve(name + EXTENSION);
+    }
+}
@@ -0,0 +1,122 @@
+package codes.kooper.blockify.protocol;
+
+import codes.kooper.blockify.Blockify;
+import codes.kooper.blockify.metrics.BlockifyMetrics;
+import codes.kooper.blockify.models.PlayerLayers;
+import codes.kooper.blockify.storage.BlockStateRegistry;
+import codes.kooper.blockify.types.BlockifyChunk;
+import com.github.retrooper.packetevents.event.SimplePacketListenerAbstract;
+import com.github.retrooper.packetevents.event.simple.PacketPlaySendEvent;
+import com.github.retrooper.packetevents.protocol.packettype.PacketType;
+import com.github.retrooper.packetevents.util.Vector3i;
+import com.github.retrooper.packetevents.wrapper.play.server.WrapperPlayServerBlockChange;
+import com.github.retrooper.packetevents.wrapper.play.server.WrapperPlayServerMultiBlockChange;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.entity.Player;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Guards fake blocks against block changes the server sends for the real world, for example from physics, pistons or
+ * explosions inside a stage. Entries that would overwrite a fake block are rewritten to the fake state the player sees,
+ * the rest of the packet goes through unchanged. Chunk packets are patched by {@link ChunkLoadAdapter}.
+ * <p>
+ * Blockify sends its own block changes silently, see {@link codes.kooper.blockify.managers.BlockChangeManager#sendBlocks},
+ * so they never pass through here. Block changes other plugins send into fake positions are corrected like any other;
+ * to show a single player a different block, set a personal block through
+ * {@link codes.kooper.blockify.managers.BlockChangeManager#applyBlockChange(Player, int, int, int, BlockData, String)}.
+ * <p>
+ * The server sends block changes after they happened, also for changes that fired no event such as
+ * {@code Block#setType} from other plugins, so the chunks they touch are invalidated here as well. The same change is
+ * sent to every player watching the chunk, so like {@link codes.kooper.blockify.listeners.WorldChangeListener} a chunk
+ * is invalidated once when the first of these packets goes out and once more on the next tick, not once per packet.
+ */
+public class BlockChangeGuardAdapter extends SimplePacketListenerAbstract {
+    // Chunks invalidated since the last tick, to invalidate again on the next tick; packets are sent from netty threads
+    private final Set<ChangedChunk> changed = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    @Override
+    public void onPacketPlaySend(PacketPlaySendEvent event) {
+        if (event.getPacketType() == PacketType.Play.Server.BLOCK_CHANGE) {
+            BlockifyMetrics metrics = Blockify.getInstance().getMetrics();
+            metrics.handle(metrics.getBlockChangeHandler(), event, () -> handleBlockChange(event));
+        } else if (event.getPacketType() == PacketType.Play.Server.MULTI_BLOCK_CHANGE) {
+            BlockifyMetrics metrics = Blockify.getInstance().getMetrics();
+            metrics.handle(metrics.getMultiBlockChangeHandler(), event, () -> handleMultiBlockChange(event));
+        }
+    }
+
+    private void handleBlockChange(PacketPlaySendEvent event) {
+        Player player = event.getPlayer();
+        PlayerLayers layers = Blockify.getInstance().getBlockChangeManager().getLayers(player);
+        if (layers == null) return;
+
+        WrapperPlayServerBlockChange wrapper = new WrapperPlayServerBlockChange(event);
+        Vector3i position = wrapper.getBlockPosition();
+        markChanged(player.getWorld(), position.getX() >> 4, position.getZ() >> 4);
+        if (!layers.hasBlocksIn(player.getWorld(), BlockifyChunk.keyOfBlock(position.getX(), position.getZ()))) return;
+
+        BlockData blockData = layers.getBlock(player.getWorld(), position.getX(), position.getY(), position.getZ());
+        if (blockData == null) return;
+        int stateId = BlockStateRegistry.getGlobalId(blockData);
+        if (wrapper.getBlockId() == stateId) return;
+
+        wrapper.setBlockState(BlockStateRegistry.getState(blockData));
+        event.markForReEncode(true);
+        Blockify.getInstance().getMetrics().getGuardCorrections().increment();
+    }
+
+    private void handleMultiBlockChange(PacketPlaySendEvent event) {
+        Player player = event.getPlayer();
+        PlayerLayers layers = Blockify.getInstance().getBlockChangeManager().getLayers(player);
+        if (layers == null) return;
+
+        WrapperPlayServerMultiBlockChange wrapper = new WrapperPlayServerMultiBlockChange(event);
+        Vector3i section = wrapper.getChunkPosition();
+        markChanged(player.getWorld(), section.getX(), section.getZ());
+        if (!layers.hasBlocksIn(player.getWorld(), BlockifyChunk.key(section.getX(), section.getZ()))) return;
+
+        World world = player.getWorld();
+        int baseX = section.getX() << 4, baseY = section.getY() << 4, baseZ = section.getZ() << 4;
+        int corrections = 0;
+        for (WrapperPlayServerMultiBlockChange.EncodedBlock block : wrapper.getBlocks()) {
+            // Coordinates are masked, so this holds whether the encoded block stores relative or absolute ones
+            int x = baseX + (block.getX() & 15), y = baseY + (block.getY() & 15), z = baseZ + (block.getZ() & 15);
+            BlockData blockData = layers.getBlock(world, x, y, z);
+            if (blockData == null) continue;
+            int stateId = BlockStateRegistry.getGlobalId(blockData);
+            if (block.getBlockId() == stateId) continue;
+            block.setBlockId(stateId);
+            corrections++;
+        }
+        if (corrections == 0) return;
+
+        event.markForReEncode(true);
+        Blockify.getInstance().getMetrics().getGuardCorrections().add(corrections);
+    }
+
+    private void markChanged(World world, int chunkX, int chunkZ) {
+        if (!changed.add(new ChangedChunk(world, chunkX, chunkZ))) return;
+        Blockify.getInstance().getBlockChangeManager().invalidate(world, chunkX, chunkZ);
+        if (scheduled.compareAndSet(false, true)) {
+            Bukkit.getScheduler().runTask(Blockify.getInstance(), this::invalidateChanged);
+        }
+    }
+
+    private void invalidateChanged() {
+        // Cleared first, so a chunk marked while this runs schedules the next run
+        scheduled.set(false);
+        for (ChangedChunk chunk : changed) {
+            changed.remove(chunk);
+            Blockify.getInstance().getBlockChangeManager().invalidate(chunk.world(), chunk.chunkX(), chunk.chunkZ());
+        }
+    }
+
+    private record ChangedChunk(World world, int chunkX, int chunkZ) {
+    }
+}
@@ -1,9 +1,16 @@
 package codes.kooper.blockify.protocol;
 
 import codes.kooper.blockify.Blockify;
+import codes.kooper.blockify.cache.ResolvedSection;
+import codes.kooper.blockify.cache.ResolvedSurfaceCache;
 import codes.kooper.blockify.events.BlockifyBreakEvent;
 import codes.kooper.blockify.events.BlockifyInteractEvent;
+import codes.kooper.blockify.managers.BlockChangeManager;
+import codes.kooper.blockify.metrics.BlockifyMetrics;
 import codes.kooper.blockify.models.Stage;
+import codes.kooper.blockify.models.View;
+import codes.kooper.blockify.storage.BlockSection;
+import codes.kooper.blockify.types.BlockifyChunk;
 import codes.kooper.blockify.types.BlockifyPosition;
 import com.github.retrooper.packetevents.event.SimplePacketListenerAbstract;
 import com.github.retrooper.packetevents.event.simple.PacketPlayReceiveEvent;
@@ -19,6 +26,7 @@ import org.bukkit.inventory.ItemStack;
 import org.bukkit.potion.PotionEffectType;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 public class BlockDigAdapter extends SimplePacketListenerAbstract {
@@ -26,59 +34,78 @@ public class BlockDigAdapter extends SimplePacketListenerAbstract {
     @Override
     public void onPacketPlayReceive(PacketPlayReceiveEvent event) {
         if (event.getPacketType() == PacketType.Play.Client.PLAYER_DIGGING) {
-            // Packet wrapper
-            WrapperPlayClientPlayerDigging wrapper = new WrapperPlayClientPlayerDigging(event);
-            DiggingAction actionType = wrapper.getAction();
+            BlockifyMetrics metrics = Blockify.getInstance().getMetrics();
+            metrics.handle(metrics.getDiggingHandler(), event, () -> handleDigging(event));
+        }
+    }
 
-            // Extract information from wrapper
-            Player player = event.getPlayer();
+    private void handleDigging(PacketPlayReceiveEvent event) {
+        // Packet wrapper
+        WrapperPlayClientPlayerDigging wrapper = new WrapperPlayClientPlayerDigging(event);
+        DiggingAction actionType = wrapper.getAction();
 
-            // Get stages the player is in. If the player is not in any stages, return.
-            List<Stage> stages = Blockify.getInstance().getStageManager().getStages(player);
-            if (stages == null || stages.isEmpty()) {
-                return;
+        // Extract information from wrapper
+        Player player = event.getPlayer();
+
+        // Get stages the player is in. If the player is not in any stages, return.
+        List<Stage> stages = Blockify.getInstance().getStageManager().getStages(player);
+        if (stages == null || stages.isEmpty()) {
+            return;
+        }
+
+        int x = wrapper.getBlockPosition().getX();
+        int y = wrapper.getBlockPosition().getY();
+        int z = wrapper.getBlockPosition().getZ();
+
+        // Find the top view holding the block, from the resolved surface of each stage
+        ResolvedSurfaceCache surfaces = Blockify.getInstance().getBlockChangeManager().getResolvedSurfaceCache();
+        long chunkKey = BlockifyChunk.keyOfBlock(x, z);
+        int index = BlockSection.index(x, y, z);
+        View top = null;
+        for (Stage stage : stages) {
+            if (stage.getWorld() != player.getWorld()) continue;
+            ResolvedSection surface = surfaces.get(stage, chunkKey, y >> 4);
+            View candidate = surface == null ? null : surface.getView(index);
+            if (candidate != null && (top == null || candidate.getZIndex() > top.getZIndex())) {
+                top = candidate;
             }
+        }
+        if (top == null) return;
+        View view = top;
+
+        // Get block data from view
+        BlockifyPosition position = new BlockifyPosition(x, y, z);
+        BlockData blockData = view.getBlock(x, y, z);
 
-            BlockifyPosition position = new BlockifyPosition(wrapper.getBlockPosition().getX(), wrapper.getBlockPosition().getY(), wrapper.getBlockPosition().getZ());
-
-            // Find the block in any stage and view using streams
-            stages.stream()
-                    .filter(stage -> stage.getWorld() == player.getWorld())
-                    .flatMap(stage -> stage.getViews().stream())
-                    .filter(view -> view.hasBlock(position)).min((view1, view2) -> Integer.compare(view2.getZIndex(), view1.getZIndex()))
-                    .ifPresent(view -> {
-                        // Get block data from view
-                        BlockData blockData = view.getBlock(position);
-
-                        // Call BlockifyInteractEvent to handle custom interaction
-                        Bukkit.getScheduler().runTask(Blockify.getInstance(), () -> new BlockifyInteractEvent(player, position, blockData, view, view.getStage()).callEvent());
-
-                        // Check if block is breakable, if not, send block change packet to cancel the break
-                        if (!view.isBreakable()) {
-                            event.setCancelled(true);
-                            return;
-                        }
-
-                        // Block break functionality
-                        if (actionType == DiggingAction.FINISHED_DIGGING || canInstantBreak(player, blockData)) {
-                            BlockifyBreakEvent blockifyBreakEvent = new BlockifyBreakEvent(player, position, blockData, view, view.getStage());
-                            blockifyBreakEvent.callEvent();
-
-                            // Set to air
-                            view.setBlock(position, Material.AIR.createBlockData());
-                            for (Player audienceMember : view.getStage().getAudience().getOnlinePlayers()) {
-                                audienceMember.sendBlockChange(position.toLocation(player.getWorld()), Material.AIR.createBlockData());
-                            }
-
-                            // If block is not cancelled, break the block, otherwise, revert the block
-                            if (blockifyBreakEvent.isCancelled()) {
-                                for (Player audienceMember : view.getStage().getAudience().getOnlinePlayers()) {
-                                    audienceMember.sendBlockChange(position.toLocation(player.getWorld()), blockData);
-                                }
-                                view.setBlock(position, blockData);
-                            }
-                        }
-                    });
+        // Call BlockifyInteractEvent to handle custom interaction
+        Bukkit.getScheduler().runTask(Blockify.getInstance(), () -> new BlockifyInteractEvent(player, position, blockData, view, view.getStage()).callEvent());
+
+        // Check if block is breakable, if not, send block change packet to cancel the break
+        if (!view.isBreakable()) {
+            event.setCancelled(true);
+            return;
+        }
+
+        // Block break functionality
+        if (actionType == DiggingAction.FINISHED_DIGGING || canInstantBreak(player, blockData)) {
+            BlockifyBreakEvent blockifyBreakEvent = new BlockifyBreakEvent(player, position, blockData, view, view.getStage());
+            blockifyBreakEvent.callEvent();
+
+            // Set to air. The view changes before the packets go out, so they carry the block the view now holds
+            BlockChangeManager blockChangeManager = Blockify.getInstance().getBlockChangeManager();
+            BlockData air = Material.AIR.createBlockData();
+            view.setBlock(position, air);
+            for (Player audienceMember : view.getStage().getAudience().getOnlineMembers()) {
+                blockChangeManager.sendBlocks(audienceMember, Map.of(position, air));
+            }
+
+            // If block is not cancelled, break the block, otherwise, revert the block
+            if (blockifyBreakEvent.isCancelled()) {
+                view.setBlock(position, blockData);
+                for (Player audienceMember : view.getStage().getAudience().getOnlineMembers()) {
+                    blockChangeManager.sendBlocks(audienceMember, Map.of(position, blockData));
+                }
+            }
         }
     }
 
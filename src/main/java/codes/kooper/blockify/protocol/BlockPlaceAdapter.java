@@ -1,16 +1,19 @@
 package codes.kooper.blockify.protocol;
 
 import codes.kooper.blockify.Blockify;
+import codes.kooper.blockify.cache.ResolvedSection;
+import codes.kooper.blockify.cache.ResolvedSurfaceCache;
 import codes.kooper.blockify.events.BlockifyPlaceEvent;
+import codes.kooper.blockify.metrics.BlockifyMetrics;
 import codes.kooper.blockify.models.Stage;
 import codes.kooper.blockify.models.View;
+import codes.kooper.blockify.storage.BlockSection;
+import codes.kooper.blockify.types.BlockifyChunk;
 import codes.kooper.blockify.types.BlockifyPosition;
 import com.github.retrooper.packetevents.event.SimplePacketListenerAbstract;
 import com.github.retrooper.packetevents.event.simple.PacketPlayReceiveEvent;
-import com.github.retrooper.packetevents.event.simple.PacketPlaySendEvent;
 import com.github.retrooper.packetevents.protocol.packettype.PacketType;
 import com.github.retrooper.packetevents.wrapper.play.client.WrapperPlayClientPlayerBlockPlacement;
-import com.github.retrooper.packetevents.wrapper.play.server.WrapperPlayServerBlockChange;
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
 
@@ -21,56 +24,41 @@ public class BlockPlaceAdapter extends SimplePacketListenerAbstract {
     @Override
     public void onPacketPlayReceive(PacketPlayReceiveEvent event) {
         if (event.getPacketType() == PacketType.Play.Client.PLAYER_BLOCK_PLACEMENT) {
-            // Wrapper for the packet
-            WrapperPlayClientPlayerBlockPlacement wrapper = new WrapperPlayClientPlayerBlockPlacement(event);
-            Player player = event.getPlayer();
-
-            // Get the stages the player is in. If the player is not in any stages, return.
-            List<Stage> stages = Blockify.getInstance().getStageManager().getStages(player);
-            if (stages == null || stages.isEmpty()) {
-                return;
-            }
+            BlockifyMetrics metrics = Blockify.getInstance().getMetrics();
+            metrics.handle(metrics.getBlockPlacementHandler(), event, () -> handleBlockPlacement(event));
+        }
+    }
 
-            BlockifyPosition position = new BlockifyPosition(wrapper.getBlockPosition().getX(), wrapper.getBlockPosition().getY(), wrapper.getBlockPosition().getZ());
+    private void handleBlockPlacement(PacketPlayReceiveEvent event) {
+        // Wrapper for the packet
+        WrapperPlayClientPlayerBlockPlacement wrapper = new WrapperPlayClientPlayerBlockPlacement(event);
+        Player player = event.getPlayer();
 
-            // Check if the block is in any of the views in the stages
-            for (Stage stage : stages) {
-                if (!stage.getWorld().equals(player.getWorld())) continue;
-                for (View view : stage.getViews()) {
-                    if (view.hasBlock(position)) {
-                        // Call the event and cancel the placement
-                        Bukkit.getScheduler().runTask(Blockify.getInstance(), () -> new BlockifyPlaceEvent(player, position, view, stage).callEvent());
-                        event.setCancelled(true);
-                        return;
-                    }
-                }
-            }
+        // Get the stages the player is in. If the player is not in any stages, return.
+        List<Stage> stages = Blockify.getInstance().getStageManager().getStages(player);
+        if (stages == null || stages.isEmpty()) {
+            return;
         }
-    }
 
-    @Override
-    public void onPacketPlaySend(PacketPlaySendEvent event) {
-        if (event.getPacketType() == PacketType.Play.Server.BLOCK_CHANGE) {
-            WrapperPlayServerBlockChange wrapper = new WrapperPlayServerBlockChange(event);
-            Player player = event.getPlayer();
+        int x = wrapper.getBlockPosition().getX();
+        int y = wrapper.getBlockPosition().getY();
+        int z = wrapper.getBlockPosition().getZ();
 
-            // Get the stages the player is in. If the player is not in any stages, return.
-            List<Stage> stages = Blockify.getInstance().getStageManager().getStages(player);
-            if (stages == null || stages.isEmpty()) {
+        // Check if the block is in any of the views in the stages, from the resolved surface of each stage
+        ResolvedSurfaceCache surfaces = Blockify.getInstance().getBlockChangeManager().getResolvedSurfaceCache();
+        long chunkKey = BlockifyChunk.keyOfBlock(x, z);
+        int index = BlockSection.index(x, y, z);
+        for (Stage stage : stages) {
+            if (!stage.getWorld().equals(player.getWorld())) continue;
+            ResolvedSection surface = surfaces.get(stage, chunkKey, y >> 4);
+            View view = surface == null ? null : surface.getView(index);
+            if (view != null) {
+                // Call the event and cancel the placement
+                BlockifyPosition position = new BlockifyPosition(x, y, z);
+                Bukkit.getScheduler().runTask(Blockify.getInstance(), () -> new BlockifyPlaceEvent(player, position, view, stage).callEvent());
+                event.setCancelled(true);
                 return;
             }
-            
-            BlockifyPosition position = new BlockifyPosition(wrapper.getBlockPosition().getX(), wrapper.getBlockPosition().getY(), wrapper.getBlockPosition().getZ());
-            for (Stage stage : stages) {
-                if (!stage.getWorld().equals(player.getWorld())) continue;
-                for (View view : stage.getViews()) {
-                    if (view.hasBlock(position)) {
-                        if (wrapper.getBlockState().getType().getName().equalsIgnoreCase(view.getBlock(position).getMaterial().name())) continue;
-                        event.setCancelled(true);
-                        return;
-                    }
-                }
-            }
         }
     }
 
@@ -1,51 +1,82 @@
 package codes.kooper.blockify.protocol;
 
 import codes.kooper.blockify.Blockify;
+import codes.kooper.blockify.managers.BlockChangeManager;
+import codes.kooper.blockify.metrics.BlockifyMetrics;
 import codes.kooper.blockify.models.Stage;
 import codes.kooper.blockify.types.BlockifyChunk;
 import com.github.retrooper.packetevents.event.SimplePacketListenerAbstract;
 import com.github.retrooper.packetevents.event.simple.PacketPlaySendEvent;
 import com.github.retrooper.packetevents.protocol.packettype.PacketType;
+import com.github.retrooper.packetevents.protocol.world.chunk.Column;
 import com.github.retrooper.packetevents.wrapper.play.server.WrapperPlayServerChunkData;
 import org.bukkit.entity.Player;
 
-import java.util.List;
-
 public class ChunkLoadAdapter extends SimplePacketListenerAbstract {
+    private final boolean patchInPlace;
+
+    /**
+     * @param patchInPlace True to write fake blocks into the chunk packets of the server and let them through,
+     *                     false to cancel them and send a chunk rebuilt from a snapshot of the world.
+     */
+    public ChunkLoadAdapter(boolean patchInPlace) {
+        this.patchInPlace = patchInPlace;
+    }
 
     @Override
     public void onPacketPlaySend(PacketPlaySendEvent event) {
         if (event.getPacketType() == PacketType.Play.Server.CHUNK_DATA) {
-            Player player = event.getPlayer();
-
-            // Wrapper for the chunk data packet
-            WrapperPlayServerChunkData chunkData = new WrapperPlayServerChunkData(event);
-            int chunkX = chunkData.getColumn().getX();
-            int chunkZ = chunkData.getColumn().getZ();
+            BlockifyMetrics metrics = Blockify.getInstance().getMetrics();
+            metrics.handle(metrics.getChunkDataHandler(), event, () -> handleChunkData(event));
+        }
+    }
 
-            // Get the stages the player is in. If the player is not in any stages, return.
-            List<Stage> stages = Blockify.getInstance().getStageManager().getStages(player);
-            if (stages == null || stages.isEmpty()) {
-                return;
-            }
+    private void handleChunkData(PacketPlaySendEvent event) {
+        Player player = event.getPlayer();
 
-            // Loop through the stages and views to check if the chunk is in the view.
-            for (Stage stage : stages) {
+        // Wrapper for the chunk data packet
+        WrapperPlayServerChunkData chunkData = new WrapperPlayServerChunkData(event);
+        int chunkX = chunkData.getColumn().getX();
+        int chunkZ = chunkData.getColumn().getZ();
 
-                // If the chunk is not in the world, return.
-                if (!stage.getWorld().equals(player.getWorld())) return;
+        // Get the stages covering the chunk. If there are none, return.
+        Stage[] stages = Blockify.getInstance().getStageManager().getStagesAt(player.getWorld(), chunkX, chunkZ);
+        if (stages.length == 0) {
+            return;
+        }
 
-                if (stage.getChunks().contains(new BlockifyChunk(chunkX, chunkZ))) {
-                    BlockifyChunk blockifyChunk = new BlockifyChunk(chunkX, chunkZ);
+        // Only players in the audience of a stage get fake blocks, other packets are neither captured nor changed.
+        // The chunk is built with every layer of the player, so one stage is enough.
+        if (!inAudience(player, stages)) {
+            return;
+        }
 
-                    // Cancel the packet to prevent the player from seeing the chunk
-                    event.setCancelled(true);
+        // Keep the packet as the server built it, restoring the real chunk later resends it instead of rebuilding it
+        BlockChangeManager blockChangeManager = Blockify.getInstance().getBlockChangeManager();
+        blockChangeManager.captureVanillaChunk(player.getWorld(), chunkData.getColumn(), chunkData.getLightData());
 
-                    // Send the chunk packet to the player
-                    Blockify.getInstance().getBlockChangeManager().getExecutorService().submit(() -> Blockify.getInstance().getBlockChangeManager().sendChunkPacket(player, blockifyChunk, false));
-                }
+        if (patchInPlace) {
+            // Only sections holding fake blocks change, the rest of the packet is sent as the server encoded it
+            Column patched = blockChangeManager.patchChunkPacket(player, chunkData.getColumn());
+            if (patched != null) {
+                chunkData.setColumn(patched);
+                event.markForReEncode(true);
+                Blockify.getInstance().getMetrics().getChunksPatched().increment();
             }
+            return;
         }
+
+        // Cancel the packet to prevent the player from seeing the chunk
+        event.setCancelled(true);
+
+        // Send the chunk packet to the player
+        blockChangeManager.sendChunkPacket(player, new BlockifyChunk(chunkX, chunkZ), false);
     }
 
+    private static boolean inAudience(Player player, Stage[] stages) {
+        for (Stage stage : stages) {
+            if (stage.getAudience().getPlayers().contains(player.getUniqueId())) return true;
+        }
+        return false;
+    }
 }
@@ -0,0 +1,301 @@
+package codes.kooper.blockify.scheduler;
+
+import codes.kooper.blockify.Blockify;
+import codes.kooper.blockify.metrics.BlockifyMetrics;
+import codes.kooper.blockify.models.Stage;
+import codes.kooper.blockify.types.BlockifyChunk;
+import com.github.retrooper.packetevents.PacketEvents;
+import com.github.retrooper.packetevents.protocol.player.User;
+import io.netty.channel.Channel;
+import lombok.Getter;
+import lombok.Setter;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.*;
+
+/**
+ * Feeds stage refreshes into the {@link ChunkSendScheduler} from a single task that runs every tick.
+ * Every player has their own rate in chunks per tick. It grows while the player's connection keeps up and is halved as
+ * soon as their netty channel stops being writable or their chunks pile up in the scheduler. Players with a lower ping
+ * grow faster. All players share a server-wide budget of bytes per tick, so a large refresh never floods the network.
+ * <p>
+ * Refreshes only cover the chunks within the view distance of the player, closest first. As the player moves, the
+ * remaining chunks are ordered again and chunks that left their view are dropped. Chunks the client has not loaded are
+ * skipped, the server sends them when they come into view and {@link codes.kooper.blockify.protocol.ChunkLoadAdapter}
+ * adds the fake blocks, so the cost of a refresh follows what the player can see rather than the size of the stage.
+ */
+public class ChunkSendPacer {
+    public static final long DEFAULT_MAX_BYTES_PER_TICK = 2L * 1024 * 1024;
+    private static final double MIN_RATE = 0.25;
+    private static final double MAX_RATE = 64;
+
+    private final ChunkSendScheduler scheduler;
+    private final Map<UUID, PlayerPace> players = new LinkedHashMap<>();
+    @Getter
+    @Setter
+    private volatile long maxBytesPerTick = DEFAULT_MAX_BYTES_PER_TICK;
+    // Moving average of the size of sent chunks, used to estimate what a chunk costs before it is built
+    @Getter
+    private volatile double averageChunkBytes = 16 * 1024;
+    private BukkitTask task;
+    private int offset;
+
+    public ChunkSendPacer(ChunkSendScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public void start(Plugin plugin) {
+        if (task == null) {
+            task = Bukkit.getScheduler().runTaskTimer(plugin, this::tick, 1L, 1L);
+        }
+    }
+
+    public synchronized void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        players.clear();
+    }
+
+    /**
+     * Queue a refresh of chunks for a player. A refresh of the same stage that is still running is replaced.
+     * The first tick sends {@link Stage#getChunksPerTick()} chunks, after that the rate adapts to the player.
+     * Chunks outside the view distance of the player are left out.
+     *
+     * @param player The player.
+     * @param stage The stage the chunks belong to.
+     * @param chunks The chunks to send.
+     * @param unload Whether to send the chunks without fake blocks.
+     */
+    public synchronized void refresh(Player player, Stage stage, Collection<BlockifyChunk> chunks, boolean unload) {
+        if (chunks.isEmpty()) return;
+
+        Location location = player.getLocation();
+        Refresh refresh = new Refresh(new ArrayDeque<>(chunks), unload);
+        int culled = refresh.reorder(location.getBlockX() >> 4, location.getBlockZ() >> 4, viewDistance(player));
+        Blockify.getInstance().getMetrics().getChunksCulled().add(culled);
+        if (refresh.chunks.isEmpty()) {
+            // Nothing is in view, the chunks are sent with the new state once they load
+            cancel(player.getUniqueId(), stage);
+            return;
+        }
+
+        PlayerPace pace = players.computeIfAbsent(player.getUniqueId(), k -> new PlayerPace(Math.max(MIN_RATE, stage.getChunksPerTick())));
+        pace.player = player;
+        pace.refreshes.put(stage, refresh);
+    }
+
+    /**
+     * Cancel every refresh of a player.
+     *
+     * @param player The UUID of the player.
+     */
+    public synchronized void cancel(UUID player) {
+        players.remove(player);
+    }
+
+    /**
+     * Cancel the refresh of a stage for a player.
+     *
+     * @param player The UUID of the player.
+     * @param stage The stage.
+     */
+    public synchronized void cancel(UUID player, Stage stage) {
+        PlayerPace pace = players.get(player);
+        if (pace != null && pace.refreshes.remove(stage) != null && pace.refreshes.isEmpty()) {
+            players.remove(player);
+        }
+    }
+
+    /**
+     * Record the size of a chunk that was sent. Called from the chunk building threads.
+     *
+     * @param bytes The size of the chunk.
+     */
+    public void recordSent(long bytes) {
+        averageChunkBytes = averageChunkBytes * 0.95 + bytes * 0.05;
+    }
+
+    /**
+     * @param player The UUID of the player.
+     * @return The current rate of the player in chunks per tick, or 0 if nothing is being sent to them.
+     */
+    public synchronized double getRate(UUID player) {
+        PlayerPace pace = players.get(player);
+        return pace == null ? 0 : pace.rate;
+    }
+
+    /**
+     * @return The amount of players with a refresh running.
+     */
+    public synchronized int getPlayerCount() {
+        return players.size();
+    }
+
+    private synchronized void tick() {
+        if (players.isEmpty()) return;
+        BlockifyMetrics metrics = Blockify.getInstance().getMetrics();
+        int submitted = 0;
+        int culled = 0;
+
+        double estimate = Math.max(1, averageChunkBytes);
+        double budget = maxBytesPerTick;
+
+        // Start at a different player every tick, so the budget is not always used up by the same players
+        List<PlayerPace> paces = new ArrayList<>(players.values());
+        offset = (offset + 1) % paces.size();
+        for (int i = 0; i < paces.size() && budget >= estimate; i++) {
+            PlayerPace pace = paces.get((offset + i) % paces.size());
+            Player player = pace.player;
+            if (!player.isOnline()) {
+                players.remove(player.getUniqueId());
+                continue;
+            }
+            culled += pace.follow(player);
+
+            if (isCongested(player, pace)) {
+                pace.rate = Math.max(MIN_RATE, pace.rate / 2);
+                pace.credit = 0;
+                continue;
+            }
+            pace.rate = Math.min(MAX_RATE, pace.rate + 1 / (1 + player.getPing() / 100.0));
+            pace.credit = Math.min(pace.credit + pace.rate, Math.max(1, pace.rate));
+
+            int playerSubmitted = 0;
+            while (pace.credit >= 1 && budget >= estimate) {
+                Map.Entry<Stage, Refresh> next = pace.next();
+                if (next == null) break;
+                BlockifyChunk chunk = next.getValue().chunks.poll();
+                // Chunks the client does not have are patched by the chunk listener when the server sends them
+                if (!player.isChunkSent(chunk.getChunkKey())) {
+                    culled++;
+                    continue;
+                }
+                scheduler.submit(player, chunk, next.getValue().unload);
+                pace.credit--;
+                budget -= estimate;
+                playerSubmitted++;
+            }
+            metrics.getPlayerChunksPerTick().record(playerSubmitted);
+            submitted += playerSubmitted;
+            if (pace.next() == null) {
+                players.remove(player.getUniqueId());
+            }
+        }
+        metrics.getChunksPerTick().record(submitted);
+        metrics.getChunksCulled().add(culled);
+    }
+
+    /**
+     * The distance in chunks the player is sent chunks within, the lower of the send distance of the server and the view
+     * distance of the client. The client distance is unknown until the client sent its settings.
+     */
+    private static int viewDistance(Player player) {
+        int sendDistance = player.getSendViewDistance();
+        int clientDistance = player.getClientViewDistance();
+        return clientDistance > 0 ? Math.min(sendDistance, clientDistance) : sendDistance;
+    }
+
+    /**
+     * A player is congested when their channel buffer is full, or when more chunks are waiting to be built for them than
+     * two ticks worth at their current rate.
+     */
+    private boolean isCongested(Player player, PlayerPace pace) {
+        if (scheduler.getPending(player.getUniqueId()) > Math.ceil(pace.rate) * 2) return true;
+        User user = PacketEvents.getAPI().getPlayerManager().getUser(player);
+        return user != null && user.getChannel() instanceof Channel channel && !channel.isWritable();
+    }
+
+    private static final class PlayerPace {
+        // Stage -> refresh, a new refresh of a stage replaces the old one
+        private final LinkedHashMap<Stage, Refresh> refreshes = new LinkedHashMap<>();
+        private Player player;
+        private double rate;
+        private double credit;
+
+        private PlayerPace(double rate) {
+            this.rate = rate;
+        }
+
+        /**
+         * Drop the refreshes of stages the player is no longer in the world of, and order the remaining chunks again
+         * once the player entered another chunk.
+         *
+         * @return The amount of chunks dropped because they left the view of the player.
+         */
+        private int follow(Player player) {
+            Location location = player.getLocation();
+            int chunkX = location.getBlockX() >> 4, chunkZ = location.getBlockZ() >> 4;
+            int viewDistance = -1;
+            int culled = 0;
+            Iterator<Map.Entry<Stage, Refresh>> iterator = refreshes.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Stage, Refresh> entry = iterator.next();
+                if (entry.getKey().getWorld() != location.getWorld()) {
+                    iterator.remove();
+                    continue;
+                }
+                Refresh refresh = entry.getValue();
+                if (refresh.centerX == chunkX && refresh.centerZ == chunkZ) continue;
+                if (viewDistance < 0) {
+                    viewDistance = viewDistance(player);
+                }
+                culled += refresh.reorder(chunkX, chunkZ, viewDistance);
+            }
+            return culled;
+        }
+
+        /**
+         * @return The first refresh with chunks left, finished refreshes are dropped.
+         */
+        private Map.Entry<Stage, Refresh> next() {
+            Iterator<Map.Entry<Stage, Refresh>> iterator = refreshes.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Stage, Refresh> entry = iterator.next();
+                if (!entry.getValue().chunks.isEmpty()) return entry;
+                iterator.remove();
+            }
+            return null;
+        }
+    }
+
+    private static final class Refresh {
+        private Deque<BlockifyChunk> chunks;
+        private final boolean unload;
+        // The chunk of the player when the chunks were last ordered
+        private int centerX, centerZ;
+
+        private Refresh(Deque<BlockifyChunk> chunks, boolean unload) {
+            this.chunks = chunks;
+            this.unload = unload;
+        }
+
+        /**
+         * Keep the chunks within the view distance around a chunk, ordered closest first.
+         *
+         * @return The amount of chunks dropped.
+         */
+        private int reorder(int centerX, int centerZ, int viewDistance) {
+            this.centerX = centerX;
+            this.centerZ = centerZ;
+            List<BlockifyChunk> visible = new ArrayList<>(chunks.size());
+            for (BlockifyChunk chunk : chunks) {
+                if (Math.abs(chunk.x() - centerX) <= viewDistance && Math.abs(chunk.z() - centerZ) <= viewDistance) {
+                    visible.add(chunk);
+                }
+            }
+            visible.sort(Comparator.comparingInt(chunk -> {
+                int dx = chunk.x() - centerX, dz = chunk.z() - centerZ;
+                return dx * dx + dz * dz;
+            }));
+            int culled = chunks.size() - visible.size();
+            chunks = new ArrayDeque<>(visible);
+            return culled;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package codes.kooper.blockify.scheduler;
+
+import codes.kooper.blockify.Blockify;
+import codes.kooper.blockify.types.BlockifyChunk;
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Builds and sends chunks on a fixed amount of worker threads.
+ * Every player has their own queue, ordered by distance from the player when the chunk was requested, so the chunks
+ * around the player load first. Requesting a chunk that is still pending for the same player only updates the pending
+ * request. Workers take players round-robin, so one player with a large refresh does not delay everyone else.
+ */
+public class ChunkSendScheduler {
+    private final ChunkSender sender;
+    private final Map<UUID, PlayerQueue> queues = new ConcurrentHashMap<>();
+    private final BlockingQueue<PlayerQueue> ready = new LinkedBlockingQueue<>();
+    private final Thread[] workers;
+    private volatile boolean running = true;
+
+    /**
+     * @param sender The function building and sending a chunk.
+     * @param threads The maximum amount of chunks built at the same time.
+     */
+    public ChunkSendScheduler(ChunkSender sender, int threads) {
+        this.sender = sender;
+        this.workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(this::work, "Blockify Chunk Sender #" + (i + 1));
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * @return The default amount of worker threads, leaving one core for the main thread.
+     */
+    public static int defaultThreads() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    }
+
+    /**
+     * Queue a chunk for a player. If the chunk is already pending for the player, the pending request is updated instead.
+     *
+     * @param player The player.
+     * @param chunk The chunk.
+     * @param unload Whether to send the chunk without fake blocks.
+     */
+    public void submit(Player player, BlockifyChunk chunk, boolean unload) {
+        if (!running) return;
+        Location location = player.getLocation();
+        int dx = chunk.x() - (location.getBlockX() >> 4);
+        int dz = chunk.z() - (location.getBlockZ() >> 4);
+        queues.computeIfAbsent(player.getUniqueId(), k -> new PlayerQueue()).offer(player, chunk, unload, dx * dx + dz * dz);
+    }
+
+    /**
+     * Drop every pending chunk of a player, for example when they log off.
+     *
+     * @param player The UUID of the player.
+     */
+    public void cancel(UUID player) {
+        PlayerQueue queue = queues.remove(player);
+        if (queue != null) {
+            queue.clear();
+        }
+    }
+
+    /**
+     * Drop the pending chunks of a player that are in the given chunks, for example when they leave a stage.
+     *
+     * @param player The UUID of the player.
+     * @param chunkKeys The keys of the chunks, see {@link BlockifyChunk#key(int, int)}.
+     */
+    public void cancel(UUID player, long[] chunkKeys) {
+        PlayerQueue queue = queues.get(player);
+        if (queue != null) {
+            queue.cancel(chunkKeys);
+        }
+    }
+
+    /**
+     * @param player The UUID of the player.
+     * @return The amount of chunks still pending for the player.
+     */
+    public int getPending(UUID player) {
+        PlayerQueue queue = queues.get(player);
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * @return The amount of chunks pending for all players.
+     */
+    public int getPending() {
+        int pending = 0;
+        for (PlayerQueue queue : queues.values()) {
+            pending += queue.size();
+        }
+        return pending;
+    }
+
+    /**
+     * @return The amount of players waiting for a worker.
+     */
+    public int getQueuedPlayers() {
+        return ready.size();
+    }
+
+    /**
+     * Stop the workers. Pending chunks are dropped, chunks that are being built are given time to finish.
+     */
+    public void shutdown() {
+        running = false;
+        queues.values().forEach(PlayerQueue::clear);
+        queues.clear();
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void work() {
+        while (running) {
+            PlayerQueue queue;
+            try {
+                queue = ready.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            Request request = queue.poll();
+            if (request == null || !queue.player.isOnline()) continue;
+
+            try {
+                sender.send(queue.player, request.chunk, request.unload);
+            } catch (Exception e) {
+                Blockify.getInstance().getMetrics().getChunkSendErrors().increment();
+                Blockify.getInstance().getLogger().log(Level.WARNING, "Failed to send chunk " + request.chunk + " to " + queue.player.getName(), e);
+            }
+        }
+    }
+
+    private final class PlayerQueue {
+        private final Map<Long, Request> pending = new HashMap<>();
+        private final PriorityQueue<Request> order = new PriorityQueue<>();
+        private Player player;
+        private boolean queued;
+        private long sequence;
+
+        private synchronized void offer(Player player, BlockifyChunk chunk, boolean unload, int distance) {
+            this.player = player;
+            Request existing = pending.get(chunk.getChunkKey());
+            if (existing != null) {
+                // Coalesce, the latest request decides what the chunk looks like
+                existing.unload = unload;
+                return;
+            }
+
+            Request request = new Request(chunk, unload, distance, sequence++);
+            pending.put(chunk.getChunkKey(), request);
+            order.add(request);
+            if (!queued) {
+                queued = true;
+                ready.add(this);
+            }
+        }
+
+        /**
+         * Take the next chunk and put the player back at the end of the ready queue if more chunks are pending.
+         */
+        private synchronized Request poll() {
+            Request request = order.poll();
+            while (request != null && request.cancelled) {
+                request = order.poll();
+            }
+            if (request != null) {
+                pending.remove(request.chunk.getChunkKey());
+            }
+            if (order.isEmpty()) {
+                queued = false;
+            } else {
+                ready.add(this);
+            }
+            return request;
+        }
+
+        private synchronized void cancel(long[] chunkKeys) {
+            for (long chunkKey : chunkKeys) {
+                Request request = pending.remove(chunkKey);
+                if (request != null) {
+                    request.cancelled = true;
+                }
+            }
+        }
+
+        private synchronized void clear() {
+            pending.clear();
+            order.clear();
+        }
+
+        private synchronized int size() {
+            return pending.size();
+        }
+    }
+
+    private static final class Request implements Comparable<Request> {
+        private final BlockifyChunk chunk;
+        private final int distance;
+        private final long sequence;
+        private boolean unload;
+        private boolean cancelled;
+
+        private Request(BlockifyChunk chunk, boolean unload, int distance, long sequence) {
+            this.chunk = chunk;
+            this.unload = unload;
+            this.distance = distance;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            int compare = Integer.compare(distance, other.distance);
+            return compare != 0 ? compare : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package codes.kooper.blockify.scheduler;
+
+import codes.kooper.blockify.types.BlockifyChunk;
+import org.bukkit.entity.Player;
+
+@FunctionalInterface
+public interface ChunkSender {
+    /**
+     * Build and send a chunk to a player.
+     *
+     * @param player The player.
+     * @param chunk The chunk.
+     * @param unload Whether to send the chunk without fake blocks.
+     */
+    void send(Player player, BlockifyChunk chunk, boolean unload);
+}
@@ -0,0 +1,36 @@
+package codes.kooper.blockify.shapes;
+
+import codes.kooper.blockify.types.BlockifyPosition;
+import lombok.Getter;
+
+/**
+ * Every block between two corners.
+ */
+@Getter
+public class Cuboid implements Shape {
+    private final BlockifyPosition min, max;
+
+    /**
+     * @param pos1 The first corner, inclusive.
+     * @param pos2 The second corner, inclusive.
+     */
+    public Cuboid(BlockifyPosition pos1, BlockifyPosition pos2) {
+        this.min = new BlockifyPosition(Math.min(pos1.getX(), pos2.getX()), Math.min(pos1.getY(), pos2.getY()), Math.min(pos1.getZ(), pos2.getZ()));
+        this.max = new BlockifyPosition(Math.max(pos1.getX(), pos2.getX()), Math.max(pos1.getY(), pos2.getY()), Math.max(pos1.getZ(), pos2.getZ()));
+    }
+
+    @Override
+    public boolean contains(int x, int y, int z) {
+        return x >= min.getX() && x <= max.getX() && y >= min.getY() && y <= max.getY() && z >= min.getZ() && z <= max.getZ();
+    }
+
+    @Override
+    public boolean touchesChunk(int chunkX, int chunkZ) {
+        return chunkX >= min.getX() >> 4 && chunkX <= max.getX() >> 4 && chunkZ >= min.getZ() >> 4 && chunkZ <= max.getZ() >> 4;
+    }
+
+    @Override
+    public long count() {
+        return (long) (max.getX() - min.getX() + 1) * (max.getY() - min.getY() + 1) * (max.getZ() - min.getZ() + 1);
+    }
+}
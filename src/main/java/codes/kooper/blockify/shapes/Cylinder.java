@@ -0,0 +1,38 @@
+package codes.kooper.blockify.shapes;
+
+import codes.kooper.blockify.types.BlockifyPosition;
+import lombok.Getter;
+
+/**
+ * A vertical cylinder: every block whose center is within a radius of the axis, from the base up to a height.
+ */
+@Getter
+public class Cylinder implements Shape {
+    private final BlockifyPosition base, min, max;
+    private final double radius;
+    private final double radiusSquared;
+
+    /**
+     * @param base The center block of the bottom layer.
+     * @param radius The radius in blocks.
+     * @param height The amount of layers, at least 1.
+     */
+    public Cylinder(BlockifyPosition base, double radius, int height) {
+        if (height < 1) {
+            throw new IllegalArgumentException("Cylinder height must be at least 1");
+        }
+        this.base = base;
+        this.radius = radius;
+        this.radiusSquared = radius * radius;
+        int extent = (int) Math.floor(radius);
+        this.min = new BlockifyPosition(base.getX() - extent, base.getY(), base.getZ() - extent);
+        this.max = new BlockifyPosition(base.getX() + extent, base.getY() + height - 1, base.getZ() + extent);
+    }
+
+    @Override
+    public boolean contains(int x, int y, int z) {
+        if (y < min.getY() || y > max.getY()) return false;
+        long dx = x - base.getX(), dz = z - base.getZ();
+        return dx * dx + dz * dz <= radiusSquared;
+    }
+}
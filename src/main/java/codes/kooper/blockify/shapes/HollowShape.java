@@ -0,0 +1,41 @@
+package codes.kooper.blockify.shapes;
+
+import codes.kooper.blockify.types.BlockifyPosition;
+import lombok.Getter;
+
+/**
+ * The outer shell of another shape: positions of the shape with at least one of their six neighbours outside of it.
+ * Create it with {@link Shape#hollow()}.
+ */
+public class HollowShape implements Shape {
+    // The shape whose shell this is
+    @Getter
+    private final Shape shape;
+
+    HollowShape(Shape shape) {
+        this.shape = shape;
+    }
+
+    @Override
+    public BlockifyPosition getMin() {
+        return shape.getMin();
+    }
+
+    @Override
+    public BlockifyPosition getMax() {
+        return shape.getMax();
+    }
+
+    @Override
+    public boolean contains(int x, int y, int z) {
+        return shape.contains(x, y, z)
+                && (!shape.contains(x + 1, y, z) || !shape.contains(x - 1, y, z)
+                || !shape.contains(x, y + 1, z) || !shape.contains(x, y - 1, z)
+                || !shape.contains(x, y, z + 1) || !shape.contains(x, y, z - 1));
+    }
+
+    @Override
+    public Shape hollow() {
+        return this;
+    }
+}
@@ -0,0 +1,6 @@
+package codes.kooper.blockify.shapes;
+
+@FunctionalInterface
+public interface PositionConsumer {
+    void accept(int x, int y, int z);
+}
@@ -0,0 +1,118 @@
+package codes.kooper.blockify.shapes;
+
+import codes.kooper.blockify.types.BlockifyPosition;
+
+import java.util.Spliterator;
+import java.util.function.LongConsumer;
+
+/**
+ * Walks the packed positions of a shape one 16x16x16 section at a time. Splitting hands half of the remaining sections
+ * to the new spliterator, so parallel consumers never share a section.
+ */
+final class SectionSpliterator implements Spliterator.OfLong {
+    private final Shape shape;
+    private final int minX, minY, minZ, maxX, maxY, maxZ;
+    private final int minSectionX, minSectionY, minSectionZ;
+    private final int sectionsX, sectionsZ;
+    private int section, end;
+    // Position inside the current section, 0 to 4096
+    private int cell;
+
+    SectionSpliterator(Shape shape) {
+        this.shape = shape;
+        BlockifyPosition min = shape.getMin(), max = shape.getMax();
+        this.minX = min.getX();
+        this.minY = min.getY();
+        this.minZ = min.getZ();
+        this.maxX = max.getX();
+        this.maxY = max.getY();
+        this.maxZ = max.getZ();
+        this.minSectionX = minX >> 4;
+        this.minSectionY = minY >> 4;
+        this.minSectionZ = minZ >> 4;
+        this.sectionsX = (maxX >> 4) - minSectionX + 1;
+        this.sectionsZ = (maxZ >> 4) - minSectionZ + 1;
+        int sectionsY = (maxY >> 4) - minSectionY + 1;
+        this.end = sectionsX * sectionsZ * sectionsY;
+    }
+
+    private SectionSpliterator(SectionSpliterator parent, int section, int end) {
+        this.shape = parent.shape;
+        this.minX = parent.minX;
+        this.minY = parent.minY;
+        this.minZ = parent.minZ;
+        this.maxX = parent.maxX;
+        this.maxY = parent.maxY;
+        this.maxZ = parent.maxZ;
+        this.minSectionX = parent.minSectionX;
+        this.minSectionY = parent.minSectionY;
+        this.minSectionZ = parent.minSectionZ;
+        this.sectionsX = parent.sectionsX;
+        this.sectionsZ = parent.sectionsZ;
+        this.section = section;
+        this.end = end;
+    }
+
+    @Override
+    public boolean tryAdvance(LongConsumer action) {
+        while (section < end) {
+            int baseX = (minSectionX + section % sectionsX) << 4;
+            int baseZ = (minSectionZ + (section / sectionsX) % sectionsZ) << 4;
+            int baseY = (minSectionY + section / (sectionsX * sectionsZ)) << 4;
+            while (cell < 4096) {
+                int x = baseX + (cell & 15), z = baseZ + ((cell >> 4) & 15), y = baseY + (cell >> 8);
+                cell++;
+                if (inBounds(x, y, z) && shape.contains(x, y, z)) {
+                    action.accept(BlockifyPosition.pack(x, y, z));
+                    return true;
+                }
+            }
+            section++;
+            cell = 0;
+        }
+        return false;
+    }
+
+    @Override
+    public void forEachRemaining(LongConsumer action) {
+        for (; section < end; section++, cell = 0) {
+            int baseX = (minSectionX + section % sectionsX) << 4;
+            int baseZ = (minSectionZ + (section / sectionsX) % sectionsZ) << 4;
+            int baseY = (minSectionY + section / (sectionsX * sectionsZ)) << 4;
+            for (; cell < 4096; cell++) {
+                int x = baseX + (cell & 15), z = baseZ + ((cell >> 4) & 15), y = baseY + (cell >> 8);
+                if (inBounds(x, y, z) && shape.contains(x, y, z)) {
+                    action.accept(BlockifyPosition.pack(x, y, z));
+                }
+            }
+        }
+    }
+
+    @Override
+    public Spliterator.OfLong trySplit() {
+        // Never split inside a section that was already started
+        int from = cell == 0 ? section : section + 1;
+        int remaining = end - from;
+        if (remaining < 2) return null;
+        int middle = from + remaining / 2;
+        SectionSpliterator prefix = new SectionSpliterator(this, section, middle);
+        prefix.cell = cell;
+        section = middle;
+        cell = 0;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return (long) (end - section) * 4096 - cell;
+    }
+
+    @Override
+    public int characteristics() {
+        return DISTINCT | NONNULL | IMMUTABLE;
+    }
+
+    private boolean inBounds(int x, int y, int z) {
+        return x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+    }
+}
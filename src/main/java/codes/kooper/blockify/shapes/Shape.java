@@ -0,0 +1,108 @@
+package codes.kooper.blockify.shapes;
+
+import codes.kooper.blockify.types.BlockifyPosition;
+
+import java.util.Spliterator;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A region of blocks that is never materialized. Positions are produced lazily, either through a callback with plain
+ * coordinates or as positions packed with {@link BlockifyPosition#pack(int, int, int)}.
+ */
+public interface Shape {
+
+    /**
+     * @return The lowest corner of the bounding box, inclusive.
+     */
+    BlockifyPosition getMin();
+
+    /**
+     * @return The highest corner of the bounding box, inclusive.
+     */
+    BlockifyPosition getMax();
+
+    /**
+     * @return True if the position is part of the shape.
+     */
+    boolean contains(int x, int y, int z);
+
+    /**
+     * Check if any position of the shape is in a chunk. The default scans the part of the bounding box inside the
+     * chunk until it finds a position of the shape, shapes that fill their bounding box override it.
+     *
+     * @param chunkX The x coordinate of the chunk.
+     * @param chunkZ The z coordinate of the chunk.
+     * @return True if the shape has a position in the chunk.
+     */
+    default boolean touchesChunk(int chunkX, int chunkZ) {
+        BlockifyPosition min = getMin(), max = getMax();
+        int minX = Math.max(chunkX << 4, min.getX()), maxX = Math.min((chunkX << 4) + 15, max.getX());
+        int minZ = Math.max(chunkZ << 4, min.getZ()), maxZ = Math.min((chunkZ << 4) + 15, max.getZ());
+        for (int y = min.getY(); y <= max.getY(); y++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                for (int x = minX; x <= maxX; x++) {
+                    if (contains(x, y, z)) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Call the consumer for every position of the shape, section by section.
+     *
+     * @param consumer The consumer.
+     */
+    default void forEach(PositionConsumer consumer) {
+        BlockifyPosition min = getMin(), max = getMax();
+        for (int y = min.getY(); y <= max.getY(); y++) {
+            for (int z = min.getZ(); z <= max.getZ(); z++) {
+                for (int x = min.getX(); x <= max.getX(); x++) {
+                    if (contains(x, y, z)) {
+                        consumer.accept(x, y, z);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return A spliterator of the packed positions of the shape, that splits along 16x16x16 sections.
+     */
+    default Spliterator.OfLong spliterator() {
+        return new SectionSpliterator(this);
+    }
+
+    /**
+     * @return A stream of the packed positions of the shape.
+     */
+    default LongStream stream() {
+        return StreamSupport.longStream(spliterator(), false);
+    }
+
+    /**
+     * @return A parallel stream of the packed positions of the shape, every section is handled by a single thread.
+     */
+    default LongStream parallelStream() {
+        return StreamSupport.longStream(spliterator(), true);
+    }
+
+    /**
+     * Count the positions of the shape, by iterating it.
+     *
+     * @return The amount of positions.
+     */
+    default long count() {
+        long[] count = new long[1];
+        forEach((x, y, z) -> count[0]++);
+        return count[0];
+    }
+
+    /**
+     * @return The outer shell of this shape: positions that have at least one neighbour outside the shape.
+     */
+    default Shape hollow() {
+        return new HollowShape(this);
+    }
+}
@@ -0,0 +1,33 @@
+package codes.kooper.blockify.shapes;
+
+import codes.kooper.blockify.types.BlockifyPosition;
+import lombok.Getter;
+
+/**
+ * Every block whose center is within a radius of a center block.
+ */
+@Getter
+public class Sphere implements Shape {
+    private final BlockifyPosition center, min, max;
+    private final double radius;
+    private final double radiusSquared;
+
+    /**
+     * @param center The center block.
+     * @param radius The radius in blocks.
+     */
+    public Sphere(BlockifyPosition center, double radius) {
+        this.center = center;
+        this.radius = radius;
+        this.radiusSquared = radius * radius;
+        int extent = (int) Math.floor(radius);
+        this.min = new BlockifyPosition(center.getX() - extent, center.getY() - extent, center.getZ() - extent);
+        this.max = new BlockifyPosition(center.getX() + extent, center.getY() + extent, center.getZ() + extent);
+    }
+
+    @Override
+    public boolean contains(int x, int y, int z) {
+        long dx = x - center.getX(), dy = y - center.getY(), dz = z - center.getZ();
+        return dx * dx + dy * dy + dz * dz <= radiusSquared;
+    }
+}
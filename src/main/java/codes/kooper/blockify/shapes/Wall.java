@@ -0,0 +1,28 @@
+package codes.kooper.blockify.shapes;
+
+import codes.kooper.blockify.types.BlockifyPosition;
+import lombok.Getter;
+
+/**
+ * The four vertical sides of a cuboid, without floor and ceiling.
+ */
+@Getter
+public class Wall implements Shape {
+    private final BlockifyPosition min, max;
+
+    /**
+     * @param pos1 The first corner, inclusive.
+     * @param pos2 The second corner, inclusive.
+     */
+    public Wall(BlockifyPosition pos1, BlockifyPosition pos2) {
+        Cuboid bounds = new Cuboid(pos1, pos2);
+        this.min = bounds.getMin();
+        this.max = bounds.getMax();
+    }
+
+    @Override
+    public boolean contains(int x, int y, int z) {
+        if (x < min.getX() || x > max.getX() || y < min.getY() || y > max.getY() || z < min.getZ() || z > max.getZ()) return false;
+        return x == min.getX() || x == max.getX() || z == min.getZ() || z == max.getZ();
+    }
+}
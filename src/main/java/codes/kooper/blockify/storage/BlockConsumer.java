@@ -0,0 +1,17 @@
+package codes.kooper.blockify.storage;
+
+import org.bukkit.block.data.BlockData;
+
+@FunctionalInterface
+public interface BlockConsumer {
+
+    /**
+     * Accept a stored block.
+     *
+     * @param x The world x coordinate of the block.
+     * @param y The world y coordinate of the block.
+     * @param z The world z coordinate of the block.
+     * @param blockData The block data stored at the position.
+     */
+    void accept(int x, int y, int z, BlockData blockData);
+}
@@ -0,0 +1,18 @@
+package codes.kooper.blockify.storage;
+
+import org.bukkit.block.data.BlockData;
+
+@FunctionalInterface
+public interface BlockOperator {
+
+    /**
+     * Compute the replacement for a stored block.
+     *
+     * @param x The world x coordinate of the block.
+     * @param y The world y coordinate of the block.
+     * @param z The world z coordinate of the block.
+     * @param blockData The block data currently stored at the position.
+     * @return The new block data, or null to remove the block.
+     */
+    BlockData apply(int x, int y, int z, BlockData blockData);
+}
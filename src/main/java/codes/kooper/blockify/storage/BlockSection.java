@@ -0,0 +1,600 @@
+package codes.kooper.blockify.storage;
+
+import org.bukkit.block.data.BlockData;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.ToIntFunction;
+
+/**
+ * A 16x16x16 section of blocks stored as a palette of BlockData and a bit-packed array of palette indices.
+ * Which positions actually hold a block is tracked in a separate occupancy bitmap, so an empty position costs one bit.
+ * <p>
+ * Reads never lock: writers hold the section lock and move a sequence number around every change, and a read that
+ * overlapped a write is done again under the lock.
+ */
+public class BlockSection {
+    public static final int SIZE = 16 * 16 * 16;
+    // Results of readIndex besides a palette index
+    private static final int EMPTY = -1, TORN = -2;
+
+    private final long[] occupancy = new long[SIZE >> 6];
+    private BlockData[] palette = new BlockData[1];
+    private int paletteSize;
+    // Global block state ids of the palette entries, converted on first use and dropped when the palette changes
+    private volatile int[] globalIds;
+    private int bits;
+    private long[] data;
+    private int count;
+    // Odd while a write is in progress, bumped once before and once after every write
+    private volatile int sequence;
+    // Version of the last change made through ChunkBlocks, the version before it and the index it changed,
+    // or -1 if it changed more than one position. 0 until the section is changed through a chunk.
+    private volatile long version;
+    private long previousVersion;
+    private int changedIndex = -1;
+
+    /**
+     * Get the index of a position within a section.
+     * Only the lower 4 bits of each coordinate are used, so world coordinates can be passed directly.
+     *
+     * @param x The x coordinate.
+     * @param y The y coordinate.
+     * @param z The z coordinate.
+     * @return The index of the position within the section.
+     */
+    public static int index(int x, int y, int z) {
+        return (y & 15) << 8 | (z & 15) << 4 | (x & 15);
+    }
+
+    /**
+     * Check if the section holds a block at the index.
+     *
+     * @param index The index within the section.
+     * @return True if a block is stored at the index.
+     */
+    public boolean has(int index) {
+        int seq = sequence;
+        boolean has = (occupancy[index >> 6] & (1L << index)) != 0;
+        if (validate(seq)) return has;
+        synchronized (this) {
+            return (occupancy[index >> 6] & (1L << index)) != 0;
+        }
+    }
+
+    /**
+     * Get the block at the index.
+     *
+     * @param index The index within the section.
+     * @return The block data, or null if no block is stored at the index.
+     */
+    public BlockData get(int index) {
+        int seq = sequence;
+        BlockData[] palette = this.palette;
+        int paletteIndex = readIndex(index);
+        if (paletteIndex == EMPTY) {
+            if (validate(seq)) return null;
+        } else if (paletteIndex >= 0 && paletteIndex < palette.length) {
+            BlockData blockData = palette[paletteIndex];
+            if (validate(seq)) return blockData;
+        }
+        synchronized (this) {
+            return getLocked(index);
+        }
+    }
+
+    /**
+     * Get the global block state id of the block at the index, as sent to clients.
+     * Every palette entry is converted through the {@link BlockStateRegistry} once, not every block.
+     *
+     * @param index The index within the section.
+     * @return The global block state id, or -1 if no block is stored at the index.
+     */
+    public int getGlobalId(int index) {
+        int seq = sequence;
+        int[] ids = globalIds;
+        int paletteIndex = readIndex(index);
+        if (paletteIndex == EMPTY) {
+            if (validate(seq)) return -1;
+        } else if (ids != null && ids.length == paletteSize && paletteIndex >= 0 && paletteIndex < ids.length) {
+            int globalId = ids[paletteIndex];
+            if (validate(seq)) return globalId;
+        }
+        synchronized (this) {
+            return getGlobalIdLocked(index);
+        }
+    }
+
+    /**
+     * Copy the global block state ids of the blocks stored at the positions of a mask under a single lock,
+     * see {@link #getGlobalId(int)}. The bits of the copied positions are cleared from the mask.
+     *
+     * @param mask The positions to copy as 64 longs of 64 bits.
+     * @param stateIds The array receiving the global block state id of every copied position.
+     */
+    public synchronized void copyGlobalIds(long[] mask, char[] stateIds) {
+        for (int word = 0; word < occupancy.length; word++) {
+            long bitsLeft = mask[word] & occupancy[word];
+            mask[word] &= ~bitsLeft;
+            while (bitsLeft != 0) {
+                int index = word << 6 | Long.numberOfTrailingZeros(bitsLeft);
+                bitsLeft &= bitsLeft - 1;
+                stateIds[index] = (char) getGlobalIdLocked(index);
+            }
+        }
+    }
+
+    /**
+     * @return The version of the last change made to the section through its chunk, or 0 if there was none.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return The version of the section before its last change, or 0 if there was none.
+     */
+    public synchronized long getPreviousVersion() {
+        return previousVersion;
+    }
+
+    /**
+     * Get the position a single change moved the section from one version to another.
+     *
+     * @param since The version before the change.
+     * @param current The version after the change.
+     * @return The index of the changed position, or -1 if the versions are not one change apart or it changed more than one position.
+     */
+    public synchronized int getChangedIndex(long since, long current) {
+        return version == current && previousVersion == since ? changedIndex : -1;
+    }
+
+    /**
+     * Move the section to a new version, called by {@link ChunkBlocks} while holding the section lock with the change.
+     *
+     * @param index The index of the changed position, or -1 if more than one position changed.
+     * @param version The new version.
+     */
+    synchronized void changed(int index, long version) {
+        this.previousVersion = this.version;
+        this.changedIndex = index;
+        this.version = version;
+    }
+
+    /**
+     * Set the block at the index.
+     *
+     * @param index The index within the section.
+     * @param blockData The block data, or null to remove the block.
+     * @return The previous block data, or null if there was none.
+     */
+    public synchronized BlockData set(int index, BlockData blockData) {
+        beginWrite();
+        try {
+            return setBlock(index, blockData);
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     * Remove the block at the index.
+     *
+     * @param index The index within the section.
+     * @return The removed block data, or null if there was none.
+     */
+    public synchronized BlockData remove(int index) {
+        beginWrite();
+        try {
+            return removeBlock(index);
+        } finally {
+            endWrite();
+        }
+    }
+
+    private BlockData setBlock(int index, BlockData blockData) {
+        if (blockData == null) return removeBlock(index);
+        BlockData previous = getLocked(index);
+        int paletteIndex = paletteIndexOf(blockData);
+        write(data, bits, index, paletteIndex);
+        if (previous == null) {
+            occupancy[index >> 6] |= 1L << index;
+            count++;
+        }
+        return previous;
+    }
+
+    private BlockData removeBlock(int index) {
+        long bit = 1L << index;
+        if ((occupancy[index >> 6] & bit) == 0) return null;
+        BlockData previous = palette[read(data, bits, index)];
+        occupancy[index >> 6] &= ~bit;
+        if (--count == 0) {
+            palette = new BlockData[1];
+            paletteSize = 0;
+            globalIds = null;
+            bits = 0;
+            data = null;
+        }
+        return previous;
+    }
+
+    /**
+     * @return The amount of blocks stored in the section.
+     */
+    public int size() {
+        int seq = sequence;
+        int size = count;
+        if (validate(seq)) return size;
+        synchronized (this) {
+            return count;
+        }
+    }
+
+    /**
+     * @return True if the section holds no blocks.
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return A copy of the occupancy bitmap: 64 longs of 64 bits, bit {@link #index(int, int, int)} is set for every stored block.
+     */
+    public long[] getOccupancy() {
+        int seq = sequence;
+        long[] copy = occupancy.clone();
+        if (validate(seq)) return copy;
+        synchronized (this) {
+            return occupancy.clone();
+        }
+    }
+
+    /**
+     * Iterate every stored block in the section. The blocks are copied first, so the consumer runs without the lock
+     * and may change the section.
+     *
+     * @param baseX The world x coordinate of the section origin.
+     * @param baseY The world y coordinate of the section origin.
+     * @param baseZ The world z coordinate of the section origin.
+     * @param consumer The consumer to call for every stored block.
+     */
+    public void forEach(int baseX, int baseY, int baseZ, BlockConsumer consumer) {
+        int seq = sequence;
+        long[] occupancy = this.occupancy.clone();
+        long[] data = this.data == null ? null : this.data.clone();
+        BlockData[] palette = this.palette;
+        int bits = this.bits;
+        if (!validate(seq)) {
+            synchronized (this) {
+                occupancy = this.occupancy.clone();
+                data = this.data == null ? null : this.data.clone();
+                palette = this.palette;
+                bits = this.bits;
+            }
+        }
+        for (int word = 0; word < occupancy.length; word++) {
+            long bitsLeft = occupancy[word];
+            while (bitsLeft != 0) {
+                int index = word << 6 | Long.numberOfTrailingZeros(bitsLeft);
+                bitsLeft &= bitsLeft - 1;
+                consumer.accept(baseX + (index & 15), baseY + (index >> 8), baseZ + ((index >> 4) & 15), palette[read(data, bits, index)]);
+            }
+        }
+    }
+
+    /**
+     * Replace every stored block in the section.
+     *
+     * @param baseX The world x coordinate of the section origin.
+     * @param baseY The world y coordinate of the section origin.
+     * @param baseZ The world z coordinate of the section origin.
+     * @param operator The operator computing the replacement, returning null removes the block.
+     */
+    public synchronized void replaceAll(int baseX, int baseY, int baseZ, BlockOperator operator) {
+        beginWrite();
+        try {
+            replaceBlocks(baseX, baseY, baseZ, operator);
+        } finally {
+            endWrite();
+        }
+    }
+
+    private void replaceBlocks(int baseX, int baseY, int baseZ, BlockOperator operator) {
+        for (int word = 0; word < occupancy.length; word++) {
+            long bitsLeft = occupancy[word];
+            while (bitsLeft != 0) {
+                int index = word << 6 | Long.numberOfTrailingZeros(bitsLeft);
+                bitsLeft &= bitsLeft - 1;
+                BlockData current = palette[read(data, bits, index)];
+                BlockData replacement = operator.apply(baseX + (index & 15), baseY + (index >> 8), baseZ + ((index >> 4) & 15), current);
+                if (replacement != current) {
+                    setBlock(index, replacement);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fill positions with blocks from a palette in one pass, writing palette indices straight into a new index array
+     * instead of looking up every block in the palette.
+     *
+     * @param mask The positions to fill as 64 longs of 64 bits, or null to refill every stored block.
+     * @param fillPalette The block data to fill with, duplicates are not merged.
+     * @param sampler The sampler picking an index into the fill palette for every filled position.
+     */
+    public synchronized void fill(long[] mask, BlockData[] fillPalette, IndexSampler sampler) {
+        beginWrite();
+        try {
+            fillBlocks(mask, fillPalette, sampler);
+        } finally {
+            endWrite();
+        }
+    }
+
+    private void fillBlocks(long[] mask, BlockData[] fillPalette, IndexSampler sampler) {
+        long[] kept = new long[occupancy.length];
+        boolean keepAny = false;
+        for (int word = 0; word < occupancy.length; word++) {
+            kept[word] = mask == null ? 0 : occupancy[word] & ~mask[word];
+            keepAny |= kept[word] != 0;
+        }
+        // Blocks outside the mask keep their entries in front of the fill palette
+        int offset = keepAny ? paletteSize : 0;
+        int newSize = offset + fillPalette.length;
+        int newBits = newSize <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(newSize - 1);
+        long[] newData = newBits == 0 ? null : new long[(SIZE + 64 / newBits - 1) / (64 / newBits)];
+        BlockData[] newPalette = new BlockData[Math.max(1, Integer.highestOneBit(newSize - 1) << 1)];
+        if (keepAny) {
+            System.arraycopy(palette, 0, newPalette, 0, paletteSize);
+        }
+        System.arraycopy(fillPalette, 0, newPalette, offset, fillPalette.length);
+
+        int newCount = 0;
+        for (int word = 0; word < occupancy.length; word++) {
+            long keep = kept[word];
+            long target = mask == null ? occupancy[word] : mask[word];
+            for (long bitsLeft = keep; bitsLeft != 0; bitsLeft &= bitsLeft - 1) {
+                int index = word << 6 | Long.numberOfTrailingZeros(bitsLeft);
+                write(newData, newBits, index, read(data, bits, index));
+            }
+            for (long bitsLeft = target; bitsLeft != 0; bitsLeft &= bitsLeft - 1) {
+                int index = word << 6 | Long.numberOfTrailingZeros(bitsLeft);
+                write(newData, newBits, index, offset + sampler.sample(index));
+            }
+            occupancy[word] = keep | target;
+            newCount += Long.bitCount(occupancy[word]);
+        }
+        palette = newPalette;
+        paletteSize = newSize;
+        globalIds = null;
+        bits = newBits;
+        data = newData;
+        count = newCount;
+        if (count == 0) {
+            palette = new BlockData[1];
+            paletteSize = 0;
+            globalIds = null;
+            bits = 0;
+            data = null;
+        }
+    }
+
+    /**
+     * Write the section in its storage layout: palette, bits per entry, occupancy bitmap and packed indices.
+     * Unused palette entries are dropped first.
+     *
+     * @param out The output.
+     * @param paletteIds The function mapping block data to ids in a palette shared by the whole file.
+     * @throws IOException If writing fails.
+     */
+    public synchronized void write(DataOutput out, ToIntFunction<BlockData> paletteIds) throws IOException {
+        if (paletteSize > 0) {
+            beginWrite();
+            try {
+                compact();
+            } finally {
+                endWrite();
+            }
+        }
+        out.writeShort(paletteSize);
+        for (int i = 0; i < paletteSize; i++) {
+            out.writeInt(paletteIds.applyAsInt(palette[i]));
+        }
+        out.writeByte(bits);
+        for (long word : occupancy) {
+            out.writeLong(word);
+        }
+        out.writeInt(data == null ? 0 : data.length);
+        if (data != null) {
+            for (long word : data) {
+                out.writeLong(word);
+            }
+        }
+    }
+
+    /**
+     * Read a section written by {@link #write(DataOutput, ToIntFunction)}.
+     *
+     * @param buffer The buffer, positioned at the start of the section.
+     * @param globalPalette The palette shared by the whole file.
+     * @return The section.
+     */
+    public static BlockSection read(ByteBuffer buffer, BlockData[] globalPalette) {
+        BlockSection section = new BlockSection();
+        int paletteSize = buffer.getShort() & 0xFFFF;
+        section.palette = new BlockData[Math.max(1, paletteSize)];
+        for (int i = 0; i < paletteSize; i++) {
+            section.palette[i] = globalPalette[buffer.getInt()];
+        }
+        section.paletteSize = paletteSize;
+        section.bits = buffer.get();
+        buffer.asLongBuffer().get(section.occupancy);
+        buffer.position(buffer.position() + (section.occupancy.length << 3));
+        int dataLength = buffer.getInt();
+        if (dataLength > 0) {
+            section.data = new long[dataLength];
+            buffer.asLongBuffer().get(section.data);
+            buffer.position(buffer.position() + (dataLength << 3));
+        }
+        for (long word : section.occupancy) {
+            section.count += Long.bitCount(word);
+        }
+        return section;
+    }
+
+    private BlockData getLocked(int index) {
+        if ((occupancy[index >> 6] & (1L << index)) == 0) return null;
+        return palette[read(data, bits, index)];
+    }
+
+    private int getGlobalIdLocked(int index) {
+        if ((occupancy[index >> 6] & (1L << index)) == 0) return -1;
+        int[] ids = globalIds;
+        if (ids == null || ids.length != paletteSize) {
+            ids = new int[paletteSize];
+            for (int i = 0; i < paletteSize; i++) {
+                ids[i] = BlockStateRegistry.getGlobalId(palette[i]);
+            }
+            globalIds = ids;
+        }
+        return ids[read(data, bits, index)];
+    }
+
+    /**
+     * Read the palette index at an index without the lock.
+     *
+     * @return The palette index, {@link #EMPTY} if no block is stored at the index, or {@link #TORN} if a concurrent
+     * write left the index array and the bits per entry out of step.
+     */
+    private int readIndex(int index) {
+        if ((occupancy[index >> 6] & (1L << index)) == 0) return EMPTY;
+        long[] data = this.data;
+        int bits = this.bits;
+        return fits(data, bits) ? read(data, bits, index) : TORN;
+    }
+
+    private static boolean fits(long[] data, int bits) {
+        return bits == 0 || (bits <= 32 && data != null && data.length == (SIZE + 64 / bits - 1) / (64 / bits));
+    }
+
+    /**
+     * Start a write, called while holding the lock. Readers that saw the sequence before this call fail {@link #validate(int)}.
+     */
+    private void beginWrite() {
+        sequence++;
+        // Keep the writes that follow from becoming visible before the odd sequence
+        VarHandle.storeStoreFence();
+    }
+
+    private void endWrite() {
+        sequence++;
+    }
+
+    /**
+     * Check that no write started or finished since a lock-free read read the sequence.
+     *
+     * @param seq The sequence read before the read.
+     * @return True if the values read are consistent.
+     */
+    private boolean validate(int seq) {
+        // Keep the reads before from moving past the second read of the sequence
+        VarHandle.loadLoadFence();
+        return (seq & 1) == 0 && sequence == seq;
+    }
+
+    /**
+     * Find the palette index of the block data, adding it to the palette if needed.
+     * When the palette is full, unused entries are dropped first and the index array only grows if that was not enough.
+     */
+    private int paletteIndexOf(BlockData blockData) {
+        for (int i = 0; i < paletteSize; i++) {
+            if (palette[i] == blockData) return i;
+        }
+        for (int i = 0; i < paletteSize; i++) {
+            if (palette[i].equals(blockData)) return i;
+        }
+        if (paletteSize >= 1 << bits) {
+            compact();
+            if (paletteSize >= 1 << bits) {
+                resize(bits + 1);
+            }
+        }
+        if (paletteSize == palette.length) {
+            palette = Arrays.copyOf(palette, paletteSize << 1);
+        }
+        palette[paletteSize] = blockData;
+        return paletteSize++;
+    }
+
+    /**
+     * Drop palette entries that are no longer referenced by any stored block.
+     */
+    private void compact() {
+        int[] remap = new int[paletteSize];
+        Arrays.fill(remap, -1);
+        BlockData[] compacted = new BlockData[palette.length];
+        int size = 0;
+        for (int word = 0; word < occupancy.length; word++) {
+            long bitsLeft = occupancy[word];
+            while (bitsLeft != 0) {
+                int index = word << 6 | Long.numberOfTrailingZeros(bitsLeft);
+                bitsLeft &= bitsLeft - 1;
+                int old = read(data, bits, index);
+                if (remap[old] == -1) {
+                    remap[old] = size;
+                    compacted[size++] = palette[old];
+                }
+            }
+        }
+        if (size == paletteSize) return;
+
+        for (int word = 0; word < occupancy.length; word++) {
+            long bitsLeft = occupancy[word];
+            while (bitsLeft != 0) {
+                int index = word << 6 | Long.numberOfTrailingZeros(bitsLeft);
+                bitsLeft &= bitsLeft - 1;
+                write(data, bits, index, remap[read(data, bits, index)]);
+            }
+        }
+        palette = compacted;
+        paletteSize = size;
+        globalIds = null;
+    }
+
+    /**
+     * Repack the index array with a new amount of bits per entry.
+     */
+    private void resize(int newBits) {
+        int perLong = 64 / newBits;
+        long[] resized = new long[(SIZE + perLong - 1) / perLong];
+        for (int word = 0; word < occupancy.length; word++) {
+            long bitsLeft = occupancy[word];
+            while (bitsLeft != 0) {
+                int index = word << 6 | Long.numberOfTrailingZeros(bitsLeft);
+                bitsLeft &= bitsLeft - 1;
+                write(resized, newBits, index, read(data, bits, index));
+            }
+        }
+        data = resized;
+        bits = newBits;
+    }
+
+    private static int read(long[] data, int bits, int index) {
+        if (bits == 0) return 0;
+        int perLong = 64 / bits;
+        return (int) ((data[index / perLong] >>> ((index % perLong) * bits)) & ((1L << bits) - 1));
+    }
+
+    private static void write(long[] data, int bits, int index, int value) {
+        if (bits == 0) return;
+        int perLong = 64 / bits;
+        int slot = index / perLong;
+        int shift = (index % perLong) * bits;
+        long mask = ((1L << bits) - 1) << shift;
+        data[slot] = (data[slot] & ~mask) | (((long) value << shift) & mask);
+    }
+}
@@ -0,0 +1,131 @@
+package codes.kooper.blockify.storage;
+
+import com.github.retrooper.packetevents.protocol.world.states.WrappedBlockState;
+import io.github.retrooper.packetevents.util.SpigotConversionUtil;
+import org.bukkit.block.data.BlockData;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide registry interning every distinct BlockData under a dense id, together with its converted
+ * {@link WrappedBlockState} and global block state id as sent to clients.
+ * Every block data is converted once for the lifetime of the server, so hot paths can work on ints.
+ * Lookups by id never lock and are safe from any thread.
+ */
+public final class BlockStateRegistry {
+    private static final Map<BlockData, Integer> ids = new ConcurrentHashMap<>();
+    // Indexed by id, replaced when it grows, entries are never changed once published
+    private static volatile Entry[] entries = new Entry[64];
+    private static int size;
+
+    private BlockStateRegistry() {
+    }
+
+    /**
+     * Get the id of block data, registering it if it was never seen before.
+     *
+     * @param blockData The block data.
+     * @return The dense id of the block data.
+     */
+    public static int id(BlockData blockData) {
+        Integer id = ids.get(blockData);
+        return id != null ? id : register(blockData);
+    }
+
+    /**
+     * Get the interned instance of block data, equal block data always returns the same instance.
+     *
+     * @param blockData The block data.
+     * @return The interned block data.
+     */
+    public static BlockData intern(BlockData blockData) {
+        return entry(id(blockData)).data();
+    }
+
+    /**
+     * @param id The id of the block data.
+     * @return The interned block data with the id.
+     */
+    public static BlockData getBlockData(int id) {
+        return entry(id).data();
+    }
+
+    /**
+     * @param id The id of the block data.
+     * @return The block state of the block data, shared between calls and must not be modified.
+     */
+    public static WrappedBlockState getState(int id) {
+        return entry(id).state();
+    }
+
+    /**
+     * @param id The id of the block data.
+     * @return The global block state id of the block data.
+     */
+    public static int getGlobalId(int id) {
+        return entry(id).globalId();
+    }
+
+    /**
+     * @param blockData The block data.
+     * @return The block state of the block data, shared between calls and must not be modified.
+     */
+    public static WrappedBlockState getState(BlockData blockData) {
+        return entry(id(blockData)).state();
+    }
+
+    /**
+     * @param blockData The block data.
+     * @return The global block state id of the block data, as sent to clients.
+     */
+    public static int getGlobalId(BlockData blockData) {
+        return entry(id(blockData)).globalId();
+    }
+
+    /**
+     * Register block data with a block state that was already converted, for block data PacketEvents cannot convert.
+     * Block data that is already registered keeps its state.
+     *
+     * @param blockData The block data.
+     * @param state The block state of the block data.
+     * @return The dense id of the block data.
+     */
+    public static synchronized int register(BlockData blockData, WrappedBlockState state) {
+        Integer existing = ids.get(blockData);
+        if (existing != null) return existing;
+
+        Entry[] current = entries;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, size << 1);
+        }
+        int id = size;
+        current[id] = new Entry(blockData, state, state.getGlobalId());
+        // The entry is published before the id, so a thread that sees the id always finds the entry
+        entries = current;
+        size++;
+        ids.put(blockData, id);
+        return id;
+    }
+
+    /**
+     * @return The amount of registered block data.
+     */
+    public static synchronized int size() {
+        return size;
+    }
+
+    private static synchronized int register(BlockData blockData) {
+        Integer existing = ids.get(blockData);
+        if (existing != null) return existing;
+        return register(blockData, SpigotConversionUtil.fromBukkitBlockData(blockData));
+    }
+
+    private static Entry entry(int id) {
+        return entries[id];
+    }
+
+    private record Entry(BlockData data, WrappedBlockState state, int globalId) {
+    }
+}
@@ -0,0 +1,361 @@
+package codes.kooper.blockify.storage;
+
+import lombok.Getter;
+import org.bukkit.block.data.BlockData;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The blocks of a single chunk, split into palette-compressed 16x16x16 sections.
+ * Sections are created on first write and the section array is swapped atomically, so reads never lock the chunk.
+ * Every change through this class moves the chunk and the changed sections to a new version, taken from a clock shared by all chunks.
+ */
+public class ChunkBlocks {
+    private static final AtomicLong CLOCK = new AtomicLong();
+
+    @Getter
+    private final int chunkX, chunkZ;
+    private volatile Sections sections = new Sections(0, new BlockSection[0]);
+    // Written after the change it stands for, so a reader that sees a version also sees the blocks of that version
+    @Getter
+    private volatile long version = CLOCK.incrementAndGet();
+
+    /**
+     * Create a new chunk storage.
+     *
+     * @param chunkX The x coordinate of the chunk.
+     * @param chunkZ The z coordinate of the chunk.
+     */
+    public ChunkBlocks(int chunkX, int chunkZ) {
+        this.chunkX = chunkX;
+        this.chunkZ = chunkZ;
+    }
+
+    /**
+     * Get a section of the chunk. Sections are meant for reading, writes must go through the chunk so its version moves.
+     *
+     * @param sectionY The section y coordinate (world y >> 4).
+     * @return The section, or null if nothing was ever stored in it.
+     */
+    public BlockSection getSection(int sectionY) {
+        return sections.get(sectionY);
+    }
+
+    /**
+     * Get the version of a section, which moves with every change to the section, see {@link BlockSection#getVersion()}.
+     *
+     * @param sectionY The section y coordinate (world y >> 4).
+     * @return The version, or 0 if nothing was ever stored in the section.
+     */
+    public long getSectionVersion(int sectionY) {
+        BlockSection section = sections.get(sectionY);
+        return section == null ? 0 : section.getVersion();
+    }
+
+    /**
+     * @return The lowest section y coordinate that may hold blocks.
+     */
+    public int getMinSection() {
+        return sections.min();
+    }
+
+    /**
+     * @return The highest section y coordinate that may hold blocks, lower than {@link #getMinSection()} if the chunk is empty.
+     */
+    public int getMaxSection() {
+        Sections current = sections;
+        return current.min() + current.array().length - 1;
+    }
+
+    /**
+     * Get the block at a position. Only the lower 4 bits of x and z are used.
+     *
+     * @param x The x coordinate.
+     * @param y The y coordinate.
+     * @param z The z coordinate.
+     * @return The block data, or null if no block is stored at the position.
+     */
+    public BlockData get(int x, int y, int z) {
+        BlockSection section = sections.get(y >> 4);
+        return section == null ? null : section.get(BlockSection.index(x, y, z));
+    }
+
+    /**
+     * Check if a block is stored at a position. Only the lower 4 bits of x and z are used.
+     *
+     * @param x The x coordinate.
+     * @param y The y coordinate.
+     * @param z The z coordinate.
+     * @return True if a block is stored at the position.
+     */
+    public boolean has(int x, int y, int z) {
+        BlockSection section = sections.get(y >> 4);
+        return section != null && section.has(BlockSection.index(x, y, z));
+    }
+
+    /**
+     * Set the block at a position. Only the lower 4 bits of x and z are used.
+     *
+     * @param x The x coordinate.
+     * @param y The y coordinate.
+     * @param z The z coordinate.
+     * @param blockData The block data, or null to remove the block.
+     * @return The previous block data, or null if there was none.
+     */
+    public BlockData set(int x, int y, int z, BlockData blockData) {
+        if (blockData == null) return remove(x, y, z);
+        BlockSection section = getOrCreateSection(y >> 4);
+        int index = BlockSection.index(x, y, z);
+        long next;
+        BlockData previous;
+        synchronized (section) {
+            previous = section.set(index, blockData);
+            next = CLOCK.incrementAndGet();
+            section.changed(index, next);
+        }
+        version = next;
+        return previous;
+    }
+
+    /**
+     * Remove the block at a position. Only the lower 4 bits of x and z are used.
+     *
+     * @param x The x coordinate.
+     * @param y The y coordinate.
+     * @param z The z coordinate.
+     * @return The removed block data, or null if there was none.
+     */
+    public BlockData remove(int x, int y, int z) {
+        BlockSection section = sections.get(y >> 4);
+        if (section == null) return null;
+        int index = BlockSection.index(x, y, z);
+        long next;
+        BlockData previous;
+        synchronized (section) {
+            previous = section.remove(index);
+            if (previous == null) return null;
+            next = CLOCK.incrementAndGet();
+            section.changed(index, next);
+        }
+        version = next;
+        return previous;
+    }
+
+    /**
+     * @return The amount of blocks stored in the chunk.
+     */
+    public int size() {
+        int size = 0;
+        for (BlockSection section : sections.array()) {
+            if (section != null) size += section.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return True if the chunk holds no blocks.
+     */
+    public boolean isEmpty() {
+        for (BlockSection section : sections.array()) {
+            if (section != null && !section.isEmpty()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Iterate every stored block in the chunk, section by section.
+     *
+     * @param consumer The consumer to call for every stored block.
+     */
+    public void forEach(BlockConsumer consumer) {
+        Sections current = sections;
+        for (int i = 0; i < current.array().length; i++) {
+            BlockSection section = current.array()[i];
+            if (section == null) continue;
+            section.forEach(chunkX << 4, (current.min() + i) << 4, chunkZ << 4, consumer);
+        }
+    }
+
+    /**
+     * Replace every stored block in the chunk, section by section.
+     *
+     * @param operator The operator computing the replacement, returning null removes the block.
+     */
+    public void replaceAll(BlockOperator operator) {
+        Sections current = sections;
+        for (int i = 0; i < current.array().length; i++) {
+            BlockSection section = current.array()[i];
+            if (section == null) continue;
+            synchronized (section) {
+                section.replaceAll(chunkX << 4, (current.min() + i) << 4, chunkZ << 4, operator);
+                section.changed(-1, CLOCK.incrementAndGet());
+            }
+        }
+        version = CLOCK.incrementAndGet();
+    }
+
+    /**
+     * Fill positions of a section in one pass, see {@link BlockSection#fill(long[], BlockData[], IndexSampler)}.
+     *
+     * @param sectionY The section y coordinate (world y >> 4).
+     * @param mask The positions to fill, or null to refill every stored block of the section.
+     * @param fillPalette The block data to fill with.
+     * @param sampler The sampler picking an index into the fill palette for every filled position.
+     */
+    public void fill(int sectionY, long[] mask, BlockData[] fillPalette, IndexSampler sampler) {
+        BlockSection section = mask == null ? sections.get(sectionY) : getOrCreateSection(sectionY);
+        if (section == null) return;
+        long next;
+        synchronized (section) {
+            section.fill(mask, fillPalette, sampler);
+            next = CLOCK.incrementAndGet();
+            section.changed(-1, next);
+        }
+        version = next;
+    }
+
+    /**
+     * Replace a whole section, for example when loading the chunk from disk.
+     *
+     * @param sectionY The section y coordinate (world y >> 4).
+     * @param section The section, it must not be used anywhere else afterwards.
+     */
+    public void setSection(int sectionY, BlockSection section) {
+        long next = CLOCK.incrementAndGet();
+        section.changed(-1, next);
+        synchronized (this) {
+            Sections current = sections;
+            int index = sectionY - current.min();
+            if (current.get(sectionY) != null) {
+                BlockSection[] array = current.array().clone();
+                array[index] = section;
+                sections = new Sections(current.min(), array);
+            } else {
+                placeSection(current, sectionY, section);
+            }
+        }
+        version = next;
+    }
+
+    /**
+     * Start a batch of changes to the chunk. Changes are visible right away, but the changed sections and the chunk
+     * only move to a new version once the batch is committed, once for the whole batch instead of once per block.
+     *
+     * @return A new batch.
+     */
+    public Batch batch() {
+        return new Batch();
+    }
+
+    private synchronized BlockSection getOrCreateSection(int sectionY) {
+        Sections current = sections;
+        BlockSection section = current.get(sectionY);
+        if (section != null) return section;
+        return placeSection(current, sectionY, new BlockSection());
+    }
+
+    private BlockSection placeSection(Sections current, int sectionY, BlockSection section) {
+        int length = current.array().length;
+        int min = length == 0 ? sectionY : Math.min(current.min(), sectionY);
+        int max = length == 0 ? sectionY : Math.max(current.min() + length - 1, sectionY);
+        BlockSection[] array = new BlockSection[max - min + 1];
+        if (length > 0) {
+            System.arraycopy(current.array(), 0, array, current.min() - min, length);
+        }
+        array[sectionY - min] = section;
+        sections = new Sections(min, array);
+        return section;
+    }
+
+    /**
+     * Changes to a chunk that are versioned together, see {@link #batch()}. A batch is used by one thread at a time.
+     */
+    public class Batch {
+        // The sections changed so far and, per section, the index of the only changed position or -1 if more changed
+        private BlockSection[] touched = new BlockSection[4];
+        private int[] changedIndices = new int[4];
+        private int touchedCount;
+
+        private Batch() {
+        }
+
+        /**
+         * @see ChunkBlocks#has(int, int, int)
+         */
+        public boolean has(int x, int y, int z) {
+            return ChunkBlocks.this.has(x, y, z);
+        }
+
+        /**
+         * Set the block at a position without versioning it yet. Only the lower 4 bits of x and z are used.
+         *
+         * @param blockData The block data, or null to remove the block.
+         * @return The previous block data, or null if there was none.
+         */
+        public BlockData set(int x, int y, int z, BlockData blockData) {
+            if (blockData == null) return remove(x, y, z);
+            BlockSection section = getOrCreateSection(y >> 4);
+            int index = BlockSection.index(x, y, z);
+            BlockData previous = section.set(index, blockData);
+            touch(section, index);
+            return previous;
+        }
+
+        /**
+         * Remove the block at a position without versioning it yet. Only the lower 4 bits of x and z are used.
+         *
+         * @return The removed block data, or null if there was none.
+         */
+        public BlockData remove(int x, int y, int z) {
+            BlockSection section = sections.get(y >> 4);
+            if (section == null) return null;
+            int index = BlockSection.index(x, y, z);
+            BlockData previous = section.remove(index);
+            if (previous != null) {
+                touch(section, index);
+            }
+            return previous;
+        }
+
+        /**
+         * Move every section changed by the batch and the chunk to a new version. The batch is empty afterwards.
+         */
+        public void commit() {
+            if (touchedCount == 0) return;
+            long next = CLOCK.incrementAndGet();
+            for (int i = 0; i < touchedCount; i++) {
+                touched[i].changed(changedIndices[i], next);
+                touched[i] = null;
+            }
+            touchedCount = 0;
+            version = next;
+        }
+
+        private void touch(BlockSection section, int index) {
+            for (int i = touchedCount - 1; i >= 0; i--) {
+                if (touched[i] != section) continue;
+                if (changedIndices[i] != index) {
+                    changedIndices[i] = -1;
+                }
+                return;
+            }
+            if (touchedCount == touched.length) {
+                touched = Arrays.copyOf(touched, touchedCount * 2);
+                changedIndices = Arrays.copyOf(changedIndices, touchedCount * 2);
+            }
+            touched[touchedCount] = section;
+            changedIndices[touchedCount++] = index;
+        }
+    }
+
+    /**
+     * Immutable holder so the section array and its offset are always published together.
+     */
+    private record Sections(int min, BlockSection[] array) {
+        BlockSection get(int sectionY) {
+            int index = sectionY - min;
+            return index >= 0 && index < array.length ? array[index] : null;
+        }
+    }
+}
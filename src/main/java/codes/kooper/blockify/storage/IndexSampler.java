@@ -0,0 +1,13 @@
+package codes.kooper.blockify.storage;
+
+/**
+ * Picks the palette index of a position when a section is filled in bulk, see {@link BlockSection#fill}.
+ */
+@FunctionalInterface
+public interface IndexSampler {
+    /**
+     * @param index The index of the position within the section, see {@link BlockSection#index(int, int, int)}.
+     * @return The index into the fill palette.
+     */
+    int sample(int index);
+}
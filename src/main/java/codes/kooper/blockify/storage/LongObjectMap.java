@@ -0,0 +1,278 @@
+package codes.kooper.blockify.storage;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.LongFunction;
+
+/**
+ * Open-addressing map from primitive long keys to values, such as chunk keys or packed positions of sparse data.
+ * Reads never lock or allocate. Writes lock the map and change the table in place: a new key is stored before its value
+ * is published, and a removed key keeps its slot with a marker so lookups of other keys can probe past it. The table
+ * is only rebuilt when half of its slots are used, to a capacity that grows geometrically with the amount of keys.
+ *
+ * @param <V> The value type, values may not be null.
+ */
+public class LongObjectMap<V> {
+    private static final int MIN_CAPACITY = 16;
+    private static final Object REMOVED = new Object();
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    private volatile Table table = new Table(MIN_CAPACITY);
+    private volatile int size;
+    // Slots holding a key, including removed keys, guarded by the map lock
+    private int used;
+
+    /**
+     * Get the value of a key.
+     *
+     * @param key The key.
+     * @return The value, or null if the key is not present.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        return (V) lookup(table, key);
+    }
+
+    /**
+     * @param key The key.
+     * @return True if the key is present.
+     */
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Put a value.
+     *
+     * @param key The key.
+     * @param value The value, may not be null.
+     * @return The previous value, or null if there was none.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V put(long key, V value) {
+        if (value == null) throw new IllegalArgumentException("Value cannot be null");
+        return (V) store(key, value);
+    }
+
+    /**
+     * Get the value of a key, creating it if the key is not present.
+     *
+     * @param key The key.
+     * @param factory The factory creating the value.
+     * @return The existing or created value.
+     */
+    public V computeIfAbsent(long key, LongFunction<V> factory) {
+        V value = get(key);
+        if (value != null) return value;
+        synchronized (this) {
+            value = get(key);
+            if (value == null) {
+                value = factory.apply(key);
+                store(key, value);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Remove a key.
+     *
+     * @param key The key.
+     * @return The removed value, or null if the key was not present.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V remove(long key) {
+        return (V) store(key, null);
+    }
+
+    /**
+     * Remove a key only if it is mapped to the given value.
+     *
+     * @param key The key.
+     * @param value The expected value.
+     * @return True if the key was removed.
+     */
+    public synchronized boolean remove(long key, V value) {
+        if (get(key) != value) return false;
+        remove(key);
+        return true;
+    }
+
+    /**
+     * Remap many keys under a single lock, growing the table at most once for all of them.
+     *
+     * @param keys The keys to remap, without duplicates.
+     * @param function Called with every key and its current value in the order of the array, returns the new value or null to remove the key.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void computeAll(long[] keys, Remapper<V> function) {
+        // Keys that are not in the table yet may all need a slot
+        if ((used + keys.length) * 2L > table.keys.length) {
+            rebuild(size + keys.length);
+        }
+        for (long key : keys) {
+            store(key, function.apply(key, get(key)));
+        }
+    }
+
+    /**
+     * @return The amount of keys.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return True if there are no keys.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Remove every key.
+     */
+    public synchronized void clear() {
+        table = new Table(MIN_CAPACITY);
+        size = 0;
+        used = 0;
+    }
+
+    /**
+     * Iterate the map. Entries changed during the iteration may or may not be visited.
+     *
+     * @param consumer The consumer to call for every entry.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(EntryConsumer<V> consumer) {
+        Table current = table;
+        for (int i = 0; i < current.values.length; i++) {
+            Object value = VALUES.getVolatile(current.values, i);
+            if (value != null && value != REMOVED) {
+                consumer.accept(current.keys[i], (V) value);
+            }
+        }
+    }
+
+    /**
+     * @return A snapshot of every value.
+     */
+    @SuppressWarnings("unchecked")
+    public Collection<V> values() {
+        List<V> values = new ArrayList<>(size);
+        forEach((key, value) -> values.add(value));
+        return values;
+    }
+
+    /**
+     * Set or remove the value of a key in place, rebuilding the table first if a new key would fill more than half of it.
+     * Must be called with the map lock held.
+     *
+     * @return The previous value, or null if there was none.
+     */
+    private Object store(long key, Object value) {
+        Table current = table;
+        int index = slot(current, key);
+        Object previous = current.values[index];
+        if (previous == REMOVED) previous = null;
+        if (value == null) {
+            if (previous == null) return null;
+            VALUES.setVolatile(current.values, index, REMOVED);
+            size--;
+            return previous;
+        }
+
+        if (current.values[index] == null) {
+            if ((used + 1) * 2 > current.keys.length) {
+                current = rebuild(size + 1);
+                index = slot(current, key);
+            }
+            // The key is written before the value, readers only look at keys of slots with a value
+            current.keys[index] = key;
+            used++;
+        }
+        VALUES.setVolatile(current.values, index, value);
+        if (previous == null) size++;
+        return previous;
+    }
+
+    /**
+     * Copy the present keys into a new table with room for half again as many keys as will be stored, and publish it.
+     */
+    private Table rebuild(int keys) {
+        Table current = table;
+        Table copy = new Table(capacityFor(keys + (keys >> 1)));
+        int copied = 0;
+        for (int i = 0; i < current.values.length; i++) {
+            Object value = current.values[i];
+            if (value != null && value != REMOVED) {
+                int index = slot(copy, current.keys[i]);
+                copy.keys[index] = current.keys[i];
+                copy.values[index] = value;
+                copied++;
+            }
+        }
+        used = copied;
+        table = copy;
+        return copy;
+    }
+
+    private static Object lookup(Table table, long key) {
+        int mask = table.keys.length - 1;
+        int index = hash(key) & mask;
+        Object value;
+        while ((value = VALUES.getVolatile(table.values, index)) != null) {
+            if (table.keys[index] == key) return value == REMOVED ? null : value;
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * @return The slot holding the key, or the empty slot it would be stored in.
+     */
+    private static int slot(Table table, long key) {
+        int mask = table.keys.length - 1;
+        int index = hash(key) & mask;
+        while (table.values[index] != null && table.keys[index] != key) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private static int capacityFor(int size) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static int hash(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private static final class Table {
+        private final long[] keys;
+        private final Object[] values;
+
+        private Table(int capacity) {
+            this.keys = new long[capacity];
+            this.values = new Object[capacity];
+        }
+    }
+
+    @FunctionalInterface
+    public interface EntryConsumer<V> {
+        void accept(long key, V value);
+    }
+
+    @FunctionalInterface
+    public interface Remapper<V> {
+        V apply(long key, V value);
+    }
+}
@@ -0,0 +1,37 @@
+package codes.kooper.blockify.types;
+
+import lombok.Getter;
+import org.bukkit.block.data.BlockData;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The exact set of positions whose visible block changed for a player, grouped by chunk.
+ * A null block data means the position reverts to the real world block.
+ */
+@Getter
+public class BlockDelta {
+    private final Map<BlockifyChunk, Map<BlockifyPosition, BlockData>> changes = new HashMap<>();
+    private int size;
+
+    /**
+     * Record a change.
+     *
+     * @param position The position that changed.
+     * @param blockData The new block data, or null if the position reverts to the real world block.
+     */
+    public void set(BlockifyPosition position, BlockData blockData) {
+        Map<BlockifyPosition, BlockData> chunkChanges = changes.computeIfAbsent(position.toBlockifyChunk(), c -> new HashMap<>());
+        boolean added = !chunkChanges.containsKey(position);
+        chunkChanges.put(position, blockData);
+        if (added) size++;
+    }
+
+    /**
+     * @return True if nothing changed.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
@@ -35,7 +35,39 @@ public record BlockifyChunk(int x, int z) {
      * @return The chunk key.
      */
     public long getChunkKey() {
-        return Chunk.getChunkKey(x, z);
+        return key(x, z);
+    }
+
+    /**
+     * Pack chunk coordinates into a chunk key, the same key as {@link Chunk#getChunkKey(int, int)}.
+     *
+     * @param x The x coordinate of the chunk.
+     * @param z The z coordinate of the chunk.
+     * @return The chunk key.
+     */
+    public static long key(int x, int z) {
+        return (x & 0xFFFFFFFFL) | ((z & 0xFFFFFFFFL) << 32);
+    }
+
+    /**
+     * Get the key of the chunk containing a block.
+     *
+     * @param blockX The x coordinate of the block.
+     * @param blockZ The z coordinate of the block.
+     * @return The chunk key.
+     */
+    public static long keyOfBlock(int blockX, int blockZ) {
+        return key(blockX >> 4, blockZ >> 4);
+    }
+
+    /**
+     * Create a chunk from a chunk key.
+     *
+     * @param key The chunk key.
+     * @return The chunk.
+     */
+    public static BlockifyChunk fromKey(long key) {
+        return new BlockifyChunk((int) key, (int) (key >>> 32));
     }
 
     /**
@@ -76,6 +76,61 @@ public class BlockifyPosition {
         return new BlockifyPosition(position.blockX(), position.blockY(), position.blockZ());
     }
 
+    /**
+     * Pack coordinates into a single long: 26 bits of x, 26 bits of z and 12 bits of y.
+     * This is the same layout the server uses for block positions, so any position in a world fits.
+     *
+     * @param x The x coordinate
+     * @param y The y coordinate
+     * @param z The z coordinate
+     * @return The packed position
+     */
+    public static long pack(int x, int y, int z) {
+        return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFF);
+    }
+
+    /**
+     * @param packed The packed position
+     * @return The x coordinate of a packed position
+     */
+    public static int unpackX(long packed) {
+        return (int) (packed >> 38);
+    }
+
+    /**
+     * @param packed The packed position
+     * @return The y coordinate of a packed position
+     */
+    public static int unpackY(long packed) {
+        return (int) (packed << 52 >> 52);
+    }
+
+    /**
+     * @param packed The packed position
+     * @return The z coordinate of a packed position
+     */
+    public static int unpackZ(long packed) {
+        return (int) (packed << 26 >> 38);
+    }
+
+    /**
+     * Create a new BlockifyPosition
+     *
+     * @param packed The packed position, see {@link #pack(int, int, int)}
+     */
+    public static BlockifyPosition fromLong(long packed) {
+        return new BlockifyPosition(unpackX(packed), unpackY(packed), unpackZ(packed));
+    }
+
+    /**
+     * Packs the BlockifyPosition into a long
+     *
+     * @return The packed position, see {@link #pack(int, int, int)}
+     */
+    public long asLong() {
+        return pack(x, y, z);
+    }
+
     /**
      * Converts the BlockifyPosition to a BlockPosition
      *
@@ -0,0 +1,19 @@
+package codes.kooper.blockify.types;
+
+/**
+ * Summary of an applied edit session.
+ *
+ * @param blocks The amount of operations applied to the view.
+ * @param chunks The amount of chunks the edit touched.
+ * @param applyNanos The time spent writing the view storage, in nanoseconds.
+ * @param publishNanos The time spent invalidating caches and updating viewers, in nanoseconds.
+ */
+public record EditResult(int blocks, int chunks, long applyNanos, long publishNanos) {
+
+    /**
+     * @return The total time of the edit, in nanoseconds.
+     */
+    public long totalNanos() {
+        return applyNanos + publishNanos;
+    }
+}
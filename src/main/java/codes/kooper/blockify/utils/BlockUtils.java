@@ -19,7 +19,9 @@ public class BlockUtils {
      * @param pos1 The first position.
      * @param pos2 The second position.
      * @return A set of all the blocks between the two positions.
+     * @deprecated Builds a set of every position, use {@link codes.kooper.blockify.shapes.Cuboid} instead.
      */
+    @Deprecated
     public static Set<BlockifyPosition> getBlocksBetween(BlockifyPosition pos1, BlockifyPosition pos2) {
         Set<BlockifyPosition> positions = new HashSet<>();
         int minX = Math.min(pos1.getX(), pos2.getX());
@@ -45,7 +47,9 @@ public class BlockUtils {
      * @param loc1 The first location.
      * @param loc2 The second location.
      * @return A list of all the locations between the two locations.
+     * @deprecated Builds a list of every location, use {@link codes.kooper.blockify.shapes.Cuboid} instead.
      */
+    @Deprecated
     public static List<Location> getLocationsBetween(Location loc1, Location loc2) {
         List<Location> locations = new ArrayList<>();
         int minX = Math.min(loc1.getBlockX(), loc2.getBlockX());
@@ -0,0 +1,219 @@
+package codes.kooper.blockify.models;
+
+import codes.kooper.blockify.storage.BlockSection;
+import codes.kooper.blockify.storage.ChunkBlocks;
+import org.bukkit.block.data.BlockData;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PatternFillTest {
+    private static final double[] WEIGHTS = {1, 2, 3, 0.5, 7.25};
+
+    private BlockData[] blockData;
+    private Pattern pattern;
+
+    @BeforeEach
+    void setUp() {
+        blockData = new BlockData[WEIGHTS.length];
+        Map<BlockData, Double> weights = new LinkedHashMap<>();
+        for (int i = 0; i < WEIGHTS.length; i++) {
+            blockData[i] = Mockito.mock(BlockData.class);
+            weights.put(blockData[i], WEIGHTS[i]);
+        }
+        pattern = new Pattern(weights);
+    }
+
+    @Test
+    void sampleIndexFollowsWeightsExactly() {
+        // Every column of the alias table is a contiguous range of the high 32 bits, and within a column the low
+        // 32 bits pick the column below a threshold and its alias above it, so the distribution can be summed exactly
+        int size = WEIGHTS.length;
+        double[] probability = new double[size];
+        for (int column = 0; column < size; column++) {
+            long from = ceilDiv((long) column << 32, size);
+            long to = ceilDiv((long) (column + 1) << 32, size);
+            double share = (double) (to - from) / (1L << 32);
+            long high = from << 32;
+            int picked = pattern.sampleIndex(high);
+            assertEquals(column, picked, "column " + column + " picks another block below its threshold");
+
+            long threshold = firstAlias(pattern, high, column);
+            int alias = threshold < 1L << 32 ? pattern.sampleIndex(high | threshold) : column;
+            assertEquals(alias, pattern.sampleIndex(high | 0xFFFFFFFFL), "column " + column + " is not a single threshold");
+            probability[column] += share * threshold / (1L << 32);
+            probability[alias] += share * ((1L << 32) - threshold) / (1L << 32);
+        }
+
+        double sum = 0;
+        for (double weight : WEIGHTS) {
+            sum += weight;
+        }
+        for (int i = 0; i < size; i++) {
+            assertEquals(WEIGHTS[i] / sum, probability[i], 1e-9, "probability of block " + i);
+        }
+    }
+
+    @Test
+    void weightsAreRecoveredFromAliasTable() {
+        double sum = 0;
+        for (double weight : WEIGHTS) {
+            sum += weight;
+        }
+        Map<BlockData, Double> recovered = pattern.getWeights();
+        for (int i = 0; i < WEIGHTS.length; i++) {
+            assertEquals(WEIGHTS[i] / sum, recovered.get(blockData[i]), 1e-12);
+        }
+    }
+
+    @Test
+    void sourceWeightsRebuildSameAliasTable() {
+        // Weights that do not normalize exactly, the alias table recovered weights can be an ulp off from
+        Map<BlockData, Double> weights = new LinkedHashMap<>();
+        double[] values = {0.1, 1.0 / 3, 0.7, 2.9, 1e-3, 13.37};
+        for (double value : values) {
+            weights.put(Mockito.mock(BlockData.class), value);
+        }
+        Pattern original = new Pattern(weights);
+        assertEquals(weights, original.getSourceWeights());
+
+        Pattern rebuilt = new Pattern(original.getSourceWeights());
+        assertArrayEquals(original.getBlockDataArray(), rebuilt.getBlockDataArray());
+        for (int column = 0; column < values.length; column++) {
+            long high = ceilDiv((long) column << 32, values.length) << 32;
+            assertEquals(firstAlias(original, high, column), firstAlias(rebuilt, high, column), "threshold of column " + column);
+            assertEquals(original.sampleIndex(high | 0xFFFFFFFFL), rebuilt.sampleIndex(high | 0xFFFFFFFFL), "alias of column " + column);
+        }
+    }
+
+    @Test
+    void sampledPositionsFollowWeights() {
+        // Fixed seed, so the statistic is the same on every run; 18.467 is the 0.999 quantile for 4 degrees of freedom
+        Map<BlockData, Integer> indices = indices();
+        long[] counts = new long[WEIGHTS.length];
+        long samples = 0;
+        for (int x = 0; x < 256; x++) {
+            for (int z = 0; z < 256; z++) {
+                for (int y = -32; y < 32; y++) {
+                    counts[indices.get(PatternFill.sample(pattern, 42, x, y, z))]++;
+                    samples++;
+                }
+            }
+        }
+
+        double sum = 0;
+        for (double weight : WEIGHTS) {
+            sum += weight;
+        }
+        double chiSquare = 0;
+        for (int i = 0; i < WEIGHTS.length; i++) {
+            double expected = samples * WEIGHTS[i] / sum;
+            chiSquare += (counts[i] - expected) * (counts[i] - expected) / expected;
+        }
+        assertTrue(chiSquare < 18.467, "chi-square " + chiSquare);
+    }
+
+    @Test
+    void maskedFillMatchesSampledPositions() {
+        SplittableRandom random = new SplittableRandom(7);
+        BlockData[] kept = {Mockito.mock(BlockData.class), Mockito.mock(BlockData.class)};
+        for (int round = 0; round < 50; round++) {
+            BlockSection section = new BlockSection();
+            BlockData[] before = new BlockData[BlockSection.SIZE];
+            for (int index = 0; index < BlockSection.SIZE; index++) {
+                if (random.nextInt(3) == 0) {
+                    before[index] = kept[random.nextInt(kept.length)];
+                    section.set(index, before[index]);
+                }
+            }
+            // Every fourth round refills the stored blocks instead of a mask
+            long[] mask = null;
+            if (round % 4 != 0) {
+                mask = new long[BlockSection.SIZE >> 6];
+                for (int word = 0; word < mask.length; word++) {
+                    mask[word] = random.nextLong() & random.nextLong();
+                }
+            }
+            int chunkX = random.nextInt(-64, 64), sectionY = random.nextInt(-4, 20), chunkZ = random.nextInt(-64, 64);
+            long seed = random.nextLong();
+            PatternFill.of(pattern).seed(seed).fill(section, chunkX, sectionY, chunkZ, mask);
+
+            int count = 0;
+            for (int index = 0; index < BlockSection.SIZE; index++) {
+                boolean filled = mask == null ? before[index] != null : (mask[index >> 6] & (1L << index)) != 0;
+                int x = chunkX << 4 | (index & 15), y = sectionY << 4 | index >> 8, z = chunkZ << 4 | (index >> 4 & 15);
+                BlockData expected = filled ? PatternFill.sample(pattern, seed, x, y, z) : before[index];
+                assertSame(expected, section.get(index), "index " + index + " in round " + round);
+                if (expected != null) count++;
+            }
+            assertEquals(count, section.size());
+        }
+    }
+
+    @Test
+    void sameSeedFillsSameBlocks() {
+        ChunkBlocks sequential = filledChunk(), parallel = filledChunk(), otherSeed = filledChunk();
+        assertEquals(4, PatternFill.of(pattern).seed(9).parallel(false).refill(List.of(sequential)));
+        PatternFill.of(pattern).seed(9).parallel(true).refill(List.of(parallel));
+        PatternFill.of(pattern).seed(10).refill(List.of(otherSeed));
+
+        int differentFromOtherSeed = 0;
+        for (int y = 0; y < 64; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    assertSame(PatternFill.sample(pattern, 9, 32 + x, y, -16 + z), sequential.get(x, y, z));
+                    assertSame(sequential.get(x, y, z), parallel.get(x, y, z));
+                    if (sequential.get(x, y, z) != otherSeed.get(x, y, z)) differentFromOtherSeed++;
+                }
+            }
+        }
+        assertTrue(differentFromOtherSeed > 0, "another seed filled the same blocks");
+    }
+
+    private ChunkBlocks filledChunk() {
+        ChunkBlocks chunk = new ChunkBlocks(2, -1);
+        for (int y = 0; y < 64; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    chunk.set(x, y, z, blockData[0]);
+                }
+            }
+        }
+        return chunk;
+    }
+
+    private Map<BlockData, Integer> indices() {
+        Map<BlockData, Integer> indices = new LinkedHashMap<>();
+        for (int i = 0; i < blockData.length; i++) {
+            indices.put(blockData[i], i);
+        }
+        return indices;
+    }
+
+    /**
+     * Find the lowest 32 low bits that pick the alias of a column instead of the column, or 2^32 if none does.
+     */
+    private static long firstAlias(Pattern pattern, long high, int column) {
+        long low = 0, highBound = 1L << 32;
+        while (low < highBound) {
+            long middle = (low + highBound) >>> 1;
+            if (pattern.sampleIndex(high | middle) == column) {
+                low = middle + 1;
+            } else {
+                highBound = middle;
+            }
+        }
+        return low;
+    }
+
+    private static long ceilDiv(long dividend, long divisor) {
+        return -Math.floorDiv(-dividend, divisor);
+    }
+}
@@ -0,0 +1,92 @@
+package codes.kooper.blockify.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LongObjectMapTest {
+
+    @Test
+    void matchesHashMap() {
+        // Few distinct keys, so keys are removed and stored again in the slots they keep
+        SplittableRandom random = new SplittableRandom(3);
+        LongObjectMap<Long> map = new LongObjectMap<>();
+        Map<Long, Long> expected = new HashMap<>();
+        for (int i = 0; i < 200_000; i++) {
+            long key = random.nextLong(-2_000, 2_000);
+            switch (random.nextInt(4)) {
+                case 0, 1 -> assertEquals(expected.put(key, (long) i), map.put(key, (long) i));
+                case 2 -> assertEquals(expected.remove(key), map.remove(key));
+                default -> assertEquals(expected.computeIfAbsent(key, k -> k * 2), map.computeIfAbsent(key, k -> k * 2));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (long key = -2_000; key < 2_000; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+        Map<Long, Long> iterated = new HashMap<>();
+        map.forEach((key, value) -> assertNull(iterated.put(key, value)));
+        assertEquals(expected, iterated);
+    }
+
+    @Test
+    void computeAllRemapsEveryKey() {
+        LongObjectMap<Long> map = new LongObjectMap<>();
+        for (long key = 0; key < 100; key++) {
+            map.put(key, key);
+        }
+        long[] keys = new long[200];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i * 2L;
+        }
+        // Even keys below 100 are removed, the others are added
+        map.computeAll(keys, (key, current) -> current == null ? key + 1 : null);
+        assertEquals(50 + 150, map.size());
+        for (long key = 0; key < 400; key++) {
+            Long value = map.get(key);
+            if (key < 100) {
+                assertEquals(key % 2 == 0 ? null : key, value);
+            } else {
+                assertEquals(key % 2 == 0 ? key + 1 : null, value);
+            }
+        }
+    }
+
+    @Test
+    void readersSeeStableKeysWhileWritersChurn() throws InterruptedException {
+        // Keys below 1000 are never removed, a reader must find them while other keys are stored, removed and rebuilt
+        LongObjectMap<Long> map = new LongObjectMap<>();
+        for (long key = 0; key < 1_000; key++) {
+            map.put(key, key);
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            SplittableRandom random = new SplittableRandom(5);
+            while (running.get() && failure.get() == null) {
+                long key = random.nextLong(1_000);
+                Long value = map.get(key);
+                if (value == null || value != key) failure.set("key " + key + " read " + value);
+            }
+        });
+        reader.start();
+        SplittableRandom random = new SplittableRandom(9);
+        for (int i = 0; i < 2_000_000 && failure.get() == null; i++) {
+            long key = 1_000 + random.nextLong(50_000);
+            if (random.nextBoolean()) {
+                map.put(key, key);
+            } else {
+                map.remove(key);
+            }
+        }
+        running.set(false);
+        reader.join();
+        assertNull(failure.get());
+    }
+}